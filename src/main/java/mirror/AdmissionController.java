@@ -0,0 +1,69 @@
+package mirror;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Limits how much of the server any one session, or a burst of sessions, can use.
+ *
+ * Initial syncs are the heaviest thing we do (scanning the root, diffing the client's
+ * state, and then sending every missing file), so after e.g. a VPN blip reconnects every
+ * client at once, we only run {@code maxInitialSyncs} of them at a time, and queue the
+ * rest in arrival order. A session holds its admission until the updates from its initial
+ * diff have been sent, see {@link MirrorSession#releaseAfterInitialSend}.
+ *
+ * Each session's sends can also be capped to {@code sessionBytesPerSecond}, so that a
+ * client doing a large first-time sync can't use all of the server's bandwidth.
+ */
+public class AdmissionController {
+
+  private static final Logger log = LoggerFactory.getLogger(AdmissionController.class);
+  public static final int defaultMaxInitialSyncs = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+  private final Semaphore initialSyncs;
+  private final long sessionBytesPerSecond;
+
+  /** A running initial sync, which should be closed when it's done; closing it again is a no-op. */
+  public interface Admission extends AutoCloseable {
+    @Override
+    void close();
+  }
+
+  public static AdmissionController defaults() {
+    return new AdmissionController(defaultMaxInitialSyncs, 0);
+  }
+
+  /**
+   * @param maxInitialSyncs how many initial syncs to run at once
+   * @param sessionBytesPerSecond the most each session can send per second, or 0 for unlimited
+   */
+  public AdmissionController(int maxInitialSyncs, long sessionBytesPerSecond) {
+    this.initialSyncs = new Semaphore(maxInitialSyncs, true);
+    this.sessionBytesPerSecond = sessionBytesPerSecond;
+  }
+
+  /** Blocks until {@code sessionId} can start its initial sync. */
+  public Admission admitInitialSync(String sessionId) throws InterruptedException {
+    if (!initialSyncs.tryAcquire()) {
+      log.info("Queueing initial sync for " + sessionId + " behind " + (initialSyncs.getQueueLength() + 1) + " others");
+      initialSyncs.acquire();
+      log.info("Starting queued initial sync for " + sessionId);
+    }
+    AtomicBoolean closed = new AtomicBoolean();
+    return () -> {
+      if (closed.compareAndSet(false, true)) {
+        initialSyncs.release();
+      }
+    };
+  }
+
+  /** @return a limiter for a new session's sends, in bytes, or null if they're unlimited */
+  public RateLimiter newSendLimiter() {
+    return sessionBytesPerSecond > 0 ? RateLimiter.create(sessionBytesPerSecond) : null;
+  }
+
+}
@@ -0,0 +1,107 @@
+package mirror;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+
+/**
+ * Packs small updates, e.g. directory creates, deletes, symlinks, and small files, into
+ * {@link Update#getBatchList()} batches, so that e.g. deleting a {@code build/} directory
+ * with 30k entries is a few dozen messages instead of 30k separately framed, compressed,
+ * and flushed ones.
+ *
+ * A batch is sent once it's big enough, once its oldest update has waited {@link #maxDelay}
+ * (so a steady trickle of updates isn't held back), when a large update needs to go out after
+ * it (so the order of updates is kept), or when {@link SaveToRemote} calls {@link #flush()}
+ * before it blocks, e.g. because it ran out of updates for a moment. The receiver unpacks
+ * batches in {@link MirrorSession#addRemoteUpdate}.
+ *
+ * Only used from SaveToRemote's thread, and only if the remote said it supports {@link #capability}.
+ */
+public class BatchingOutgoingConnection implements OutgoingConnection {
+
+  /** The capability a peer sends if it can receive batched updates. */
+  public static final String capability = "update-batch";
+  // larger files are already big enough messages on their own
+  private static final int maxBatchedDataSize = 4 * 1024;
+  private static final int maxBatchBytes = 64 * 1024;
+  private static final int maxBatchCount = 1000;
+  /** How long an update can wait in a batch before we send the batch. */
+  public static final Duration maxDelay = Duration.ofMillis(5);
+  private final OutgoingConnection delegate;
+  private final Ticker ticker;
+  private Update.Builder batch = Update.newBuilder();
+  private int batchBytes;
+  private long oldestNanos;
+
+  public BatchingOutgoingConnection(OutgoingConnection delegate) {
+    this(delegate, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  BatchingOutgoingConnection(OutgoingConnection delegate, Ticker ticker) {
+    this.delegate = delegate;
+    this.ticker = ticker;
+  }
+
+  @Override
+  public void send(Update update) {
+    if (update.getData().size() > maxBatchedDataSize || !update.getSpoolPath().isEmpty()) {
+      flush();
+      delegate.send(update);
+      return;
+    }
+    if (batch.getBatchCount() == 0) {
+      oldestNanos = ticker.read();
+    }
+    batch.addBatch(update);
+    batchBytes += update.getSerializedSize();
+    boolean tooOld = ticker.read() - oldestNanos >= maxDelay.toNanos();
+    if (batch.getBatchCount() >= maxBatchCount || batchBytes >= maxBatchBytes || tooOld) {
+      flush();
+    }
+  }
+
+  @Override
+  public void flush() {
+    if (batch.getBatchCount() == 0) {
+      return;
+    }
+    Update b = batch.build();
+    batch = Update.newBuilder();
+    batchBytes = 0;
+    // a batch of one is just as well sent by itself
+    delegate.send(b.getBatchCount() == 1 ? b.getBatch(0) : b);
+  }
+
+  @Override
+  public boolean canSendFiles() {
+    return delegate.canSendFiles();
+  }
+
+  @Override
+  public void sendFile(Update update, Path absolutePath) throws IOException {
+    flush();
+    delegate.sendFile(update, absolutePath);
+  }
+
+  @Override
+  public boolean isConnected() {
+    return delegate.isConnected();
+  }
+
+  @Override
+  public void awaitReconnected() {
+    delegate.awaitReconnected();
+  }
+
+  @Override
+  public void closeConnection() {
+    // the session is stopping, so any partial batch is dropped, like the rest of its queued updates
+    delegate.closeConnection();
+  }
+
+}
@@ -34,6 +34,11 @@ class BlockingStreamObserver<T> implements StreamObserver<T> {
 
   @Override
   public void onNext(T value) {
+    onNext(value, true);
+  }
+
+  /** Sends {@code value}, with the transport's compression turned off if {@code compress} is false, e.g. if it's already compressed. */
+  void onNext(T value, boolean compress) {
     synchronized (lock) {
       // in theory we could implement ServerCallStreamObserver and expose isCancelled to our client,
       // but for current purposes we only need the StreamObserver API, so treat a cancelled observer
@@ -51,7 +56,13 @@ class BlockingStreamObserver<T> implements StreamObserver<T> {
         }
       }
     }
-    delegate.onNext(value);
+    if (compress) {
+      delegate.onNext(value);
+    } else {
+      delegate.setMessageCompression(false);
+      delegate.onNext(value);
+      delegate.setMessageCompression(true);
+    }
   }
 
   @Override
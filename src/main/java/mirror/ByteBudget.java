@@ -0,0 +1,55 @@
+package mirror;
+
+/**
+ * Caps how many bytes of file data have been read into RAM but not yet sent.
+ *
+ * This is shared across all sessions in the JVM, so that no matter how many large
+ * files are queued, and by how many sessions, our read-ahead memory stays bounded.
+ *
+ * Requests larger than the whole budget are clamped to the budget, so that a
+ * single huge file can still be sent, it just has to wait for everything else.
+ */
+public class ByteBudget {
+
+  public static final ByteBudget shared = new ByteBudget(128 * 1024 * 1024);
+  private final long maxBytes;
+  private long usedBytes;
+
+  public ByteBudget(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /** @return the number of bytes acquired, which should be passed back to {@link #release(long)} */
+  public synchronized long acquire(long bytes) throws InterruptedException {
+    long clamped = clamp(bytes);
+    while (usedBytes + clamped > maxBytes) {
+      wait();
+    }
+    usedBytes += clamped;
+    return clamped;
+  }
+
+  /** @return the number of bytes acquired, or -1 if there isn't enough budget left right now */
+  public synchronized long tryAcquire(long bytes) {
+    long clamped = clamp(bytes);
+    if (usedBytes + clamped > maxBytes) {
+      return -1;
+    }
+    usedBytes += clamped;
+    return clamped;
+  }
+
+  public synchronized void release(long bytes) {
+    usedBytes -= bytes;
+    notifyAll();
+  }
+
+  synchronized long getUsedBytes() {
+    return usedBytes;
+  }
+
+  private long clamp(long bytes) {
+    return Math.max(0, Math.min(bytes, maxBytes));
+  }
+
+}
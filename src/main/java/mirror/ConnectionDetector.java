@@ -29,6 +29,29 @@ public interface ConnectionDetector {
     }
   }
 
+  /**
+   * Shares a detector across many clients, e.g. the daemon's roots, so that after a
+   * disconnect they wait on one series of pings instead of each pinging the server.
+   */
+  public static class Shared implements ConnectionDetector {
+    private static final Duration recent = Duration.ofSeconds(2);
+    private final ConnectionDetector delegate;
+    private long lastConnectedMillis;
+
+    public Shared(ConnectionDetector delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public synchronized void blockUntilConnected() {
+      if (System.currentTimeMillis() - lastConnectedMillis < recent.toMillis()) {
+        return;
+      }
+      delegate.blockUntilConnected();
+      lastConnectedMillis = System.currentTimeMillis();
+    }
+  }
+
   /** A detector that uses our app-specific PingRequest/PingResponse. */
   public static class Impl implements ConnectionDetector {
     private static final Duration durationBetweenDetections = Duration.ofSeconds(5);
@@ -0,0 +1,182 @@
+package mirror;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import mirror.hash.ContentHasher;
+
+/**
+ * A persistent cache of each file's (inode, size, mtime) to the hash of its contents.
+ *
+ * Build tools constantly touch or rewrite files with identical contents, and we'd
+ * like to send just the new modtime for those, instead of the whole file. Keying the
+ * hashes by the file's stat means we only re-read a file when it might actually
+ * have changed, and persisting the cache means that's still true after a restart.
+ *
+ * There is one cache per root directory, shared by all of the sessions in the JVM
+ * that are syncing that root, and stored in {@code ~/.mirror/hashes}.
+ */
+public class ContentHashCache {
+
+  private static final Logger log = LoggerFactory.getLogger(ContentHashCache.class);
+  private static final Path cacheDirectory = Paths.get(System.getProperty("user.home"), ".mirror", "hashes");
+  // If the cache gets bigger than this, it's probably mostly stale entries, so start over
+  private static final int maxEntries = 2_000_000;
+  private static final Map<Path, ContentHashCache> caches = new ConcurrentHashMap<>();
+  private static final ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(
+    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ContentHashCache-saver").build());
+  private final Path file;
+  private final Map<Key, String> hashes = new ConcurrentHashMap<>();
+  private volatile boolean dirty;
+
+  static {
+    saver.scheduleWithFixedDelay(ContentHashCache::saveAll, 1, 1, TimeUnit.MINUTES);
+    Runtime.getRuntime().addShutdownHook(new Thread(ContentHashCache::saveAll));
+  }
+
+  /** @return the cache for {@code absoluteRoot}, loading it from disk if necessary. */
+  public static ContentHashCache forRoot(Path absoluteRoot) {
+    return caches.computeIfAbsent(absoluteRoot.normalize(), root -> {
+      String name = Hashing.murmur3_128().hashString(root.toString(), UTF_8).toString();
+      ContentHashCache cache = new ContentHashCache(cacheDirectory.resolve(name));
+      cache.load();
+      return cache;
+    });
+  }
+
+  ContentHashCache(Path file) {
+    this.file = file;
+  }
+
+  /** @return the hash of {@code absolutePath}'s contents, only reading the file if it's not already cached. */
+  public String get(Path absolutePath) throws IOException {
+    Key before = Key.of(absolutePath);
+    String hash = hashes.get(before);
+    if (hash != null) {
+      return hash;
+    }
+    hash = ContentHasher.shared.hash(absolutePath);
+    // only cache the hash if the file didn't change while we were reading it
+    if (before.equals(Key.of(absolutePath))) {
+      hashes.put(before, hash);
+      dirty = true;
+    }
+    return hash;
+  }
+
+  /** Records that {@code absolutePath} currently has {@code hash}, e.g. because we just wrote it. */
+  public void put(Path absolutePath, String hash) throws IOException {
+    if (!ContentHasher.isOwnFormat(hash)) {
+      return; // e.g. a sha1 from the remote's watchman, which get() callers wouldn't expect
+    }
+    hashes.put(Key.of(absolutePath), hash);
+    dirty = true;
+  }
+
+  void save() {
+    if (!dirty) {
+      return;
+    }
+    dirty = false;
+    try {
+      Files.createDirectories(file.getParent());
+      Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+      try (BufferedWriter w = Files.newBufferedWriter(tmp, UTF_8)) {
+        for (Map.Entry<Key, String> e : hashes.entrySet()) {
+          Key k = e.getKey();
+          w.write(k.inode + " " + k.size + " " + k.modTime + " " + e.getValue() + "\n");
+        }
+      }
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      log.warn("Could not save content hashes to " + file, e);
+    }
+  }
+
+  private void load() {
+    if (!Files.exists(file)) {
+      return;
+    }
+    try (BufferedReader r = Files.newBufferedReader(file, UTF_8)) {
+      String line;
+      while ((line = r.readLine()) != null && hashes.size() < maxEntries) {
+        String[] parts = line.split(" ");
+        if (parts.length == 4) {
+          hashes.put(new Key(Long.parseLong(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2])), parts[3]);
+        }
+      }
+      if (hashes.size() >= maxEntries) {
+        hashes.clear();
+      }
+      log.debug("Loaded {} content hashes from {}", hashes.size(), file);
+    } catch (IOException | RuntimeException e) {
+      // the cache is just an optimization, so start over
+      log.warn("Could not load content hashes from " + file, e);
+      hashes.clear();
+    }
+  }
+
+  private static void saveAll() {
+    caches.values().forEach(ContentHashCache::save);
+  }
+
+  /** The stat of a file that, if unchanged, means its contents are unchanged. */
+  private static class Key {
+    private final long inode;
+    private final long size;
+    private final long modTime;
+
+    private static Key of(Path absolutePath) throws IOException {
+      try {
+        Map<String, Object> attrs = Files.readAttributes(absolutePath, "unix:ino,size,lastModifiedTime", LinkOption.NOFOLLOW_LINKS);
+        return new Key((Long) attrs.get("ino"), (Long) attrs.get("size"), ((FileTime) attrs.get("lastModifiedTime")).toMillis());
+      } catch (NoSuchFileException e) {
+        throw new FileNotFoundException(e.getMessage());
+      }
+    }
+
+    private Key(long inode, long size, long modTime) {
+      this.inode = inode;
+      this.size = size;
+      this.modTime = modTime;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key o = (Key) other;
+      return inode == o.inode && size == o.size && modTime == o.modTime;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(inode, size, modTime);
+    }
+  }
+
+}
@@ -0,0 +1,78 @@
+package mirror;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A fixed pool of threads that takes turns between queues, e.g. one per session.
+ *
+ * With a plain FIFO pool, a session doing a bulk sync keeps its share of the queue full,
+ * so an interactive session's one small read waits behind all of the bulk session's
+ * reads. Instead, each session submits to its own queue, and our threads run one task
+ * from each non-empty queue in turn, so the small read only waits behind at most one
+ * task from each other session.
+ */
+public class FairExecutor {
+
+  private final Object lock = new Object();
+  // queues with pending tasks, in the order they'll next get a turn
+  private final Deque<Queue> ready = new ArrayDeque<>();
+
+  public FairExecutor(int threads, String nameFormat) {
+    ThreadFactory factory = new ThreadFactoryBuilder().setDaemon(true).setNameFormat(nameFormat).build();
+    for (int i = 0; i < threads; i++) {
+      factory.newThread(this::runTasks).start();
+    }
+  }
+
+  /** @return a new queue, e.g. for a session, to take turns with the others */
+  public Executor newQueue() {
+    return new Queue();
+  }
+
+  private void runTasks() {
+    while (true) {
+      Runnable task;
+      synchronized (lock) {
+        while (ready.isEmpty()) {
+          try {
+            lock.wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        Queue q = ready.remove();
+        task = q.tasks.remove();
+        // go to the back of the line if there is more to do
+        if (!q.tasks.isEmpty()) {
+          ready.add(q);
+        }
+      }
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        // like a thread pool, keep running other tasks; callers should use futures to see failures
+      }
+    }
+  }
+
+  private class Queue implements Executor {
+    private final Deque<Runnable> tasks = new ArrayDeque<>();
+
+    @Override
+    public void execute(Runnable task) {
+      synchronized (lock) {
+        tasks.add(task);
+        if (tasks.size() == 1) {
+          ready.add(this);
+          lock.notify();
+        }
+      }
+    }
+  }
+
+}
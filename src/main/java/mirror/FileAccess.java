@@ -19,6 +19,9 @@ public interface FileAccess {
 
   void write(Path relativePath, ByteBuffer data) throws IOException;
 
+  /** Moves the already-written {@code absoluteSource} file to {@code relativePath}, replacing any existing file. */
+  void moveInto(Path relativePath, Path absoluteSource) throws IOException;
+
   void delete(Path relativePath) throws IOException;
 
   long getFileSize(Path relativePath) throws IOException;
@@ -37,8 +40,17 @@ public interface FileAccess {
 
   void setExecutable(Path relativePath) throws IOException;
 
+  /** @return a hash of the file's contents, which may be cached if the file hasn't changed */
+  String getContentHash(Path relativePath) throws IOException;
+
+  /** Records that the file's current contents have {@code hash}, e.g. because we just wrote it. */
+  void setContentHash(Path relativePath, String hash) throws IOException;
+
   Path readSymlink(Path readSymlink) throws IOException;
 
   void createSymlink(Path relativePath, Path target) throws IOException;
 
+  /** @return the file's absolute path on disk, e.g. to send it without reading it onto the heap, or null if it isn't on disk */
+  Path getAbsolutePath(Path relativePath);
+
 }
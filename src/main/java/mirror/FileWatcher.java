@@ -14,4 +14,29 @@ public interface FileWatcher extends TaskLogic {
    */
   List<Update> performInitialScan() throws Exception;
 
+  /**
+   * @return a marker for the changes that have been queued so far, which a later
+   * {@link #performInitialScan()} can resume from (see {@link TreeSnapshot}), or
+   * null if this watcher doesn't support resuming.
+   */
+  default String getClock() {
+    return null;
+  }
+
+  /**
+   * @return whether something (e.g. a VCS checkout) has asked us to pause syncing, so
+   * that SyncLogic should hold its diffs until we resume
+   */
+  default boolean isPaused() {
+    return false;
+  }
+
+  /**
+   * @return whether the updates from {@link #performInitialScan()} are also used by other sessions,
+   * so that trees should keep the instances as-is instead of each making their own copy
+   */
+  default boolean isShared() {
+    return false;
+  }
+
 }
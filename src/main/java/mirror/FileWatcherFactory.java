@@ -1,9 +1,11 @@
 package mirror;
 
+import mirror.inotify.Inotify;
+import mirror.inotify.InotifyFileWatcher;
 import mirror.tasks.TaskFactory;
 import mirror.watchman.Watchman;
 import mirror.watchman.WatchmanFileWatcher;
-import mirror.watchman.WatchmanImpl;
+import mirror.watchman.WatchmanPool;
 
 import java.util.Optional;
 import java.util.concurrent.BlockingQueue;
@@ -16,25 +18,44 @@ import java.util.concurrent.BlockingQueue;
  * start and then re-use it.)
  *
  * This also abstracts out whether we use the {@link WatchmanFileWatcher}
- * or the {@link WatchServiceFileWatcher}, with a preference for the
- * former.
+ * or the {@link InotifyFileWatcher}, with a preference for the former
+ * when watchman is installed, or the {@link PollingFileWatcher} when
+ * asked to poll.
  */
 public interface FileWatcherFactory {
 
   FileWatcher newWatcher(MirrorPaths config, BlockingQueue<Update> incomingQueue);
 
   /**
-   * @return the default factory that will try to create a watchman-based impl if possible, otherwise a Java WatchService-based impl.
+   * @return the default factory that will try to create a watchman-based impl if possible, otherwise an inotify-based impl on Linux.
    */
   static FileWatcherFactory newFactory(TaskFactory taskFactory) {
+    return newFactory(taskFactory, false);
+  }
+
+  /**
+   * @param watchmanContentHashes whether to ask watchman for content hashes, see {@link WatchmanFileWatcher}
+   */
+  static FileWatcherFactory newFactory(TaskFactory taskFactory, boolean watchmanContentHashes) {
     return (config, queue) -> {
-      Optional<Watchman> wm = WatchmanImpl.createIfAvailable();
+      // share one watchman connection across all of the sessions' watchers
+      Optional<Watchman> wm = WatchmanPool.shared.acquire();
       if (wm.isPresent()) {
-        return new WatchmanFileWatcher(wm.get(), config, queue);
+        return new WatchmanFileWatcher(wm.get(), config, queue, watchmanContentHashes);
+      } else if (Inotify.isAvailable()) {
+        return new InotifyFileWatcher(config, queue);
       } else {
         throw new RuntimeException("Watchman not found, please install watchman and ensure its on your PATH.");
       }
     };
   }
 
+  /**
+   * @return a factory for {@link PollingFileWatcher}s, for filesystems that don't support change events
+   * @param cpuBudget the fraction of a core that each watcher's rescans can use
+   */
+  static FileWatcherFactory newPollingFactory(double cpuBudget) {
+    return (config, queue) -> new PollingFileWatcher(config, queue, cpuBudget);
+  }
+
 }
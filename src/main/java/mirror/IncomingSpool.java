@@ -0,0 +1,95 @@
+package mirror;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Moves large incoming file data out of the heap and into temp files as soon as it's received.
+ *
+ * Otherwise the data would sit in the incomingQueue, and then the UpdateTree, until
+ * SyncLogic gets around to diffing it, so a bulk pull of large files would keep all
+ * of them in RAM at once. Once spooled, the Update only carries the path of the temp
+ * file, and SaveToLocal moves the file into place without copying it back through
+ * the heap.
+ *
+ * (Ideally we'd keep the data in Netty's direct buffers, but grpc-java's protobuf
+ * marshaller always parses messages onto the heap, so spooling right after the parse
+ * is the earliest we can drop our reference to it.)
+ */
+public class IncomingSpool {
+
+  private static final Logger log = LoggerFactory.getLogger(IncomingSpool.class);
+  // Small files are cheap to keep in RAM and would be slower to round-trip through the disk
+  private static final int defaultThreshold = 64 * 1024;
+  private final Path directory;
+  private final int threshold;
+  private final AtomicLong nextId = new AtomicLong();
+
+  /** @return a spool in a new temp directory, which will be deleted by {@link #delete()}. */
+  public static IncomingSpool newTempSpool() {
+    try {
+      return new IncomingSpool(Files.createTempDirectory("mirror-spool"), defaultThreshold);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public IncomingSpool(Path directory, int threshold) {
+    this.directory = directory;
+    this.threshold = threshold;
+  }
+
+  /** @return {@code update} with its data moved to a temp file, if it's large enough to be worth it. */
+  public Update spoolIfLarge(Update update) {
+    if (update.getData().size() < threshold || update.getData().equals(UpdateTree.initialSyncMarker)) {
+      return update;
+    }
+    Path file = newFile();
+    try (FileChannel c = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+      for (ByteBuffer b : update.getData().asReadOnlyByteBufferList()) {
+        while (b.hasRemaining()) {
+          c.write(b);
+        }
+      }
+    } catch (IOException e) {
+      // keep the data in RAM, which is slower but still correct
+      log.warn("Could not spool " + update.getPath() + " to " + file, e);
+      FileUtils.deleteQuietly(file.toFile());
+      return update;
+    }
+    return update.toBuilder().clearData().setSpoolPath(file.toString()).build();
+  }
+
+  /** @return a new path in the spool, e.g. for a transport to write incoming data straight to disk */
+  public Path newFile() {
+    return directory.resolve(nextId.incrementAndGet() + ".data");
+  }
+
+  /** @return the size at which we spool data instead of keeping it in RAM */
+  public int getThreshold() {
+    return threshold;
+  }
+
+  /** Deletes {@code update}'s spooled data, if it has any, e.g. because it was superseded or ignored instead of saved. */
+  public static void deleteSpoolFile(Update update) {
+    if (!update.getSpoolPath().isEmpty()) {
+      FileUtils.deleteQuietly(new File(update.getSpoolPath()));
+    }
+  }
+
+  /** Deletes any spooled files that are still left, e.g. for updates that were queued when we stopped. */
+  public void delete() {
+    FileUtils.deleteQuietly(directory.toFile());
+  }
+
+}
@@ -2,16 +2,25 @@ package mirror;
 
 import static org.apache.commons.lang3.StringUtils.chomp;
 import static org.apache.commons.lang3.StringUtils.substringAfterLast;
+import static org.apache.commons.lang3.StringUtils.substringBefore;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.URL;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.jar.Manifest;
 
@@ -19,26 +28,37 @@ import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.github.rvesse.airline.annotations.Arguments;
 import com.github.rvesse.airline.annotations.Cli;
 import com.github.rvesse.airline.annotations.Command;
 import com.github.rvesse.airline.annotations.Option;
 import com.github.rvesse.airline.help.Help;
 import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.io.Resources;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+import io.grpc.ManagedChannel;
 import io.grpc.Server;
 import io.grpc.netty.NegotiationType;
 import io.grpc.netty.NettyChannelBuilder;
 import io.grpc.netty.NettyServerBuilder;
+import mirror.Mirror.DaemonCommand;
 import mirror.Mirror.MirrorClientCommand;
 import mirror.Mirror.MirrorServerCommand;
+import mirror.Mirror.PauseCommand;
 import mirror.Mirror.VersionCommand;
 import mirror.tasks.TaskFactory;
 import mirror.tasks.ThreadBasedTaskFactory;
+import mirror.watchman.Watchman;
+import mirror.watchman.WatchmanImpl;
+import mirror.watchman.WatchmanStates;
 
 @Cli(name = "mirror", description = "two-way, real-time sync of files across machines", commands = {
   MirrorClientCommand.class,
+  DaemonCommand.class,
   MirrorServerCommand.class,
+  PauseCommand.class,
   VersionCommand.class }, defaultCommand = Help.class)
 public class Mirror {
 
@@ -84,6 +104,29 @@ public class Mirror {
     }
   }
 
+  @Command(name = "pause", description = "pauses syncing while running a command, e.g. mirror pause -- git rebase master")
+  public static class PauseCommand implements Runnable {
+    @Option(name = { "-l", "--local-root" }, description = "path being synced, defaults to the current directory")
+    public String localRoot = ".";
+
+    @Arguments(description = "the command to run while paused")
+    public List<String> command = new ArrayList<>();
+
+    @Override
+    public void run() {
+      if (command.isEmpty()) {
+        throw new IllegalArgumentException("Please pass a command to run, e.g. mirror pause -- git checkout foo");
+      }
+      int exitCode;
+      try (Watchman wm = WatchmanImpl.createIfAvailable().orElseThrow(() -> new RuntimeException("Pausing requires watchman"))) {
+        exitCode = WatchmanStates.runPaused(wm, Paths.get(localRoot), command);
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+      System.exit(exitCode);
+    }
+  }
+
   public static abstract class BaseCommand implements Runnable {
     @Option(name = "--skip-limit-checks", description = "skip system file descriptor/watches checks")
     public boolean skipLimitChecks;
@@ -96,6 +139,18 @@ public class Mirror {
     
     @Option(name = { "-lp", "--log-file-path" }, description = "define location of mirror.log, defaults to local source directory")
     public String logFilePath = null;
+
+    @Option(name = "--watchman-content-hashes", description = "have watchman hash changed files, instead of mirror reading them")
+    public boolean watchmanContentHashes;
+
+    @Option(name = "--poll", description = "poll for changes instead of using watchman/inotify, e.g. for NFS or bind mounts")
+    public boolean poll;
+
+    @Option(name = "--poll-cpu-budget", description = "percent of a core that polling for changes can use, default: 5")
+    public double pollCpuBudget = PollingFileWatcher.defaultCpuBudget * 100;
+
+    @Option(name = "--tuned-transport", description = "use epoll, and handle updates on the event loop, for faster bulk syncs of small files")
+    public boolean tunedTransport;
     
     
     @Override
@@ -135,6 +190,20 @@ public class Mirror {
     }
 
     protected abstract void runIfChecksOkay();
+
+    protected FileWatcherFactory newWatcherFactory(TaskFactory taskFactory) {
+      return poll ? FileWatcherFactory.newPollingFactory(pollCpuBudget / 100) : FileWatcherFactory.newFactory(taskFactory, watchmanContentHashes);
+    }
+
+    protected ManagedChannel newChannel(String host, int port) {
+      NettyChannelBuilder builder = NettyChannelBuilder //
+        .forAddress(host, port)
+        .negotiationType(NegotiationType.PLAINTEXT)
+        .keepAliveTime(keepAliveInSeconds, TimeUnit.SECONDS)
+        .keepAliveTimeout(keepAliveTimeoutInSeconds, TimeUnit.SECONDS)
+        .maxInboundMessageSize(maxMessageSize);
+      return (tunedTransport ? TunedTransport.tune(builder) : builder).build();
+    }
   }
 
   @Command(name = "server", description = "starts a server for the remote client to connect to")
@@ -145,14 +214,33 @@ public class Mirror {
     @Option(name = { "-h", "--host" }, description = "host name to listen on, default: " + defaultHost)
     public String host = defaultHost;
 
+    @Option(name = "--max-initial-syncs", description = "how many clients' initial syncs to run at once, default: number of cores / 2")
+    public int maxInitialSyncs = AdmissionController.defaultMaxInitialSyncs;
+
+    @Option(name = "--max-session-bytes-per-second", description = "how many bytes per second to send to each client, default: unlimited")
+    public long sessionBytesPerSecond = 0;
+
+    @Option(name = "--relay", description = "forward each client's changes directly to the other clients on the same path, instead of via the disk")
+    public boolean relay = false;
+
+    @Option(name = "--raw-port", description = "also listen on this port for clients that stream updates over a plain socket, e.g. on a LAN, default: off")
+    public int rawPort = 0;
+
     @Override
     protected void runIfChecksOkay() {
       TaskFactory taskFactory = new ThreadBasedTaskFactory();
       FileAccessFactory accessFactory = new NativeFileAccessFactory();
-      FileWatcherFactory watcherFactory = FileWatcherFactory.newFactory(taskFactory);
-      MirrorServer server = new MirrorServer(taskFactory, accessFactory, watcherFactory);
-
-      Server rpc = NettyServerBuilder
+      // share each root's watcher across the sessions for that root
+      FileWatcherFactory watcherFactory = new SharedFileWatcherFactory(taskFactory, newWatcherFactory(taskFactory));
+      MirrorServer server = new MirrorServer(
+        taskFactory,
+        accessFactory,
+        watcherFactory,
+        relay ? new Relay() : null,
+        new AdmissionController(maxInitialSyncs, sessionBytesPerSecond));
+      taskFactory.runTask(PayloadCache.shared.newStatsLogger(Duration.ofMinutes(1)));
+
+      NettyServerBuilder builder = NettyServerBuilder
         .forAddress(new InetSocketAddress(host, port))
         .maxInboundMessageSize(maxMessageSize)
         .keepAliveTime(keepAliveInSeconds, TimeUnit.SECONDS)
@@ -161,12 +249,20 @@ public class Mirror {
         .permitKeepAliveTime(keepAliveInSeconds / 2, TimeUnit.SECONDS)
         .permitKeepAliveWithoutCalls(true)
         .intercept(new MirrorServer.EnableCompressionInterceptor())
-        .addService(server)
-        .build();
+        .addService(server);
+      if (tunedTransport) {
+        TunedTransport.tune(builder);
+        // grpc will call us on its event loop, which initialSync would block
+        server.runInitialSyncsOn(Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("initialSync-%s").build()));
+      }
+      Server rpc = builder.build();
 
       try {
         rpc.start();
         log.info("Listening on " + host + ":" + port + ", version " + Mirror.getVersion());
+        if (rawPort > 0) {
+          taskFactory.runTask(new RawServer(server, taskFactory, new InetSocketAddress(host, rawPort)));
+        }
         rpc.awaitTermination();
       } catch (IOException e) {
         e.printStackTrace();
@@ -203,34 +299,36 @@ public class Mirror {
     @Option(name = { "--debug-prefixes" }, description = "prefix of paths to print debug lines for, e.g. foo/bar,foo/zaz")
     public List<String> debugPrefixes = new ArrayList<>();
 
+    @Option(name = { "-q", "--quiet-pattern" }, description = "pattern of noisy files, e.g. build outputs, to only sync once they stop changing")
+    public List<String> quietPatterns = new ArrayList<>();
+
+    @Option(name = { "--quiet-millis" }, description = "how long quiet patterns must be unchanged before syncing, default: 2000")
+    public long quietMillis = QuiescencePolicy.defaultQuietPeriod.toMillis();
+
     @Option(name = { "-li", "--use-internal-patterns" }, description = "use hardcoded include/excludes that generally work well for internal repos")
     public boolean useInternalPatterns;
 
+    @Option(name = "--raw-port", description = "stream updates over a plain socket to the server's --raw-port, which is faster on a LAN, but uncompressed and unencrypted")
+    public int rawPort = 0;
+
     @Override
     protected void runIfChecksOkay() {
       try {
-        ChannelFactory channelFactory = () -> NettyChannelBuilder //
-          .forAddress(host, port)
-          .negotiationType(NegotiationType.PLAINTEXT)
-          .keepAliveTime(keepAliveInSeconds, TimeUnit.SECONDS)
-          .keepAliveTimeout(keepAliveTimeoutInSeconds, TimeUnit.SECONDS)
-          .maxInboundMessageSize(maxMessageSize)
-          .build();
-
-        PathRules includes = new PathRules();
-        PathRules excludes = new PathRules();
-        setupIncludesAndExcludes(includes, excludes, extraIncludes, extraExcludes, useInternalPatterns);
+        ChannelFactory channelFactory = () -> newChannel(host, port);
 
         TaskFactory taskFactory = new ThreadBasedTaskFactory();
-        FileWatcherFactory watcherFactory = FileWatcherFactory.newFactory(taskFactory);
+        FileWatcherFactory watcherFactory = newWatcherFactory(taskFactory);
 
         MirrorClient client = new MirrorClient(//
-          new MirrorPaths(Paths.get(localRoot), Paths.get(remoteRoot), includes, excludes, debugAll, debugPrefixes),
+          newPaths(),
           taskFactory,
           new ConnectionDetector.Impl(channelFactory),
           watcherFactory,
           new NativeFileAccess(Paths.get(localRoot).toAbsolutePath()),
           channelFactory);
+        if (rawPort > 0) {
+          client.useRawTransport(new InetSocketAddress(host, rawPort));
+        }
         client.startSession();
         // dumb way of waiting until they hit control-c
         CountDownLatch cl = new CountDownLatch(1);
@@ -239,6 +337,127 @@ public class Mirror {
         Thread.currentThread().interrupt();
       }
     }
+
+    private MirrorPaths newPaths() {
+      PathRules includes = new PathRules();
+      PathRules excludes = new PathRules();
+      setupIncludesAndExcludes(includes, excludes, extraIncludes, extraExcludes, useInternalPatterns);
+      return new MirrorPaths(
+        Paths.get(localRoot),
+        Paths.get(remoteRoot),
+        includes,
+        excludes,
+        debugAll,
+        debugPrefixes,
+        new QuiescencePolicy(new PathRules(quietPatterns), Duration.ofMillis(quietMillis)));
+    }
+  }
+
+  @Command(name = "daemon", description = "syncs many roots in one process, over one connection")
+  public static class DaemonCommand extends BaseCommand {
+    @Option(name = { "-h", "--host" }, description = "host name of remote server to connect to")
+    public String host;
+
+    @Option(name = { "-p", "--port" }, description = "port remote server to connect to, default: " + defaultPort)
+    public int port = defaultPort;
+
+    @Option(name = { "-c", "--config" }, description = "file with the client options for each root, one root per line, e.g. -l ./code -r ./code -i *.jar, default: ~/.mirror/roots")
+    public String config = Paths.get(System.getProperty("user.home"), ".mirror", "roots").toString();
+
+    /** The {@code mirror client} options that are per-root, vs. the rest that the daemon shares across roots. */
+    private static final Set<String> rootOptions = ImmutableSet.of(
+      "-l",
+      "--local-root",
+      "-r",
+      "--remote-root",
+      "-i",
+      "--include",
+      "-e",
+      "--exclude",
+      "-d",
+      "--debug-all",
+      "--debug-prefixes",
+      "-q",
+      "--quiet-pattern",
+      "--quiet-millis",
+      "-li",
+      "--use-internal-patterns");
+
+    @Override
+    protected void runIfChecksOkay() {
+      SharedChannelFactory channelFactory = new SharedChannelFactory(newChannel(host, port));
+      // the detector needs its own channels, to really try new connections
+      ConnectionDetector detector = new ConnectionDetector.Shared(new ConnectionDetector.Impl(() -> newChannel(host, port)));
+      TaskFactory taskFactory = new ThreadBasedTaskFactory();
+      FileWatcherFactory watcherFactory = newWatcherFactory(taskFactory);
+      MirrorDaemon daemon = new MirrorDaemon(paths -> new MirrorClient(
+        paths,
+        taskFactory,
+        detector,
+        watcherFactory,
+        new NativeFileAccess(paths.root.toAbsolutePath()),
+        channelFactory));
+      try {
+        // pick up added/removed roots by watching the config file
+        File file = new File(config);
+        long lastModified = -1;
+        while (true) {
+          if (file.lastModified() != lastModified) {
+            lastModified = file.lastModified();
+            daemon.setRoots(readRoots(file));
+          }
+          Thread.sleep(2_000);
+        }
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      } finally {
+        daemon.stop();
+        channelFactory.shutdown();
+      }
+    }
+
+    /**
+     * @return the paths for each line of {@code file}, which are each parsed like {@code mirror client}'s options
+     *
+     * Only the options in {@link #rootOptions} are allowed, because everything else (the host, port, watcher,
+     * and transport) is shared across the daemon's roots, so lines with any other option are skipped with an error,
+     * instead of silently ignoring them.
+     */
+    private static Map<String, MirrorPaths> readRoots(File file) {
+      Map<String, MirrorPaths> roots = new LinkedHashMap<>();
+      if (!file.exists()) {
+        log.warn("Config file " + file + " does not exist");
+        return roots;
+      }
+      List<String> lines;
+      try {
+        lines = Files.readAllLines(file.toPath());
+      } catch (IOException e) {
+        log.error("Could not read " + file, e);
+        return roots;
+      }
+      com.github.rvesse.airline.Cli<Runnable> cli = new com.github.rvesse.airline.Cli<>(Mirror.class);
+      for (String line : lines) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        List<String> args = new ArrayList<>();
+        args.add("client");
+        args.addAll(Arrays.asList(line.split("\\s+")));
+        Optional<String> unsupported = args.stream().filter(a -> a.startsWith("-") && !rootOptions.contains(substringBefore(a, "="))).findFirst();
+        if (unsupported.isPresent()) {
+          log.error("Could not parse root: " + line + ", " + unsupported.get() + " is not supported per root, only " + rootOptions);
+          continue;
+        }
+        try {
+          roots.put(line, ((MirrorClientCommand) cli.parse(args.toArray(new String[0]))).newPaths());
+        } catch (RuntimeException e) {
+          log.error("Could not parse root: " + line, e);
+        }
+      }
+      return roots;
+    }
   }
 
   public static void setupIncludesAndExcludes(
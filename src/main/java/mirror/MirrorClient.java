@@ -3,6 +3,7 @@ package mirror;
 import static mirror.Utils.withTimeout;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.time.Duration;
 import java.util.List;
@@ -36,6 +37,7 @@ public class MirrorClient {
   private final ChannelFactory channelFactory;
   private volatile TaskLogic sessionStarter;
   private volatile MirrorSession session;
+  private volatile InetSocketAddress rawAddress;
 
   public MirrorClient(
     MirrorPaths paths,
@@ -52,12 +54,30 @@ public class MirrorClient {
     this.channelFactory = channelFactory;
   }
 
+  /**
+   * Streams our updates over a {@link RawConnection} to the server's {@link RawServer} at {@code address},
+   * instead of grpc, which is still used to set up each session.
+   */
+  public void useRawTransport(InetSocketAddress address) {
+    this.rawAddress = address;
+  }
+
   /** Connects to the server and starts a sync session. */
   public void startSession() throws InterruptedException {
+    start().await();
+  }
+
+  /**
+   * Starts connecting to the server in the background, e.g. for the daemon, which shouldn't
+   * block its other roots while the server is unavailable.
+   *
+   * @return a latch that is released once the first session has started
+   */
+  public CountDownLatch start() {
     CountDownLatch started = new CountDownLatch(1);
     sessionStarter = new SessionStarter(channelFactory, started);
     taskFactory.runTask(sessionStarter);
-    started.await();
+    return started;
   }
 
   private void startSession(ChannelFactory channelFactory, CountDownLatch onFailure) {
@@ -98,7 +118,12 @@ public class MirrorClient {
         .setRemotePath(paths.remoteRoot.toString())
         .setClientId(getClientId())
         .setVersion(Mirror.getVersion())
+        .addCapabilities(BatchingOutgoingConnection.capability)
         .addAllState(localState);
+      if (rawAddress == null) {
+        // the raw transport is meant for fast networks, where gzipping isn't worth it
+        req.addCapabilities(PayloadCache.gzipCapability);
+      }
       paths.addParameters(req);
       withTimeout(stub).initialSync(req.build(), new StreamObserver<InitialSyncResponse>() {
         @Override
@@ -132,11 +157,22 @@ public class MirrorClient {
       }
 
       String sessionId = response.getSessionId();
+      session.batchSends(response.getCapabilitiesList().contains(BatchingOutgoingConnection.capability));
       List<Update> remoteState = response.getStateList();
       log.info("Server has " + remoteState.size() + " paths");
       session.addInitialRemoteUpdates(remoteState);
       log.info("Tree populated");
 
+      if (rawAddress != null) {
+        RawConnection connection = RawConnection.connect(rawAddress);
+        session.addStoppedCallback(connection::close);
+        // send over the sessionId as a fake update, like with streamUpdates
+        connection.send(Update.newBuilder().setPath(sessionId).build());
+        taskFactory.runTask(new RawIncoming(connection, session));
+        session.diffAndStartPolling(new RawOutgoingConnection(connection));
+        return;
+      }
+
       AtomicReference<StreamObserver<Update>> outgoingChangesRef = new AtomicReference<>();
       ClientResponseObserver<Update, Update> incomingChanges = new ClientResponseObserver<Update, Update>() {
         @Override
@@ -180,7 +216,9 @@ public class MirrorClient {
 
   public void stop() {
     taskFactory.stopTask(sessionStarter);
-    session.stop();
+    if (session != null) {
+      session.stop();
+    }
   }
 
   private class SessionStarter implements TaskLogic {
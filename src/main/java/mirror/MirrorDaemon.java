@@ -0,0 +1,82 @@
+package mirror;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Runs a {@link MirrorClient} for each of many roots in one JVM.
+ *
+ * Running a {@code mirror client} per repo means a JVM, channel, and set of threads per
+ * repo, and after a disconnect, each of them reconnects on its own. Instead, the daemon
+ * hosts all of the roots in one process, where they share one channel (see
+ * {@link SharedChannelFactory}), one connection detector, one TaskFactory, and our
+ * JVM-wide pools (e.g. for hashing and reading files).
+ *
+ * Roots can be added and removed while running, without touching the other roots.
+ */
+public class MirrorDaemon {
+
+  private static final Logger log = LoggerFactory.getLogger(MirrorDaemon.class);
+  private final ClientFactory clientFactory;
+  // the running clients, keyed by a description of their root, e.g. its line in the config file
+  private final Map<String, MirrorClient> clients = new HashMap<>();
+
+  /** Creates the client for a root, with the daemon's shared resources. */
+  public interface ClientFactory {
+    MirrorClient newClient(MirrorPaths paths);
+  }
+
+  public MirrorDaemon(ClientFactory clientFactory) {
+    this.clientFactory = clientFactory;
+  }
+
+  /**
+   * Starts a client for each root in {@code roots} that isn't already running, and stops
+   * the clients for roots that are no longer in {@code roots}.
+   *
+   * @param roots each root's paths, keyed by a description of the root, so that if a root's config changes, it's restarted
+   */
+  public synchronized void setRoots(Map<String, MirrorPaths> roots) {
+    Set<String> removed = new HashSet<>(clients.keySet());
+    removed.removeAll(roots.keySet());
+    removed.forEach(this::removeRoot);
+    roots.forEach((key, paths) -> {
+      if (!clients.containsKey(key)) {
+        addRoot(key, paths);
+      }
+    });
+  }
+
+  public synchronized void addRoot(String key, MirrorPaths paths) {
+    log.info("Starting " + paths.root + " -> " + paths.remoteRoot);
+    MirrorClient client = clientFactory.newClient(paths);
+    clients.put(key, client);
+    // don't block the other roots while this one connects
+    client.start();
+  }
+
+  public synchronized void removeRoot(String key) {
+    MirrorClient client = clients.remove(key);
+    if (client != null) {
+      log.info("Stopping " + key);
+      client.stop();
+    }
+  }
+
+  public synchronized void stop() {
+    new HashSet<>(clients.keySet()).forEach(this::removeRoot);
+  }
+
+  @VisibleForTesting
+  synchronized int numberOfRoots() {
+    return clients.size();
+  }
+
+}
@@ -15,24 +15,50 @@ public class MirrorPaths {
   private final PathRules excludes;
   private final boolean debugAll;
   private final List<String> debugPrefixes;
+  private final QuiescencePolicy quiescence;
 
   public static MirrorPaths forTesting(Path local) {
     return new MirrorPaths(local, null, new PathRules(), new PathRules(), false, new ArrayList<>());
   }
 
   public MirrorPaths(Path root, Path remoteRoot, PathRules includes, PathRules excludes, boolean debugAll, List<String> debugPrefixes) {
+    this(root, remoteRoot, includes, excludes, debugAll, debugPrefixes, QuiescencePolicy.none());
+  }
+
+  public MirrorPaths(
+    Path root,
+    Path remoteRoot,
+    PathRules includes,
+    PathRules excludes,
+    boolean debugAll,
+    List<String> debugPrefixes,
+    QuiescencePolicy quiescence) {
     this.root = root;
     this.remoteRoot = remoteRoot;
     this.includes = includes;
     this.excludes = excludes;
     this.debugAll = debugAll;
     this.debugPrefixes = debugPrefixes;
+    this.quiescence = quiescence;
   }
 
   public void addParameters(InitialSyncRequest.Builder req) {
     req.addAllIncludes(includes.getLines());
     req.addAllExcludes(excludes.getLines());
     req.addAllDebugPrefixes(debugPrefixes);
+    quiescence.addParameters(req);
+  }
+
+  public PathRules getIncludes() {
+    return includes;
+  }
+
+  public PathRules getExcludes() {
+    return excludes;
+  }
+
+  public QuiescencePolicy getQuiescence() {
+    return quiescence;
   }
 
   public boolean isIncluded(String path, boolean directory) {
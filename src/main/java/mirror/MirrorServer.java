@@ -1,16 +1,19 @@
 package mirror;
 
 import java.nio.file.Paths;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.Striped;
 
 import io.grpc.Metadata;
 import io.grpc.ServerCall;
@@ -28,6 +31,16 @@ import mirror.tasks.TaskFactory;
  * In theory we can juggle multiple sessions, potentially even to the same destination
  * path, and things should just work (the sessions won't communicate directly, but instead
  * will see each other's file writes just like any other writer).
+ *
+ * Sessions for the same root can share a single watcher (and its view of our local
+ * files) via {@link SharedFileWatcherFactory}.
+ *
+ * Sessions are set up concurrently, e.g. so one client's multi-minute initial sync
+ * doesn't hold up everyone else reconnecting after a network blip; we only serialize
+ * the setup of sessions with the same session id, i.e. the same client and path.
+ *
+ * Clients can also stream their updates over a {@link RawServer} connection instead of
+ * {@link #streamUpdates}.
  */
 public class MirrorServer extends MirrorImplBase {
 
@@ -44,30 +57,76 @@ public class MirrorServer extends MirrorImplBase {
   }
 
   private static final Logger log = LoggerFactory.getLogger(MirrorServer.class);
-  private final Map<String, MirrorSession> sessions = new HashMap<>();
+  private final Map<String, MirrorSession> sessions = new ConcurrentHashMap<>();
+  private final Striped<Lock> sessionLocks = Striped.lazyWeakLock(64);
   private final TaskFactory taskFactory;
   private final FileWatcherFactory watcherFactory;
   private final FileAccessFactory fileAccessFactory;
   private final FileAccess root;
+  private final Relay relay;
+  private final AdmissionController admission;
+  private volatile Executor initialSyncExecutor;
 
   public MirrorServer(TaskFactory taskFactory, FileAccessFactory fileAccessFactory, FileWatcherFactory watcherFactory) {
     this(taskFactory, fileAccessFactory, watcherFactory, fileAccessFactory.newFileAccess(Paths.get("./")));
   }
 
+  /**
+   * @param relay to forward each session's saved updates to the other sessions on the same root, or null
+   * @param admission limits how many initial syncs run at once, and what each session can use
+   */
+  public MirrorServer(
+    TaskFactory taskFactory,
+    FileAccessFactory fileAccessFactory,
+    FileWatcherFactory watcherFactory,
+    Relay relay,
+    AdmissionController admission) {
+    this(taskFactory, fileAccessFactory, watcherFactory, fileAccessFactory.newFileAccess(Paths.get("./")), relay, admission);
+  }
+
   public MirrorServer(TaskFactory taskFactory, FileAccessFactory fileAccessFactory, FileWatcherFactory watcherFactory, FileAccess root) {
+    this(taskFactory, fileAccessFactory, watcherFactory, root, null, AdmissionController.defaults());
+  }
+
+  public MirrorServer(
+    TaskFactory taskFactory,
+    FileAccessFactory fileAccessFactory,
+    FileWatcherFactory watcherFactory,
+    FileAccess root,
+    Relay relay,
+    AdmissionController admission) {
     this.taskFactory = taskFactory;
     this.fileAccessFactory = fileAccessFactory;
     this.watcherFactory = watcherFactory;
     this.root = root;
+    this.relay = relay;
+    this.admission = admission;
   }
 
   @Override
-  public synchronized void timeCheck(TimeCheckRequest request, StreamObserver<TimeCheckResponse> responseObserver) {
+  public void timeCheck(TimeCheckRequest request, StreamObserver<TimeCheckResponse> responseObserver) {
     sendErrorIfClockDriftExists(request, responseObserver);
   }
 
+  /**
+   * Runs initialSyncs on {@code executor}, instead of the thread grpc calls us on, e.g. if
+   * grpc uses a direct executor, where our blocking would stall the event loop.
+   */
+  public void runInitialSyncsOn(Executor executor) {
+    this.initialSyncExecutor = executor;
+  }
+
   @Override
-  public synchronized void initialSync(InitialSyncRequest request, StreamObserver<InitialSyncResponse> responseObserver) {
+  public void initialSync(InitialSyncRequest request, StreamObserver<InitialSyncResponse> responseObserver) {
+    Executor executor = initialSyncExecutor;
+    if (executor != null) {
+      executor.execute(() -> doInitialSync(request, responseObserver));
+    } else {
+      doInitialSync(request, responseObserver);
+    }
+  }
+
+  private void doInitialSync(InitialSyncRequest request, StreamObserver<InitialSyncResponse> responseObserver) {
     if (sendErrorIfRequestedPathDoesNotExist(request, responseObserver)) {
       return;
     }
@@ -78,52 +137,102 @@ public class MirrorServer extends MirrorImplBase {
       new PathRules(request.getIncludesList()),
       new PathRules(request.getExcludesList()),
       request.getDebugAll(),
-      request.getDebugPrefixesList());
+      request.getDebugPrefixesList(),
+      QuiescencePolicy.fromRequest(request));
 
     String sessionId = request.getRemotePath() + ":" + request.getClientId();
-    if (sessions.get(sessionId) != null) {
-      log.info("Stopping prior session " + sessionId);
-      sessions.get(sessionId).stop();
+    // a reconnecting client might still have a prior initialSync running, so don't interleave them
+    Lock lock = sessionLocks.get(sessionId);
+    // stop any prior session first, as it might be holding an admission that we'd otherwise wait on
+    lock.lock();
+    try {
+      stopPriorSession(sessionId);
+    } finally {
+      lock.unlock();
     }
 
-    log.info("Starting new session " + sessionId);
-    MirrorSession session = new MirrorSession(taskFactory, paths, fileAccessFactory.newFileAccess(paths.root.toAbsolutePath()), watcherFactory);
-
-    sessions.put(sessionId, session);
-    session.addStoppedCallback(() -> {
-      sessions.remove(sessionId);
-    });
+    // after a reconnect storm, only run a few initial syncs at once, and queue the rest; we wait outside
+    // of the lock, so we don't block the setup of other sessions that share our lock's stripe
+    AdmissionController.Admission a;
+    try {
+      a = admission.admitInitialSync(sessionId);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      responseObserver.onCompleted();
+      return;
+    }
 
+    lock.lock();
     try {
-      // get our current state
-      List<Update> serverState = session.calcInitialState();
-      log.info("Server has " + serverState.size() + " paths");
-      log.info("Client has " + request.getStateList().size() + " paths");
+      // our client might have reconnected again while we were queued
+      stopPriorSession(sessionId);
+
+      log.info("Starting new session " + sessionId);
+      MirrorSession session;
+      try {
+        session = new MirrorSession(taskFactory, paths, fileAccessFactory.newFileAccess(paths.root.toAbsolutePath()), watcherFactory, relay);
+      } catch (RuntimeException e) {
+        a.close();
+        throw e;
+      }
+      // hold our admission until the files the client is missing have been sent, or we stop
+      session.releaseAfterInitialSend(a);
+
+      session.usePayloadCache(PayloadCache.shared, paths.root, request.getCapabilitiesList().contains(PayloadCache.gzipCapability));
+      session.limitSends(admission.newSendLimiter());
+      session.batchSends(request.getCapabilitiesList().contains(BatchingOutgoingConnection.capability));
+
+      sessions.put(sessionId, session);
+      session.addStoppedCallback(() -> {
+        // only remove ourselves, and not a newer session for the same client
+        sessions.remove(sessionId, session);
+      });
+
+      try {
+        // get our current state
+        List<Update> serverState = session.calcInitialState();
+        log.info("Server has " + serverState.size() + " paths");
+        log.info("Client has " + request.getStateList().size() + " paths");
 
-      // record the client's current state
-      session.addInitialRemoteUpdates(request.getStateList());
-      log.info("Tree populated");
+        // record the client's current state
+        session.addInitialRemoteUpdates(request.getStateList());
+        log.info("Tree populated");
 
-      InitialSyncResponse.Builder response = InitialSyncResponse.newBuilder().setSessionId(sessionId).addAllState(serverState);
+        InitialSyncResponse.Builder response = InitialSyncResponse
+          .newBuilder()
+          .setSessionId(sessionId)
+          .addCapabilities(BatchingOutgoingConnection.capability)
+          .addAllState(serverState);
 
-      if (!StringUtils.isEmpty(request.getVersion()) && !request.getVersion().equals(Mirror.getVersion())) {
-        String warningMessage = String.format("Server version %s does not match client version %s", Mirror.getVersion(), request.getVersion());
-        log.warn(warningMessage + " for client " + request.getClientId());
-        response.addWarningMessages(warningMessage);
+        if (!StringUtils.isEmpty(request.getVersion()) && !request.getVersion().equals(Mirror.getVersion())) {
+          String warningMessage = String.format("Server version %s does not match client version %s", Mirror.getVersion(), request.getVersion());
+          log.warn(warningMessage + " for client " + request.getClientId());
+          response.addWarningMessages(warningMessage);
+        }
+
+        // send back our state for the client to seed their own sync queue with our missing/stale paths
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+      } catch (Exception e) {
+        log.error("Error in initialSync", e);
+        session.stop();
+        responseObserver.onCompleted();
       }
+    } finally {
+      lock.unlock();
+    }
+  }
 
-      // send back our state for the client to seed their own sync queue with our missing/stale paths
-      responseObserver.onNext(response.build());
-      responseObserver.onCompleted();
-    } catch (Exception e) {
-      log.error("Error in initialSync", e);
-      session.stop();
-      responseObserver.onCompleted();
+  private void stopPriorSession(String sessionId) {
+    MirrorSession prior = sessions.get(sessionId);
+    if (prior != null) {
+      log.info("Stopping prior session " + sessionId);
+      prior.stop();
     }
   }
 
   @Override
-  public synchronized StreamObserver<Update> streamUpdates(StreamObserver<Update> _outgoingUpdates) {
+  public StreamObserver<Update> streamUpdates(StreamObserver<Update> _outgoingUpdates) {
     // this is kind of odd, but we don't know the right session for this
     // call until we get the first streaming update (grpc doesn't allow
     // a method call with both unary+streaming arguments).
@@ -170,6 +279,11 @@ public class MirrorServer extends MirrorImplBase {
     responseObserver.onCompleted();
   }
 
+  /** @return the session that {@link #initialSync} set up for {@code sessionId}, or null, e.g. for {@link RawServer} */
+  MirrorSession getSession(String sessionId) {
+    return sessions.get(sessionId);
+  }
+
   @VisibleForTesting
   int numberOfSessions() {
     return sessions.size();
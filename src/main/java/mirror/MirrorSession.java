@@ -1,12 +1,17 @@
 package mirror;
 
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.RateLimiter;
+
 import io.grpc.StatusRuntimeException;
+import mirror.hash.ContentHasher;
 import mirror.tasks.TaskFactory;
 import mirror.tasks.TaskLogic;
 import mirror.tasks.TaskPool;
@@ -27,18 +32,31 @@ import mirror.tasks.TaskPool;
 public class MirrorSession {
 
   private final Logger log = LoggerFactory.getLogger(MirrorSession.class);
+  // how long we hold an admission for a session whose remote hasn't called diffAndStartPolling
+  private static final Duration noStreamTimeout = Duration.ofMinutes(1);
   private final TaskPool taskPool;
   private final FileAccess fileAccess;
   private final Queues queues = new Queues();
   private final QueueWatcher queueWatcher = new QueueWatcher(queues);
+  private final IncomingSpool spool = IncomingSpool.newTempSpool();
   private final SaveToLocal saveToLocal;
   private final FileWatcher fileWatcher;
   private final UpdateTree tree;
   private final SyncLogic syncLogic;
+  private final Relay.Peer relay;
+  private volatile PayloadCache.View payloads;
+  private volatile RateLimiter sendLimiter;
+  private volatile boolean batchSends;
   private volatile SaveToRemote saveToRemote;
   private volatile OutgoingConnection outgoingChanges;
+  private volatile AdmissionController.Admission admission;
 
   public MirrorSession(TaskFactory taskFactory, MirrorPaths paths, FileAccess fileAccess, FileWatcherFactory fileWatcherFactory) {
+    this(taskFactory, paths, fileAccess, fileWatcherFactory, null);
+  }
+
+  /** @param relay the relay to forward our saved updates to the other sessions on our root with, or null */
+  public MirrorSession(TaskFactory taskFactory, MirrorPaths paths, FileAccess fileAccess, FileWatcherFactory fileWatcherFactory, Relay relay) {
     this.fileAccess = fileAccess;
     this.fileWatcher = fileWatcherFactory.newWatcher(paths, queues.incomingQueue);
     this.tree = UpdateTree.newRoot(paths);
@@ -46,13 +64,16 @@ public class MirrorSession {
     // Run all our tasks in a pool so they are terminated together
     taskPool = taskFactory.newTaskPool();
 
-    syncLogic = new SyncLogic(queues, fileAccess, tree);
+    // save our local state on stop, so the next session can resume from it, if our FileWatcher supports that
+    syncLogic = new SyncLogic(queues, fileAccess, tree, ContentHasher.shared.getPool(), fileWatcher, TreeSnapshot.forPaths(paths));
     // started in diffAndStartPolling
 
-    saveToLocal = new SaveToLocal(queues, fileAccess);
+    this.relay = relay == null ? null : relay.join(paths, queues.incomingQueue);
+    saveToLocal = this.relay == null ? new SaveToLocal(queues, fileAccess) : new SaveToLocal(queues, fileAccess, this.relay::publish);
     start(saveToLocal);
 
     start(queueWatcher);
+    start(new ReceiveUpdates());
 
     taskPool.addShutdownCallback(() -> {
       if (outgoingChanges != null) {
@@ -63,10 +84,47 @@ public class MirrorSession {
         }
       }
     });
+    taskPool.addShutdownCallback(spool::delete);
+    if (this.relay != null) {
+      taskPool.addShutdownCallback(this.relay::leave);
+    }
   }
 
+  /**
+   * Queues an update from the remote, which we unpack, gunzip, and spool on our own thread,
+   * as we may be called on the transport's thread, e.g. Netty's event loop with {@link TunedTransport}.
+   */
   public void addRemoteUpdate(Update update) {
-    queues.incomingQueue.add(update);
+    queues.received.add(update);
+  }
+
+  private void receive(Update update) {
+    if (update.getBatchCount() > 0) {
+      update.getBatchList().forEach(this::receive);
+      return;
+    }
+    // spool large files now, so the data isn't held in RAM while it waits in the queue/tree
+    queues.incomingQueue.add(spool.spoolIfLarge(PayloadCache.gunzipIfNeeded(update)));
+  }
+
+  /**
+   * Reads the files we send via {@code cache}, so they're only read once across sessions.
+   *
+   * @param root the root directory of our {@link FileAccess}
+   * @param gzip whether the remote said it accepts gzipped data
+   */
+  public void usePayloadCache(PayloadCache cache, Path root, boolean gzip) {
+    this.payloads = cache.forRoot(root, gzip);
+  }
+
+  /** @param sendLimiter limits how many bytes per second we send, or null for no limit */
+  public void limitSends(RateLimiter sendLimiter) {
+    this.sendLimiter = sendLimiter;
+  }
+
+  /** @param batchSends whether the remote said it accepts batched updates, see {@link BatchingOutgoingConnection} */
+  public void batchSends(boolean batchSends) {
+    this.batchSends = batchSends;
   }
 
   public void addStoppedCallback(Runnable callback) {
@@ -81,7 +139,12 @@ public class MirrorSession {
     // updates to the remote (see #startPolling).
     start(fileWatcher);
 
-    initialUpdates.forEach(u -> tree.addLocal(u));
+    // a shared watcher's updates are also in the other sessions' trees, so don't copy them
+    if (fileWatcher.isShared()) {
+      initialUpdates.forEach(u -> tree.addSharedLocal(u));
+    } else {
+      initialUpdates.forEach(u -> tree.addLocal(u));
+    }
 
     // only sync non-ignored files
     List<Update> seedRemote = new ArrayList<>();
@@ -108,16 +171,34 @@ public class MirrorSession {
   }
 
   public void diffAndStartPolling(OutgoingConnection outgoingChanges) {
+    if (batchSends) {
+      outgoingChanges = new BatchingOutgoingConnection(outgoingChanges);
+    }
     this.outgoingChanges = outgoingChanges;
 
     start(syncLogic);
 
-    saveToRemote = new SaveToRemote(queues, fileAccess, outgoingChanges);
+    saveToRemote = new SaveToRemote(queues, fileAccess, outgoingChanges, ByteBudget.shared, relay, payloads, sendLimiter);
     start(saveToRemote);
   }
 
+  /**
+   * Closes {@code admission} once the updates from our initial diff have been sent, or we're stopped,
+   * as sending every file the remote is missing is usually the heaviest part of an initial sync.
+   */
+  public void releaseAfterInitialSend(AdmissionController.Admission admission) {
+    this.admission = admission;
+    taskPool.addShutdownCallback(admission::close);
+    start(new InitialSendWatcher(admission));
+  }
+
   public void stop() {
     log.info("Stopping session");
+    // release our admission right away, e.g. so our reconnecting client can be admitted in our place
+    AdmissionController.Admission a = admission;
+    if (a != null) {
+      a.close();
+    }
     // this won't block; could potentially add a CountDownLatch
     taskPool.stopAllTasks();
   }
@@ -125,4 +206,45 @@ public class MirrorSession {
   private void start(TaskLogic logic) {
     taskPool.runTask(logic);
   }
+
+  /** Closes an admission once our initial diff has been sent, see {@link #releaseAfterInitialSend}. */
+  private class InitialSendWatcher implements TaskLogic {
+    private final AdmissionController.Admission admission;
+    private final long startMillis = System.currentTimeMillis();
+
+    private InitialSendWatcher(AdmissionController.Admission admission) {
+      this.admission = admission;
+    }
+
+    @Override
+    public Duration runOneLoop() {
+      SaveToRemote s = saveToRemote;
+      int initialSends = syncLogic.getInitialSends();
+      if (s != null && initialSends >= 0 && s.getSent() >= initialSends) {
+        log.info("Initial sync sent");
+        admission.close();
+        return Duration.ofMillis(-1);
+      } else if (s == null && System.currentTimeMillis() - startMillis > noStreamTimeout.toMillis()) {
+        // the remote never started streaming, so don't keep other sessions waiting on us
+        log.warn("Remote has not started streaming, releasing admission");
+        admission.close();
+        return Duration.ofMillis(-1);
+      }
+      return Duration.ofMillis(100);
+    }
+  }
+
+  /** Moves the updates the remote sent us onto the incomingQueue, see {@link #addRemoteUpdate}. */
+  private class ReceiveUpdates implements TaskLogic {
+    @Override
+    public Duration runOneLoop() throws InterruptedException {
+      Update u = queues.received.take();
+      try {
+        receive(u);
+      } catch (RuntimeException e) {
+        log.error("Exception receiving " + u.getPath(), e);
+      }
+      return null;
+    }
+  }
 }
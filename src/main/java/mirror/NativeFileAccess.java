@@ -1,15 +1,17 @@
 package mirror;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.AccessDeniedException;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 
 import org.apache.commons.io.FileUtils;
@@ -18,6 +20,7 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Charsets;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 
 public class NativeFileAccess implements FileAccess {
 
@@ -36,6 +39,7 @@ public class NativeFileAccess implements FileAccess {
   }
 
   private final Path rootDirectory;
+  private volatile ContentHashCache hashCache;
 
   public NativeFileAccess(Path rootDirectory) {
     this.rootDirectory = rootDirectory;
@@ -55,10 +59,59 @@ public class NativeFileAccess implements FileAccess {
     }
   }
 
+  @Override
+  public void moveInto(Path relative, Path absoluteSource) throws IOException {
+    Path path = rootDirectory.resolve(relative);
+    mkdir(path.getParent().toAbsolutePath());
+    try {
+      doMove(absoluteSource, path);
+    } catch (AccessDeniedException ade) {
+      // like write, assume "newer always wins" and move it anyway; replacing a file needs its
+      // directory to be writable (and on some file systems, the file itself), so make them
+      // writable, but then put back the directory's permissions, as we only meant to change the file
+      Path directory = path.getParent().toAbsolutePath();
+      int mode = NativeFileAccessUtils.getMode(directory);
+      NativeFileAccessUtils.setWritable(directory);
+      if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+        NativeFileAccessUtils.setWritable(path);
+      }
+      try {
+        doMove(absoluteSource, path);
+      } finally {
+        NativeFileAccessUtils.setMode(directory, mode);
+      }
+    }
+  }
+
+  /**
+   * Reads the file into a buffer sized to the file, and wraps it without copying.
+   *
+   * We used to use {@code ByteString.readFrom}, but that doesn't know the file size,
+   * so it reads into successively larger chunks and then copies them together.
+   *
+   * This is a heap buffer even for large files: the ByteString keeps it for as long as grpc
+   * (or our queues) hold the update, so a direct buffer would only be freed whenever the GC
+   * got around to it, and sending many large files could hit MaxDirectMemorySize. (We don't
+   * memory map them either, because build tools often truncate/rewrite files while we're
+   * sending them, and touching a truncated mapping crashes the accessing thread.)
+   */
   @Override
   public ByteString read(Path relative) throws IOException {
-    try (FileInputStream fis = new FileInputStream(resolve(relative).toFile())) {
-      return ByteString.readFrom(fis);
+    try (FileChannel c = FileChannel.open(resolve(relative), StandardOpenOption.READ)) {
+      long size = c.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("File is too large to send: " + relative);
+      }
+      ByteBuffer data = ByteBuffer.allocate((int) size);
+      // if the file shrinks while we read it, we'll just send what we got, and pick up the next write later
+      while (data.hasRemaining() && c.read(data) != -1) {
+      }
+      data.flip();
+      // the buffer is never touched again, so it's safe to share it with the ByteString
+      return UnsafeByteOperations.unsafeWrap(data);
+    } catch (NoSuchFileException e) {
+      // keep the FileInputStream-style exception, which our callers treat as a transient file
+      throw new FileNotFoundException(e.getMessage());
     }
   }
 
@@ -121,6 +174,11 @@ public class NativeFileAccess implements FileAccess {
     return resolve(relativePath).toFile().exists();
   }
 
+  @Override
+  public Path getAbsolutePath(Path relativePath) {
+    return resolve(relativePath).toAbsolutePath();
+  }
+
   private Path resolve(Path relativePath) {
     return rootDirectory.resolve(relativePath);
   }
@@ -140,6 +198,11 @@ public class NativeFileAccess implements FileAccess {
     return resolve(relativePath).toFile().isDirectory();
   }
 
+  private static void doMove(Path source, Path path) throws IOException {
+    // this is a cheap rename if the source is on the same file system, and a disk-to-disk copy if not
+    Files.move(source, path, StandardCopyOption.REPLACE_EXISTING);
+  }
+
   private static void doWrite(ByteBuffer data, Path path) throws IOException {
     FileChannel c = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
     try {
@@ -180,4 +243,22 @@ public class NativeFileAccess implements FileAccess {
     NativeFileAccessUtils.setExecutable(resolve(relativePath));
   }
 
+  @Override
+  public String getContentHash(Path relativePath) throws IOException {
+    return hashCache().get(resolve(relativePath));
+  }
+
+  @Override
+  public void setContentHash(Path relativePath, String hash) throws IOException {
+    hashCache().put(resolve(relativePath), hash);
+  }
+
+  // lazily created, as most NativeFileAccess instances (e.g. in the file watchers) never hash
+  private ContentHashCache hashCache() {
+    if (hashCache == null) {
+      hashCache = ContentHashCache.forRoot(rootDirectory.toAbsolutePath());
+    }
+    return hashCache;
+  }
+
 }
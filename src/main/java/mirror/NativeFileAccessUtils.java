@@ -34,8 +34,19 @@ public class NativeFileAccessUtils {
     posix.chmod(absolutePath.toFile().toString(), s.mode() | Integer.parseInt("0700", 8));
   }
 
+  public static int getMode(Path absolutePath) {
+    return posix.stat(absolutePath.toFile().toString()).mode() & Integer.parseInt("07777", 8);
+  }
+
+  public static void setMode(Path absolutePath, int mode) {
+    posix.chmod(absolutePath.toFile().toString(), mode);
+  }
+
   public static boolean isExecutable(Path absolutePath) throws IOException {
-    Set<PosixFilePermission> p = Files.getPosixFilePermissions(absolutePath);
+    return isExecutable(Files.getPosixFilePermissions(absolutePath));
+  }
+
+  public static boolean isExecutable(Set<PosixFilePermission> p) {
     return p.contains(PosixFilePermission.GROUP_EXECUTE)
       || p.contains(PosixFilePermission.OWNER_EXECUTE)
       || p.contains(PosixFilePermission.OTHERS_EXECUTE);
@@ -1,5 +1,8 @@
 package mirror;
 
+import java.io.IOException;
+import java.nio.file.Path;
+
 /**
  * API for sending updates to the remote session.
  *
@@ -10,6 +13,20 @@ public interface OutgoingConnection {
 
   void send(Update update);
 
+  /** Sends anything that we've buffered, e.g. a partial batch, before the caller waits for more updates. */
+  default void flush() {
+  }
+
+  /** @return whether {@link #sendFile} can send a file's data straight from disk, instead of it being read onto the heap first */
+  default boolean canSendFiles() {
+    return false;
+  }
+
+  /** Sends {@code update} with the current contents of {@code absolutePath} as its data. */
+  default void sendFile(Update update, Path absolutePath) throws IOException {
+    throw new UnsupportedOperationException();
+  }
+
   boolean isConnected();
 
   void awaitReconnected();
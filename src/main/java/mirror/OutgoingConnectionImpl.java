@@ -12,7 +12,12 @@ public class OutgoingConnectionImpl implements OutgoingConnection {
 
   @Override
   public void send(Update update) {
-    outgoingChanges.onNext(update);
+    if (update.getDataGzipped() && outgoingChanges instanceof BlockingStreamObserver) {
+      // don't have the transport gzip it again
+      ((BlockingStreamObserver<Update>) outgoingChanges).onNext(update, false);
+    } else {
+      outgoingChanges.onNext(update);
+    }
   }
 
   @Override
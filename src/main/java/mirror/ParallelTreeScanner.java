@@ -0,0 +1,116 @@
+package mirror;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Walks a directory tree with a fork/join task per directory.
+ *
+ * {@code Files.walkFileTree} is single-threaded, so a scan of a large tree is bound by
+ * the latency of each stat, instead of what the disk (or page cache) can actually do
+ * with many requests in flight. We also read {@link PosixFileAttributes} for each
+ * entry, so callers get the permissions (e.g. the executable bit) from the same stat
+ * as the modtime.
+ *
+ * Results are streamed to a {@link Visitor} as they're found, from multiple threads,
+ * but each directory is always visited before its children.
+ */
+public class ParallelTreeScanner {
+
+  /** Receives each path that is found; must be thread-safe. */
+  public interface Visitor {
+    /** @return whether to descend into {@code directory} */
+    boolean visitDirectory(Path directory, PosixFileAttributes attrs) throws IOException;
+
+    /** Called for both files and symlinks, as symlinks are not followed. */
+    void visitFile(Path file, PosixFileAttributes attrs) throws IOException;
+  }
+
+  // scanning is mostly waiting on stat calls, so use more threads than we have cores
+  static final ForkJoinPool pool = new ForkJoinPool(Math.max(8, Runtime.getRuntime().availableProcessors() * 2));
+
+  /**
+   * Scans {@code directory} and everything under it, blocking until complete.
+   *
+   * Paths that are deleted while we're scanning them are skipped.
+   */
+  public static void scan(Path directory, Visitor visitor) throws IOException {
+    PosixFileAttributes attrs;
+    try {
+      attrs = readAttributes(directory);
+    } catch (NoSuchFileException e) {
+      return;
+    }
+    try {
+      pool.invoke(new ScanDirectory(directory, attrs, visitor));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  public static PosixFileAttributes readAttributes(Path path) throws IOException {
+    return Files.readAttributes(path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+  }
+
+  private static class ScanDirectory extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final Path directory;
+    private final PosixFileAttributes attrs;
+    private final Visitor visitor;
+
+    private ScanDirectory(Path directory, PosixFileAttributes attrs, Visitor visitor) {
+      this.directory = directory;
+      this.attrs = attrs;
+      this.visitor = visitor;
+    }
+
+    @Override
+    protected void compute() {
+      try {
+        if (!visitor.visitDirectory(directory, attrs)) {
+          return;
+        }
+        List<ScanDirectory> children = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+          for (Path entry : entries) {
+            try {
+              PosixFileAttributes entryAttrs = readAttributes(entry);
+              if (entryAttrs.isDirectory()) {
+                children.add(new ScanDirectory(entry, entryAttrs, visitor));
+              } else {
+                visitor.visitFile(entry, entryAttrs);
+              }
+            } catch (NoSuchFileException | FileNotFoundException e) {
+              // the entry was deleted while we were scanning it
+            }
+          }
+        } catch (NoSuchFileException | NotDirectoryException e) {
+          // the directory was deleted (or replaced) since we stat'd it
+        } catch (DirectoryIteratorException e) {
+          if (!(e.getCause() instanceof NoSuchFileException)) {
+            throw e.getCause();
+          }
+        }
+        invokeAll(children);
+      } catch (NoSuchFileException | FileNotFoundException e) {
+        // the directory was deleted before the visitor could read it
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,209 @@
+package mirror;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.protobuf.ByteString;
+
+import mirror.tasks.TaskLogic;
+
+/**
+ * Caches recently read file data, both raw and gzipped, across all sessions in the JVM.
+ *
+ * When a build rewrites its artifacts on a server with several clients, each session's
+ * SaveToRemote would otherwise read (and grpc would gzip) the same files once per
+ * session. Instead, sessions ask us for the data, and we read/compress each version
+ * of a file once, even if several sessions ask for it at the same time.
+ *
+ * Entries are keyed by the file's absolute path, modtime, and size, so a changed file
+ * is a miss rather than stale data, and the cache is bounded by {@code maxBytes}.
+ */
+public class PayloadCache {
+
+  private static final Logger log = LoggerFactory.getLogger(PayloadCache.class);
+  /** The capability a peer sends if it can receive {@link Update#getDataGzipped()} updates. */
+  public static final String gzipCapability = "gzip-data";
+  // small files don't compress well enough to be worth it, and the transport will still gzip them
+  private static final int minGzipBytes = 4 * 1024;
+  public static final PayloadCache shared = new PayloadCache(256 * 1024 * 1024);
+  private final Cache<Key, ByteString> cache;
+
+  public PayloadCache(long maxBytes) {
+    cache = CacheBuilder
+      .newBuilder()
+      .maximumWeight(maxBytes)
+      .<Key, ByteString> weigher((k, data) -> data.size())
+      .recordStats()
+      .build();
+  }
+
+  /** Reads a file's data, which the cache will only call once per version of the file. */
+  @FunctionalInterface
+  public interface Reader {
+    ByteString read() throws IOException;
+  }
+
+  /**
+   * @return the data of the file at {@code absolutePath}, which has {@code modTime} and {@code size},
+   *   using {@code reader} to read it if it's not already cached
+   */
+  public ByteString getRaw(Path absolutePath, long modTime, long size, Reader reader) throws IOException {
+    return get(new Key(absolutePath, modTime, size, false), () -> reader.read());
+  }
+
+  /** @return the gzipped data of the file, or null if it isn't worth compressing */
+  public ByteString getGzipped(Path absolutePath, long modTime, long size, Reader reader) throws IOException {
+    if (size < minGzipBytes) {
+      return null;
+    }
+    ByteString gzipped = get(new Key(absolutePath, modTime, size, true), () -> {
+      ByteString g = gzip(getRaw(absolutePath, modTime, size, reader));
+      // if it didn't compress, e.g. a jar, it's cheaper for the receiver to get the raw data,
+      // so just remember that, as an empty entry
+      return g.size() < size * 0.9 ? g : ByteString.EMPTY;
+    });
+    return gzipped.isEmpty() ? null : gzipped;
+  }
+
+  /**
+   * @param root the root of the session's {@link FileAccess}
+   * @param gzip whether the session's remote accepts gzipped data
+   */
+  public View forRoot(Path root, boolean gzip) {
+    return new View(root.toAbsolutePath().normalize(), gzip);
+  }
+
+  /** A session's view of the cache, which reads files via its FileAccess. */
+  public class View {
+    private final Path root;
+    private final boolean gzip;
+
+    private View(Path root, boolean gzip) {
+      this.root = root;
+      this.gzip = gzip;
+    }
+
+    /** @return the raw data, and the gzipped data if our remote accepts it, both of the same version of the file */
+    public Payload read(FileAccess fileAccess, Path relativePath) throws IOException {
+      Path absolutePath = root.resolve(relativePath);
+      long modTime = fileAccess.getModifiedTime(relativePath);
+      long size = fileAccess.getFileSize(relativePath);
+      Reader reader = () -> fileAccess.read(relativePath);
+      ByteString raw = getRaw(absolutePath, modTime, size, reader);
+      return new Payload(raw, gzip ? getGzipped(absolutePath, modTime, size, reader) : null);
+    }
+  }
+
+  /** A version of a file's data, and its gzipped data, if it was asked for and worth compressing. */
+  public static class Payload {
+    public final ByteString raw;
+    public final ByteString gzipped;
+
+    private Payload(ByteString raw, ByteString gzipped) {
+      this.raw = raw;
+      this.gzipped = gzipped;
+    }
+  }
+
+  public CacheStats stats() {
+    return cache.stats();
+  }
+
+  /** @return a task that periodically logs our hit rate and evictions, when they've changed */
+  public TaskLogic newStatsLogger(Duration interval) {
+    return new TaskLogic() {
+      private long lastRequests;
+
+      @Override
+      public Duration runOneLoop() {
+        CacheStats s = cache.stats();
+        if (s.requestCount() != lastRequests) {
+          lastRequests = s.requestCount();
+          log.info(
+            "Payload cache: hitRate={}, hits={}, misses={}, evictions={}, bytes={}",
+            String.format("%.2f", s.hitRate()),
+            s.hitCount(),
+            s.missCount(),
+            s.evictionCount(),
+            cache.asMap().values().stream().mapToLong(ByteString::size).sum());
+        }
+        return interval;
+      }
+    };
+  }
+
+  /** @return {@code update} with its data gunzipped, if it was gzipped by the remote */
+  public static Update gunzipIfNeeded(Update update) {
+    if (!update.getDataGzipped()) {
+      return update;
+    }
+    try (InputStream in = new GZIPInputStream(update.getData().newInput())) {
+      return update.toBuilder().setData(ByteString.readFrom(in)).clearDataGzipped().build();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not gunzip " + update.getPath(), e);
+    }
+  }
+
+  private ByteString get(Key key, Reader loader) throws IOException {
+    try {
+      return cache.get(key, () -> loader.read());
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  private static ByteString gzip(ByteString data) throws IOException {
+    ByteString.Output out = ByteString.newOutput(data.size() / 2);
+    try (OutputStream gz = new GZIPOutputStream(out)) {
+      data.writeTo(gz);
+    }
+    return out.toByteString();
+  }
+
+  private static class Key {
+    private final Path path;
+    private final long modTime;
+    private final long size;
+    private final boolean gzipped;
+
+    private Key(Path path, long modTime, long size, boolean gzipped) {
+      this.path = path;
+      this.modTime = modTime;
+      this.size = size;
+      this.gzipped = gzipped;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key o = (Key) other;
+      return path.equals(o.path) && modTime == o.modTime && size == o.size && gzipped == o.gzipped;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(path, modTime, size, gzipped);
+    }
+  }
+
+}
@@ -0,0 +1,357 @@
+package mirror;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static mirror.Utils.resetIfInterrupted;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.TextFormat;
+
+/**
+ * A {@link FileWatcher} that periodically rescans the tree, for filesystems that don't
+ * deliver change events, e.g. NFS, FUSE, or Docker bind mounts.
+ *
+ * To keep each rescan cheap, we remember each directory's modtime and entries; if a
+ * directory's modtime hasn't changed, nothing was added/removed/renamed in it, so we
+ * skip the readdir and just stat the entries we already know about. (POSIX doesn't
+ * bubble modtimes up to parents, so we still have to stat every path, but that's the
+ * bulk of the work we can't avoid without events.) Directories are rescanned in
+ * parallel on the {@link ParallelTreeScanner} pool.
+ *
+ * Subtrees that UpdateTree would ignore anyway, i.e. that match our excludes or the root
+ * .gitignore, e.g. {@code .git} or {@code node_modules}, aren't stat'd or reported at all.
+ * Like {@code WatchmanExpression}, this has to be conservative, so if there are any
+ * includes (which could match something under an ignored directory) we scan everything,
+ * and nested .gitignore files are only applied by UpdateTree.
+ *
+ * The interval between rescans shrinks to {@code minInterval} when we see changes, and
+ * backs off to {@code maxInterval} when we don't. Regardless, we wait long enough after
+ * each rescan to keep our CPU use under {@code cpuBudget}, e.g. 0.05 is 5% of a core.
+ */
+public class PollingFileWatcher implements FileWatcher {
+
+  private static final Logger log = LoggerFactory.getLogger(PollingFileWatcher.class);
+  private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+  // A directory's modtime might not change if it's modified again within its filesystem's
+  // timestamp granularity, so always re-read directories that were modified recently
+  private static final long racyMillis = 2_000;
+  public static final Duration minInterval = Duration.ofMillis(250);
+  public static final Duration maxInterval = Duration.ofSeconds(5);
+  public static final double defaultCpuBudget = 0.05;
+  private final MirrorPaths config;
+  private final Path ourRoot;
+  private final BlockingQueue<Update> queue;
+  private final double cpuBudget;
+  // the last stat of each path we've seen, keyed by absolute path
+  private final Map<Path, Stat> stats = new ConcurrentHashMap<>();
+  // the entries of each directory as of its modtime in stats
+  private final Map<Path, List<Path>> entries = new ConcurrentHashMap<>();
+  private final LongAdder changes = new LongAdder();
+  private final LongAdder cpuNanos = new LongAdder();
+  private Duration interval = minInterval;
+  // the root .gitignore, as of its modtime, so we can skip the subtrees it ignores
+  private volatile PathRules rootIgnores = new PathRules();
+  private long rootIgnoresModTime = -1;
+
+  public PollingFileWatcher(MirrorPaths config, BlockingQueue<Update> queue) {
+    this(config, queue, defaultCpuBudget);
+  }
+
+  public PollingFileWatcher(MirrorPaths config, BlockingQueue<Update> queue, double cpuBudget) {
+    if (cpuBudget <= 0 || cpuBudget > 1) {
+      throw new IllegalArgumentException("cpuBudget should be between 0 and 1: " + cpuBudget);
+    }
+    this.config = config;
+    this.ourRoot = config.root.toAbsolutePath().normalize();
+    this.queue = queue;
+    this.cpuBudget = cpuBudget;
+  }
+
+  @Override
+  public List<Update> performInitialScan() throws IOException {
+    // everything is new, so this puts every path in the queue
+    rescan();
+    List<Update> updates = new ArrayList<>(queue.size());
+    queue.drainTo(updates);
+    return updates;
+  }
+
+  @Override
+  public Duration runOneLoop() {
+    long start = System.nanoTime();
+    try {
+      rescan();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    long wallNanos = System.nanoTime() - start;
+    // fall back on wall time if we can't measure cpu time, which overestimates with a busy disk
+    long usedNanos = threads.isThreadCpuTimeSupported() ? cpuNanos.sumThenReset() : wallNanos;
+    if (changes.sumThenReset() > 0) {
+      interval = minInterval;
+    } else {
+      interval = interval.multipliedBy(2).compareTo(maxInterval) > 0 ? maxInterval : interval.multipliedBy(2);
+    }
+    // if the rescan took c cpu-nanos, waiting w nanos afterwards keeps us at c / (wall + w)
+    Duration budgetWait = Duration.ofNanos(Math.max(0, (long) (usedNanos / cpuBudget) - wallNanos));
+    Duration wait = budgetWait.compareTo(interval) > 0 ? budgetWait : interval;
+    log.trace("Rescan took {}ms wall, {}ms cpu, waiting {}ms", wallNanos / 1_000_000, usedNanos / 1_000_000, wait.toMillis());
+    return wait;
+  }
+
+  private void rescan() throws IOException {
+    PosixFileAttributes attrs;
+    try {
+      attrs = ParallelTreeScanner.readAttributes(ourRoot);
+    } catch (NoSuchFileException e) {
+      log.warn("Root directory {} is missing", ourRoot);
+      return;
+    }
+    readRootIgnoresIfChanged();
+    try {
+      ParallelTreeScanner.pool.invoke(new RescanDirectory(ourRoot, attrs));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  /** Rescans a directory, forking a task for each of its sub-directories. */
+  private class RescanDirectory extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final Path directory;
+    private final PosixFileAttributes attrs;
+
+    private RescanDirectory(Path directory, PosixFileAttributes attrs) {
+      this.directory = directory;
+      this.attrs = attrs;
+    }
+
+    @Override
+    protected void compute() {
+      long start = threads.getCurrentThreadCpuTime();
+      List<RescanDirectory> children = new ArrayList<>();
+      try {
+        Stat previous = stats.get(directory);
+        boolean changed = checkPath(directory, attrs);
+        List<Path> known = entries.get(directory);
+        boolean canSkipReaddir = !changed
+          && known != null
+          && previous != null
+          && System.currentTimeMillis() - previous.modTime > racyMillis;
+        List<Path> current = canSkipReaddir ? known : readDirectory();
+        if (current == null) {
+          return; // deleted since we stat'd it, and our parent will notice
+        }
+        for (Path entry : current) {
+          try {
+            PosixFileAttributes entryAttrs = ParallelTreeScanner.readAttributes(entry);
+            if (isIgnored(entry, entryAttrs.isDirectory())) {
+              // forget it in case it wasn't ignored before, so we'll see it as new if it's un-ignored
+              if (stats.remove(entry) != null) {
+                forgetChildren(entry);
+              }
+              continue;
+            }
+            if (entryAttrs.isDirectory()) {
+              children.add(new RescanDirectory(entry, entryAttrs));
+            } else {
+              checkPath(entry, entryAttrs);
+            }
+          } catch (NoSuchFileException e) {
+            // deleted since the readdir; if we skipped the readdir, our modtime will have changed
+            // and we'll notice next time, otherwise the readdir will notice
+          }
+        }
+        if (!canSkipReaddir) {
+          if (known != null) {
+            Set<Path> removed = new HashSet<>(known);
+            removed.removeAll(current);
+            removed.forEach(PollingFileWatcher.this::putDelete);
+          }
+          entries.put(directory, current);
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      } finally {
+        if (start != -1) {
+          cpuNanos.add(threads.getCurrentThreadCpuTime() - start);
+        }
+      }
+      invokeAll(children);
+    }
+
+    private List<Path> readDirectory() throws IOException {
+      List<Path> current = new ArrayList<>();
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+        for (Path entry : stream) {
+          current.add(entry);
+        }
+        return current;
+      } catch (NoSuchFileException | NotDirectoryException e) {
+        return null;
+      } catch (DirectoryIteratorException e) {
+        if (e.getCause() instanceof NoSuchFileException) {
+          return null;
+        }
+        throw e.getCause();
+      }
+    }
+  }
+
+  private void readRootIgnoresIfChanged() throws IOException {
+    Path path = ourRoot.resolve(".gitignore");
+    long modTime;
+    try {
+      modTime = ParallelTreeScanner.readAttributes(path).lastModifiedTime().toMillis();
+    } catch (NoSuchFileException e) {
+      modTime = 0;
+    }
+    // like directories, re-read it if it was modified recently, in case it changed within the timestamp granularity
+    if (modTime != rootIgnoresModTime || System.currentTimeMillis() - modTime <= racyMillis) {
+      rootIgnores = modTime == 0 ? new PathRules() : new PathRules(FileUtils.readFileToString(path.toFile(), UTF_8));
+      rootIgnoresModTime = modTime;
+    }
+  }
+
+  /** @return whether UpdateTree would ignore {@code path}, and so everything under it, so that we don't need to scan it */
+  private boolean isIgnored(Path path, boolean directory) {
+    if (config.getIncludes().hasAnyRules()) {
+      return false; // an include could match something under it, so leave it to UpdateTree
+    }
+    String relativePath = toRelativePath(path);
+    return config.isExcluded(relativePath, directory) || rootIgnores.matches(relativePath, directory);
+  }
+
+  /** Puts an update for {@code path} if it's new or changed since our last scan, and returns whether it did. */
+  private boolean checkPath(Path path, PosixFileAttributes attrs) throws IOException {
+    Stat stat = new Stat(attrs);
+    Stat previous = stats.put(path, stat);
+    if (stat.equals(previous)) {
+      return false;
+    }
+    if (previous != null && previous.directory && !stat.directory) {
+      // it used to be a directory, so forget about its children
+      forgetChildren(path);
+    }
+    if (path.equals(ourRoot)) {
+      return true; // the root itself isn't synced, but its modtime tells us whether to readdir
+    }
+    String relativePath = toRelativePath(path);
+    Update.Builder ub = Update
+      .newBuilder()
+      .setPath(relativePath)
+      .setModTime(stat.modTime)
+      .setDirectory(stat.directory)
+      .setExecutable(stat.executable)
+      .setLocal(true);
+    if (attrs.isSymbolicLink()) {
+      try {
+        Path symlink = Files.readSymbolicLink(path);
+        ub.setSymlink(symlink.isAbsolute() ? path.getParent().relativize(symlink.normalize()).toString() : symlink.toString());
+      } catch (IOException e) {
+        // ignore as the file probably disappeared, and forget it so we'll look again next time
+        log.debug("Exception reading symlink, assumed stale", e);
+        stats.remove(path);
+        return false;
+      }
+    }
+    if (relativePath.endsWith(".gitignore") && attrs.isRegularFile()) {
+      try {
+        ub.setIgnoreString(FileUtils.readFileToString(path.toFile(), UTF_8));
+      } catch (IOException e) {
+        // ignore as the file probably disappeared
+        log.debug("Exception reading .gitignore, assumed stale", e);
+      }
+    }
+    put(ub.build());
+    return true;
+  }
+
+  private void putDelete(Path path) {
+    stats.remove(path);
+    forgetChildren(path);
+    put(Update.newBuilder().setPath(toRelativePath(path)).setDelete(true).setLocal(true).build());
+  }
+
+  // UpdateTree treats a deleted directory as all of its children being deleted, so we don't put deletes for them
+  private void forgetChildren(Path directory) {
+    List<Path> children = entries.remove(directory);
+    if (children != null) {
+      children.forEach(child -> {
+        stats.remove(child);
+        forgetChildren(child);
+      });
+    }
+  }
+
+  private void put(Update u) {
+    changes.increment();
+    if (log.isTraceEnabled()) {
+      log.trace("Queueing: " + TextFormat.shortDebugString(u));
+    }
+    if (config.shouldDebug(u.getPath())) {
+      log.info("Queueing: " + TextFormat.shortDebugString(u));
+    }
+    resetIfInterrupted(() -> queue.put(u));
+  }
+
+  private String toRelativePath(Path absolutePath) {
+    return ourRoot.relativize(absolutePath).toString();
+  }
+
+  /** The parts of a path's stat that, if unchanged, mean we don't need to put an update for it. */
+  private static class Stat {
+    private final long modTime;
+    private final long size;
+    private final boolean directory;
+    private final boolean symlink;
+    private final boolean executable;
+
+    private Stat(PosixFileAttributes attrs) {
+      this.modTime = attrs.lastModifiedTime().toMillis();
+      this.size = attrs.size();
+      this.directory = attrs.isDirectory();
+      this.symlink = attrs.isSymbolicLink();
+      this.executable = NativeFileAccessUtils.isExecutable(attrs.permissions());
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Stat)) {
+        return false;
+      }
+      Stat o = (Stat) other;
+      return modTime == o.modTime && size == o.size && directory == o.directory && symlink == o.symlink && executable == o.executable;
+    }
+
+    @Override
+    public int hashCode() {
+      return Long.hashCode(modTime);
+    }
+  }
+
+}
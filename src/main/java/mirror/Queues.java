@@ -5,6 +5,8 @@ import java.util.concurrent.LinkedBlockingQueue;
 
 public class Queues {
 
+  // updates as the remote sent them, before MirrorSession unpacks/gunzips/spools them onto the incomingQueue
+  public final BlockingQueue<Update> received = new LinkedBlockingQueue<>();
   // this is probably too large, but hopefully it will avoid inotify overflow exceptions
   public final BlockingQueue<Update> incomingQueue = new LinkedBlockingQueue<>();
   // These need to be large enough so that when the SyncLogic thread is outputting the
@@ -0,0 +1,62 @@
+package mirror;
+
+import java.time.Duration;
+
+/**
+ * Decides which local changes to hold until they've stopped changing, e.g. build outputs.
+ *
+ * A build can rewrite {@code build/} or {@code target/} many times in one run, and we'd
+ * rather send the end result once than every intermediate version. So changes to paths
+ * that match our rules are held until their subtree (the outermost directory, or the
+ * file itself, that matched) has been quiet for {@code quietPeriod}. Changes to other
+ * paths, e.g. source files, are not affected.
+ */
+public class QuiescencePolicy {
+
+  public static final Duration defaultQuietPeriod = Duration.ofSeconds(2);
+  private final PathRules rules;
+  private final Duration quietPeriod;
+
+  public static QuiescencePolicy none() {
+    return new QuiescencePolicy(new PathRules(), defaultQuietPeriod);
+  }
+
+  public QuiescencePolicy(PathRules rules, Duration quietPeriod) {
+    this.rules = rules;
+    this.quietPeriod = quietPeriod;
+  }
+
+  public void addParameters(InitialSyncRequest.Builder req) {
+    req.addAllQuietPatterns(rules.getLines());
+    req.setQuietMillis(quietPeriod.toMillis());
+  }
+
+  /** @return the policy the remote asked for in {@code req} */
+  public static QuiescencePolicy fromRequest(InitialSyncRequest req) {
+    Duration quietPeriod = req.getQuietMillis() > 0 ? Duration.ofMillis(req.getQuietMillis()) : defaultQuietPeriod;
+    return new QuiescencePolicy(new PathRules(req.getQuietPatternsList()), quietPeriod);
+  }
+
+  /**
+   * @return the subtree that {@code path} should be held with, e.g. {@code build} for
+   * {@code build/classes/Foo.class}, or null if changes to {@code path} should not be held
+   */
+  public String findSubtree(String path, boolean directory) {
+    if (!rules.hasAnyRules()) {
+      return null;
+    }
+    // check ancestors first, so the whole subtree is held (and released) together
+    for (int i = path.indexOf('/'); i != -1; i = path.indexOf('/', i + 1)) {
+      String parent = path.substring(0, i);
+      if (rules.matches(parent, true)) {
+        return parent;
+      }
+    }
+    return rules.matches(path, directory) ? path : null;
+  }
+
+  public Duration getQuietPeriod() {
+    return quietPeriod;
+  }
+
+}
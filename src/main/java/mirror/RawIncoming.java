@@ -0,0 +1,85 @@
+package mirror;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import mirror.tasks.TaskLogic;
+
+/**
+ * Reads updates from a {@link RawConnection} into a session, until the connection is closed.
+ *
+ * Like StreamUpdates, on the server the first update is a dummy update with the session id,
+ * which we use to find the session that {@link MirrorServer#initialSync} set up, and then
+ * start its polling with a {@link RawOutgoingConnection}.
+ *
+ * This isn't run in the session's own task pool, so that it can stop the session when
+ * the connection is closed.
+ */
+class RawIncoming implements TaskLogic {
+
+  private static final Logger log = LoggerFactory.getLogger(RawIncoming.class);
+  private final RawConnection connection;
+  private final Function<String, MirrorSession> sessions;
+  private MirrorSession session;
+
+  /** For the client, which already has its session. */
+  RawIncoming(RawConnection connection, MirrorSession session) {
+    this.connection = connection;
+    this.sessions = null;
+    this.session = session;
+  }
+
+  /** For the server, which finds the session with the id in the first update. */
+  RawIncoming(RawConnection connection, Function<String, MirrorSession> sessions) {
+    this.connection = connection;
+    this.sessions = sessions;
+  }
+
+  @Override
+  public Duration runOneLoop() throws InterruptedException {
+    Update update;
+    try {
+      update = connection.receive();
+    } catch (IOException e) {
+      if (connection.isOpen()) {
+        log.error("Error reading from connection", e);
+      }
+      update = null;
+    }
+    if (update == null) {
+      log.info("Connection completed");
+      stopSession();
+      return Duration.ofMillis(-1);
+    }
+    if (session == null) {
+      session = sessions.apply(update.getPath());
+      if (session == null) {
+        log.error("Unknown session " + update.getPath());
+        connection.close();
+        return Duration.ofMillis(-1);
+      }
+      // look for file system updates to send back to the client
+      session.diffAndStartPolling(new RawOutgoingConnection(connection));
+    } else {
+      session.addRemoteUpdate(update);
+    }
+    return null;
+  }
+
+  @Override
+  public void onStop() {
+    stopSession();
+  }
+
+  private void stopSession() {
+    connection.close();
+    if (session != null) {
+      session.stop();
+    }
+  }
+
+}
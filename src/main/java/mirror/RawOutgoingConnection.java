@@ -0,0 +1,52 @@
+package mirror;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+
+/**
+ * An {@link OutgoingConnection} over a {@link RawConnection}, which sends file data straight from disk.
+ */
+public class RawOutgoingConnection implements OutgoingConnection {
+
+  private final RawConnection connection;
+
+  public RawOutgoingConnection(RawConnection connection) {
+    this.connection = connection;
+  }
+
+  @Override
+  public void send(Update update) {
+    try {
+      connection.send(update);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public boolean canSendFiles() {
+    return true;
+  }
+
+  @Override
+  public void sendFile(Update update, Path absolutePath) throws IOException {
+    connection.sendFile(update, absolutePath);
+  }
+
+  @Override
+  public boolean isConnected() {
+    return connection.isOpen();
+  }
+
+  @Override
+  public void awaitReconnected() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void closeConnection() {
+    connection.close();
+  }
+
+}
@@ -0,0 +1,64 @@
+package mirror;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import mirror.tasks.TaskFactory;
+import mirror.tasks.TaskLogic;
+
+/**
+ * Accepts {@link RawConnection}s for clients that asked to stream their updates over a plain
+ * socket instead of grpc's StreamUpdates, e.g. on a LAN.
+ *
+ * The client still sets up its session with grpc (time check, initial sync, etc.), and then
+ * connects to us with that session's id, so MirrorServer and MirrorSession work the same
+ * either way.
+ */
+public class RawServer implements TaskLogic {
+
+  private static final Logger log = LoggerFactory.getLogger(RawServer.class);
+  private final MirrorServer server;
+  private final TaskFactory taskFactory;
+  private final ServerSocketChannel socket;
+
+  public RawServer(MirrorServer server, TaskFactory taskFactory, InetSocketAddress address) throws IOException {
+    this.server = server;
+    this.taskFactory = taskFactory;
+    this.socket = ServerSocketChannel.open().bind(address);
+    log.info("Listening for raw connections on " + address);
+  }
+
+  @Override
+  public Duration runOneLoop() throws InterruptedException {
+    try {
+      SocketChannel channel = socket.accept();
+      log.info("Accepted raw connection from " + channel.getRemoteAddress());
+      taskFactory.runTask(new RawIncoming(new RawConnection(channel), server::getSession));
+    } catch (ClosedByInterruptException e) {
+      throw new InterruptedException();
+    } catch (IOException e) {
+      log.error("Error accepting connection", e);
+      if (!socket.isOpen()) {
+        return Duration.ofMillis(-1);
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public void onStop() {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      log.debug("Error closing socket", e);
+    }
+  }
+
+}
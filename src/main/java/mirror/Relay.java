@@ -0,0 +1,124 @@
+package mirror;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.protobuf.ByteString;
+
+import mirror.hash.ContentHasher;
+
+/**
+ * Forwards the updates that one server session saves to the other sessions on the same root.
+ *
+ * Without a relay, when several clients sync the same server root, one client's change
+ * only reaches the others via the disk: we write it, each other session's FileWatcher
+ * sees the write, waits for it to settle, hashes it, and then reads it again to send it.
+ *
+ * With a relay, once a session has saved an update, we put it directly into the other
+ * sessions' incoming queues as an already-settled and hashed local update, and hand them
+ * the data we already have in memory, so that their SaveToRemote doesn't re-read it.
+ * (The FileWatcher still sees the write, but it's then a no-op as their trees already
+ * have it.)
+ *
+ * The data is only kept briefly, and up to {@code maxBytes} per session; if it's gone,
+ * e.g. because the session was slow to send it, SaveToRemote just reads the file.
+ *
+ * Large updates, i.e. those that {@link IncomingSpool} spooled to disk as they arrived, don't
+ * have any data in memory to hand over, as SaveToLocal has already moved their spool file into
+ * place. We still relay them (with the hash the remote sent), so the other sessions skip their
+ * FileWatcher's settle and hash, but their SaveToRemote sends the file we just wrote, after
+ * SyncLogic has checked it still has the relayed modtime. This is a re-read of the final path,
+ * but it's of pages we've just written, and on a {@link RawConnection} it's sent with
+ * {@code transferTo}, so it doesn't go through the heap anyway.
+ */
+public class Relay {
+
+  private static final long maxBytes = 64 * 1024 * 1024;
+  private final Map<String, List<Peer>> peers = new ConcurrentHashMap<>();
+
+  /** Adds a session on {@code paths} to the relay, until {@link Peer#leave()} is called. */
+  public Peer join(MirrorPaths paths, BlockingQueue<Update> incomingQueue) {
+    String root = paths.root.toAbsolutePath().normalize().toString();
+    Peer peer = new Peer(root, incomingQueue);
+    peers.compute(root, (k, list) -> {
+      List<Peer> l = list == null ? new CopyOnWriteArrayList<>() : list;
+      l.add(peer);
+      return l;
+    });
+    return peer;
+  }
+
+  /** A session on a relayed root. */
+  public class Peer {
+    private final String root;
+    private final BlockingQueue<Update> incomingQueue;
+    // data saved by other sessions, by path, for our SaveToRemote to send without a re-read
+    private final Cache<String, Update> data = CacheBuilder
+      .newBuilder()
+      .maximumWeight(maxBytes)
+      .<String, Update> weigher((path, u) -> u.getData().size())
+      .expireAfterWrite(1, TimeUnit.MINUTES)
+      .build();
+
+    private Peer(String root, BlockingQueue<Update> incomingQueue) {
+      this.root = root;
+      this.incomingQueue = incomingQueue;
+    }
+
+    /** Forwards {@code saved}, which our SaveToLocal has just written to disk, to the other sessions on our root. */
+    public void publish(Update saved) {
+      List<Peer> others = peers.get(root);
+      if (others == null || others.size() == 1) {
+        return;
+      }
+      Update.Builder b = Update
+        .newBuilder(saved)
+        .clearData()
+        .clearSpoolPath()
+        .clearModTimeOnly()
+        .setLocal(true)
+        .setSettled(true);
+      // spooled updates have no data in memory, see the class javadoc, so their peers read the final path
+      boolean hasData = UpdateTree.isFile(saved) && !saved.getDelete() && !saved.getData().isEmpty();
+      if (hasData && saved.getContentHash().isEmpty()) {
+        b.setContentHash(ContentHasher.hash(saved.getData()));
+      }
+      Update local = b.build();
+      for (Peer other : others) {
+        if (other != this) {
+          if (hasData) {
+            other.data.put(saved.getPath(), Update.newBuilder().setModTime(saved.getModTime()).setData(saved.getData()).build());
+          } else {
+            other.data.invalidate(saved.getPath());
+          }
+          other.incomingQueue.add(local);
+        }
+      }
+    }
+
+    /** @return the data another session saved for {@code update}'s path and modtime, or null if we need to read it */
+    public ByteString takeData(Update update) {
+      Update relayed = data.getIfPresent(update.getPath());
+      if (relayed == null || relayed.getModTime() != update.getModTime()) {
+        return null;
+      }
+      data.invalidate(update.getPath());
+      return relayed.getData();
+    }
+
+    public void leave() {
+      peers.computeIfPresent(root, (k, list) -> {
+        list.remove(this);
+        return list.isEmpty() ? null : list;
+      });
+      data.invalidateAll();
+    }
+  }
+
+}
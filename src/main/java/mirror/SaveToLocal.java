@@ -9,12 +9,14 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Duration;
 import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.annotations.VisibleForTesting;
 
+import mirror.hash.ContentHasher;
 import mirror.tasks.TaskLogic;
 
 public class SaveToLocal implements TaskLogic {
@@ -22,10 +24,18 @@ public class SaveToLocal implements TaskLogic {
   private static final Logger log = LoggerFactory.getLogger(SaveToLocal.class);
   private final BlockingQueue<Update> results;
   private final FileAccess fileAccess;
+  private final Consumer<Update> onSaved;
 
   public SaveToLocal(Queues queues, FileAccess fileAccess) {
+    this(queues, fileAccess, u -> {
+    });
+  }
+
+  /** @param onSaved called with each update after it's been saved, e.g. for a {@link Relay} */
+  public SaveToLocal(Queues queues, FileAccess fileAccess, Consumer<Update> onSaved) {
     this.results = queues.saveToLocal;
     this.fileAccess = fileAccess;
+    this.onSaved = onSaved;
   }
 
   @Override
@@ -48,6 +58,7 @@ public class SaveToLocal implements TaskLogic {
 
   private void saveLocally(Update remote) {
     try {
+      boolean saved = true;
       if (remote.getDelete()) {
         deleteLocally(remote);
       } else if (!remote.getSymlink().isEmpty()) {
@@ -55,10 +66,16 @@ public class SaveToLocal implements TaskLogic {
       } else if (remote.getDirectory()) {
         createDirectoryLocally(remote);
       } else {
-        saveFileLocally(remote);
+        saved = saveFileLocally(remote);
+      }
+      if (saved) {
+        onSaved.accept(remote);
       }
     } catch (IOException e) {
       log.error("Error saving " + debugString(remote), e);
+    } finally {
+      // if the spooled data wasn't moved into place, e.g. the save failed, it's not needed anymore
+      IncomingSpool.deleteSpoolFile(remote);
     }
   }
 
@@ -89,18 +106,53 @@ public class SaveToLocal implements TaskLogic {
     fileAccess.setModifiedTime(path, remote.getModTime());
   }
 
-  private void saveFileLocally(Update remote) throws IOException {
-    log.info("Remote update {}", abbreviatePath(remote.getPath()));
+  private boolean saveFileLocally(Update remote) throws IOException {
     Path path = Paths.get(remote.getPath());
+    if (remote.getModTimeOnly()) {
+      return touchFileLocally(remote, path);
+    }
+    log.info("Remote update {}", abbreviatePath(remote.getPath()));
     if (remote.getData().equals(UpdateTree.initialSyncMarker)) {
       throw new IllegalStateException("Likely bug, did not expect sync marker");
     }
-    ByteBuffer data = remote.getData().asReadOnlyByteBuffer();
-    fileAccess.write(path, data);
+    if (!remote.getSpoolPath().isEmpty()) {
+      fileAccess.moveInto(path, Paths.get(remote.getSpoolPath()));
+    } else {
+      ByteBuffer data = remote.getData().asReadOnlyByteBuffer();
+      fileAccess.write(path, data);
+    }
+    if (remote.getExecutable()) {
+      fileAccess.setExecutable(path);
+    }
+    fileAccess.setModifiedTime(path, remote.getModTime());
+    if (!remote.getContentHash().isEmpty()) {
+      // remember the hash, so we won't have to re-read the file to know it when it's next touched
+      fileAccess.setContentHash(path, remote.getContentHash());
+    }
+    return true;
+  }
+
+  private boolean touchFileLocally(Update remote, Path path) throws IOException {
+    // double check we still have the contents the remote thinks we have, e.g. in case we
+    // changed the file while the remote was deciding its own change was a no-op
+    String localHash = ContentHasher.isOwnFormat(remote.getContentHash())
+      ? fileAccess.getContentHash(path)
+      // e.g. the remote got a sha1 from its watchman, so hash our copy the same way
+      : ContentHasher.hashLike(remote.getContentHash(), fileAccess.read(path));
+    if (!localHash.equals(remote.getContentHash())) {
+      // our tree now thinks we have the remote's version, so bump our modtime past it; the FileWatcher
+      // will then see our copy as a new local change, and send it to the remote in full
+      log.warn("Remote touch {} does not match our contents, re-sending ours", abbreviatePath(remote.getPath()));
+      fileAccess.setModifiedTime(path, Math.max(System.currentTimeMillis(), remote.getModTime() + 1000));
+      return false;
+    }
+    log.info("Remote touch {}", abbreviatePath(remote.getPath()));
     if (remote.getExecutable()) {
       fileAccess.setExecutable(path);
     }
     fileAccess.setModifiedTime(path, remote.getModTime());
+    fileAccess.setContentHash(path, remote.getContentHash());
+    return true;
   }
 
 }
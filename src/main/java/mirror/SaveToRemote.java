@@ -5,62 +5,319 @@ import static mirror.Utils.debugString;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.protobuf.ByteString;
 
+import mirror.hash.ContentHasher;
 import mirror.tasks.TaskLogic;
 
+/**
+ * Reads local files and sends them to the remote.
+ *
+ * So that the disk and the network aren't taking turns being idle, we read ahead
+ * the data for the next few queued updates on a shared I/O pool while the current
+ * update is being sent. How much data can be read ahead, i.e. read but not yet handed to
+ * our connection, is capped by a {@link ByteBudget}.
+ *
+ * We also hash the data as it's read, so that the remote can tell if later updates to
+ * the file have the same contents. (Even if we were given a hash, the file may have
+ * changed since, so we always hash the data we actually send.)
+ *
+ * On the server, reads go through the {@link PayloadCache}, so that sessions sending the
+ * same files only read (and, for remotes that accept it, gzip) them once.
+ *
+ * So that one session's bulk sync can't starve the others, each session's reads take
+ * turns on the shared {@link FairExecutor}, each session can only hold a fraction of the
+ * shared ByteBudget, and each session's sends can be rate limited.
+ *
+ * If our connection can send files straight from disk, e.g. a {@link RawOutgoingConnection},
+ * we don't read (or hash) the data at all, and just tell the connection which file to send,
+ * without a hash.
+ */
 public class SaveToRemote implements TaskLogic {
 
   private static final Logger log = LoggerFactory.getLogger(SaveToRemote.class);
+  // How many updates past the current one we'll read ahead
+  private static final int readAhead = 8;
+  // How many bytes one session can have read ahead, so it can't hold all of a shared budget (larger files are clamped to it)
+  private static final long maxReadAheadBytes = 32 * 1024 * 1024;
+  private static final FairExecutor readPool = new FairExecutor(4, "SaveToRemote-read-%s");
+  private final Executor reads = readPool.newQueue();
   private final FileAccess fileAccess;
   private final BlockingQueue<Update> results;
   private final OutgoingConnection outgoingChanges;
+  private final ByteBudget budget;
+  private final Deque<Pending> pending = new ArrayDeque<>();
+  private final Relay.Peer relay;
+  private final PayloadCache.View payloads;
+  private final RateLimiter sendLimiter;
+  private long pendingBytes;
+  // how many updates we've taken off the queue and sent (or dropped, e.g. because they were deleted)
+  private volatile long sent;
 
   public SaveToRemote(Queues queues, FileAccess fileAccess, OutgoingConnection outgoingChanges) {
+    this(queues, fileAccess, outgoingChanges, ByteBudget.shared);
+  }
+
+  public SaveToRemote(Queues queues, FileAccess fileAccess, OutgoingConnection outgoingChanges, ByteBudget budget) {
+    this(queues, fileAccess, outgoingChanges, budget, null, null, null);
+  }
+
+  /**
+   * @param relay where other sessions leave data that we can send without re-reading it, or null
+   * @param payloads a cache of data shared with other sessions, or null to read files ourselves
+   * @param sendLimiter limits how many bytes we send per second, or null for no limit
+   */
+  public SaveToRemote(
+    Queues queues,
+    FileAccess fileAccess,
+    OutgoingConnection outgoingChanges,
+    ByteBudget budget,
+    Relay.Peer relay,
+    PayloadCache.View payloads,
+    RateLimiter sendLimiter) {
     this.fileAccess = fileAccess;
     this.results = queues.saveToRemote;
     this.outgoingChanges = outgoingChanges;
+    this.budget = budget;
+    this.relay = relay;
+    this.payloads = payloads;
+    this.sendLimiter = sendLimiter;
   }
 
   @Override
   public Duration runOneLoop() throws InterruptedException {
-    Update u = results.take();
+    if (pending.isEmpty()) {
+      // give a partially filled batch a moment to fill up, and then send it before we block
+      Update u = results.poll(BatchingOutgoingConnection.maxDelay.toMillis(), TimeUnit.MILLISECONDS);
+      if (u == null) {
+        outgoingChanges.flush();
+        u = results.take();
+      }
+      long size = Math.min(estimateSize(u), maxReadAheadBytes);
+      long bytes = budget.tryAcquire(size);
+      if (bytes == -1) {
+        // other sessions are using all of the budget, so send our partial batch before we wait for it
+        outgoingChanges.flush();
+        bytes = budget.acquire(size);
+      }
+      pending.add(readAhead(u, bytes));
+    }
+    // read ahead whatever else is queued, as long as there is budget for it
+    Update next;
+    while (pending.size() < readAhead && (next = results.peek()) != null) {
+      long size = Math.min(estimateSize(next), maxReadAheadBytes);
+      if (pendingBytes + size > maxReadAheadBytes) {
+        break;
+      }
+      long bytes = budget.tryAcquire(size);
+      if (bytes == -1) {
+        break;
+      }
+      results.remove();
+      pending.add(readAhead(next, bytes));
+    }
+    Pending p = pending.remove();
+    if (!p.prepared.isDone()) {
+      // likewise, don't hold a partial batch while we wait on a slow read
+      outgoingChanges.flush();
+    }
     try {
-      sendToRemote(u);
+      p.awaitRead();
+    } finally {
+      // once the data is read, it's handed to the transport, so give the budget back now, instead of
+      // holding it for as long as the transport blocks us, e.g. on flow control from a stalled remote
+      pendingBytes -= p.bytes;
+      budget.release(p.bytes);
+    }
+    try {
+      sendToRemote(p.update, p.prepared);
     } catch (RuntimeException e) {
-      log.error("Exception with results " + u, e);
+      log.error("Exception with results " + p.update, e);
+    } finally {
+      sent++;
     }
     return null;
   }
 
+  /** @return how many updates we've sent, in the order they were queued */
+  public long getSent() {
+    return sent;
+  }
+
+  @Override
+  public void onStop() {
+    // give back any budget we were holding for reads that we'll never send
+    pending.forEach(p -> {
+      p.prepared.cancel(false);
+      budget.release(p.bytes);
+    });
+    pending.clear();
+    pendingBytes = 0;
+  }
+
   @VisibleForTesting
   void drain() throws Exception {
     while (!results.isEmpty()) {
-      sendToRemote(results.take());
+      Update u = results.take();
+      sendToRemote(u, read(u));
     }
+    outgoingChanges.flush();
+  }
+
+  private Pending readAhead(Update update, long bytes) {
+    pendingBytes += bytes;
+    return new Pending(update, CompletableFuture.supplyAsync(() -> {
+      try {
+        return prepare(update);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }, reads), bytes);
   }
 
-  private void sendToRemote(Update update) {
+  private CompletableFuture<Update> read(Update update) {
+    CompletableFuture<Update> f = new CompletableFuture<>();
     try {
-      Update.Builder b = Update.newBuilder(update).setLocal(false);
-      if (!update.getDirectory() && update.getSymlink().isEmpty() && !update.getDelete()) {
-        b.setData(fileAccess.read(Paths.get(update.getPath())));
+      f.complete(prepare(update));
+    } catch (IOException e) {
+      f.completeExceptionally(e);
+    }
+    return f;
+  }
+
+  /** @return {@code update} as it should be sent, i.e. with its data read (and hashed) if it has any */
+  private Update prepare(Update update) throws IOException {
+    Update.Builder b = Update.newBuilder(update).setLocal(false).clearSettled();
+    if (hasData(update)) {
+      Path path = Paths.get(update.getPath());
+      ByteString data = relay == null ? null : relay.takeData(update);
+      if (data == null && sendsFromDisk(update)) {
+        // the connection will send the file itself, see sendToRemote, and as we can't know
+        // the hash of what it'll actually send, don't send the (maybe stale) hash we have
+        return b.clearContentHash().build();
+      } else if (data == null && payloads != null) {
+        PayloadCache.Payload p = payloads.read(fileAccess, path);
+        // hash the raw data even if we send it gzipped, so the hash is of the same version we send
+        b.setContentHash(ContentHasher.hash(p.raw));
+        return p.gzipped != null ? b.setData(p.gzipped).setDataGzipped(true).build() : b.setData(p.raw).build();
+      } else if (data == null) {
+        data = fileAccess.read(path);
       }
-      String maybeDelete = update.getDelete() ? "(delete) " : "";
+      // the hash we were given could be from before the file last changed, so always hash what we send
+      b.setData(data).setContentHash(ContentHasher.hash(data));
+    }
+    return b.build();
+  }
+
+  private long estimateSize(Update update) {
+    if (!hasData(update) || sendsFromDisk(update)) {
+      return 0;
+    }
+    try {
+      return fileAccess.getFileSize(Paths.get(update.getPath()));
+    } catch (IOException e) {
+      return 0; // the read will find out it's gone
+    }
+  }
+
+  private void sendToRemote(Update update, CompletableFuture<Update> prepared) throws InterruptedException {
+    try {
+      Update u = prepared.get();
+      String maybeDelete = update.getDelete() ? "(delete) " : update.getModTimeOnly() ? "(touch) " : "";
       log.info("Sending " + maybeDelete + abbreviatePath(update.getPath()));
-      outgoingChanges.send(b.build());
-    } catch (FileNotFoundException e) {
+      if (u.getData().isEmpty() && sendsFromDisk(update)) {
+        sendFromDisk(u);
+        return;
+      }
+      if (sendLimiter != null && u.getData().size() > 0) {
+        sendLimiter.acquire(u.getData().size());
+      }
+      outgoingChanges.send(u);
+    } catch (ExecutionException e) {
+      IOException io = findIOException(e);
+      if (io instanceof FileNotFoundException || io instanceof NoSuchFileException) {
+        // the file was very transient, which is fine, just drop it.
+      } else if (io != null) {
+        // should we error here, so that the session is restarted?
+        log.error("Could not read " + debugString(update), io);
+      } else {
+        throw new RuntimeException(e.getCause());
+      }
+    }
+  }
+
+  private void sendFromDisk(Update u) {
+    Path file = fileAccess.getAbsolutePath(Paths.get(u.getPath()));
+    try {
+      long size = file.toFile().length();
+      if (sendLimiter != null && size > 0) {
+        sendLimiter.acquire((int) Math.min(size, Integer.MAX_VALUE));
+      }
+      outgoingChanges.sendFile(u, file);
+    } catch (FileNotFoundException | NoSuchFileException e) {
       // the file was very transient, which is fine, just drop it.
     } catch (IOException e) {
-      // should we error here, so that the session is restarted?
-      log.error("Could not read " + debugString(update), e);
+      log.error("Could not send " + debugString(u), e);
+    }
+  }
+
+  /** @return whether {@code update}'s data can be sent straight from disk by our connection, without us reading it */
+  private boolean sendsFromDisk(Update update) {
+    return hasData(update) && outgoingChanges.canSendFiles() && fileAccess.getAbsolutePath(Paths.get(update.getPath())) != null;
+  }
+
+  private static IOException findIOException(Throwable t) {
+    while (t != null) {
+      if (t instanceof UncheckedIOException) {
+        return ((UncheckedIOException) t).getCause();
+      } else if (t instanceof IOException) {
+        return (IOException) t;
+      }
+      t = t.getCause();
+    }
+    return null;
+  }
+
+  private static boolean hasData(Update update) {
+    return !update.getDirectory() && update.getSymlink().isEmpty() && !update.getDelete() && !update.getModTimeOnly();
+  }
+
+  /** An update whose data is being read ahead, along with the budget it's holding. */
+  private static class Pending {
+    private final Update update;
+    private final CompletableFuture<Update> prepared;
+    private final long bytes;
+
+    private Pending(Update update, CompletableFuture<Update> prepared, long bytes) {
+      this.update = update;
+      this.prepared = prepared;
+      this.bytes = bytes;
+    }
+
+    private void awaitRead() throws InterruptedException {
+      try {
+        prepared.get();
+      } catch (ExecutionException e) {
+        // sendToRemote will handle it
+      }
     }
   }
 
@@ -0,0 +1,140 @@
+package mirror;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.CallOptions;
+import io.grpc.ClientCall;
+import io.grpc.ConnectivityState;
+import io.grpc.ForwardingClientCall.SimpleForwardingClientCall;
+import io.grpc.ForwardingClientCallListener.SimpleForwardingClientCallListener;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+
+/**
+ * Multiplexes many clients' sessions over one underlying channel, e.g. for the daemon.
+ *
+ * Each session still gets its own {@link ManagedChannel}, so that MirrorClient can keep
+ * shutting down its channel when its session stops, but these are just views of the
+ * shared channel: shutting one down cancels only the calls made through it, and the
+ * underlying connection (and the other sessions' calls) stay up.
+ */
+public class SharedChannelFactory implements ChannelFactory {
+
+  private final ManagedChannel channel;
+
+  public SharedChannelFactory(ManagedChannel channel) {
+    this.channel = channel;
+  }
+
+  @Override
+  public ManagedChannel newChannel() {
+    // a session asks for a channel after the ConnectionDetector sees the server is back,
+    // so don't make it wait for the channel's own reconnect backoff
+    if (channel.getState(false) == ConnectivityState.TRANSIENT_FAILURE) {
+      channel.resetConnectBackoff();
+    }
+    return new SessionChannel();
+  }
+
+  /** Shuts down the underlying channel, e.g. when the daemon exits. */
+  public void shutdown() {
+    channel.shutdownNow();
+  }
+
+  private class SessionChannel extends ManagedChannel {
+    private final Set<ClientCall<?, ?>> calls = ConcurrentHashMap.newKeySet();
+    private volatile boolean shutdown;
+
+    @Override
+    public <ReqT, RespT> ClientCall<ReqT, RespT> newCall(MethodDescriptor<ReqT, RespT> method, CallOptions options) {
+      if (shutdown) {
+        // like ManagedChannel, fail calls made after shutdown instead of sending them on the shared channel
+        return new FailedCall<>();
+      }
+      return new SimpleForwardingClientCall<ReqT, RespT>(channel.newCall(method, options)) {
+        @Override
+        public void start(Listener<RespT> listener, Metadata headers) {
+          calls.add(this);
+          ClientCall<?, ?> call = this;
+          super.start(new SimpleForwardingClientCallListener<RespT>(listener) {
+            @Override
+            public void onClose(Status status, Metadata trailers) {
+              calls.remove(call);
+              super.onClose(status, trailers);
+            }
+          }, headers);
+          // shutdownNow may have run between newCall and here, and missed this call
+          if (shutdown) {
+            cancel("Session stopped", null);
+          }
+        }
+      };
+    }
+
+    @Override
+    public String authority() {
+      return channel.authority();
+    }
+
+    @Override
+    public ManagedChannel shutdown() {
+      shutdown = true;
+      return this;
+    }
+
+    @Override
+    public ManagedChannel shutdownNow() {
+      shutdown = true;
+      calls.forEach(c -> c.cancel("Session stopped", null));
+      return this;
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return shutdown && calls.isEmpty();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      while (!isTerminated() && System.nanoTime() < deadline) {
+        Thread.sleep(10);
+      }
+      return isTerminated();
+    }
+  }
+
+  /** A call on a shut down {@link SessionChannel}, which fails as soon as it's started. */
+  private static class FailedCall<ReqT, RespT> extends ClientCall<ReqT, RespT> {
+    @Override
+    public void start(Listener<RespT> listener, Metadata headers) {
+      listener.onClose(Status.UNAVAILABLE.withDescription("Session channel is shutdown"), new Metadata());
+    }
+
+    @Override
+    public void request(int numMessages) {
+    }
+
+    @Override
+    public void cancel(String message, Throwable cause) {
+    }
+
+    @Override
+    public void halfClose() {
+    }
+
+    @Override
+    public void sendMessage(ReqT message) {
+    }
+  }
+
+}
@@ -0,0 +1,269 @@
+package mirror;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import mirror.tasks.TaskFactory;
+import mirror.tasks.TaskLogic;
+
+/**
+ * Shares one underlying {@link FileWatcher} across all of the sessions for the same root.
+ *
+ * On a server with several clients syncing the same directory (or one client that
+ * reconnects a lot), each session used to start its own watcher, which meant its own
+ * watchman subscription/inotify watches and its own full scan of the root.
+ *
+ * Instead, we start one watcher per root (and include/exclude rules, as they change
+ * which files the watcher reports), keep the latest local update for each path, and
+ * fan each change out to every session's queue. A new session's initial scan is then
+ * just that state, and each session's {@link UpdateTree} keeps our instances (see
+ * {@link UpdateTree#addSharedLocal}), instead of its own copy of every local update,
+ * so for the paths that haven't changed since, the local metadata is only held once,
+ * and each session only adds its tree's nodes and the remote's state.
+ *
+ * Once the last session for a root stops, we keep its watcher around for {@code idleTimeout},
+ * so that a reconnecting client doesn't cause another full scan.
+ */
+public class SharedFileWatcherFactory implements FileWatcherFactory {
+
+  private static final Logger log = LoggerFactory.getLogger(SharedFileWatcherFactory.class);
+  public static final Duration defaultIdleTimeout = Duration.ofMinutes(10);
+  private final TaskFactory taskFactory;
+  private final FileWatcherFactory delegate;
+  private final Duration idleTimeout;
+  private final Map<String, SharedWatcher> watchers = new HashMap<>();
+
+  public SharedFileWatcherFactory(TaskFactory taskFactory, FileWatcherFactory delegate) {
+    this(taskFactory, delegate, defaultIdleTimeout);
+  }
+
+  public SharedFileWatcherFactory(TaskFactory taskFactory, FileWatcherFactory delegate, Duration idleTimeout) {
+    this.taskFactory = taskFactory;
+    this.delegate = delegate;
+    this.idleTimeout = idleTimeout;
+  }
+
+  @Override
+  public FileWatcher newWatcher(MirrorPaths config, BlockingQueue<Update> incomingQueue) {
+    return new Subscriber(config, incomingQueue);
+  }
+
+  @VisibleForTesting
+  synchronized int numberOfWatchers() {
+    return watchers.size();
+  }
+
+  private synchronized SharedWatcher getShared(MirrorPaths config) {
+    return watchers.computeIfAbsent(key(config), k -> new SharedWatcher(k, config));
+  }
+
+  private synchronized void remove(SharedWatcher shared) {
+    watchers.remove(shared.key, shared);
+  }
+
+  private static String key(MirrorPaths config) {
+    Hasher h = Hashing.murmur3_128().newHasher();
+    h.putString(config.root.toAbsolutePath().normalize().toString(), UTF_8);
+    config.getIncludes().getLines().forEach(l -> h.putString("\ni " + l, UTF_8));
+    config.getExcludes().getLines().forEach(l -> h.putString("\ne " + l, UTF_8));
+    return h.hash().toString();
+  }
+
+  /** The per-session view of a {@link SharedWatcher}, which is ran in the session's task pool. */
+  private class Subscriber implements FileWatcher {
+    private final MirrorPaths config;
+    private final BlockingQueue<Update> queue;
+    private volatile SharedWatcher shared;
+
+    private Subscriber(MirrorPaths config, BlockingQueue<Update> queue) {
+      this.config = config;
+      this.queue = queue;
+    }
+
+    @Override
+    public List<Update> performInitialScan() throws Exception {
+      while (true) {
+        SharedWatcher s = getShared(config);
+        List<Update> initial = s.subscribe(queue);
+        // null means the watcher stopped after we looked it up, so get a new one
+        if (initial != null) {
+          shared = s;
+          return initial;
+        }
+      }
+    }
+
+    @Override
+    public Duration runOneLoop() {
+      // the shared watcher puts changes directly in our queue, we just need to notice if it fails
+      if (shared.hasFailed()) {
+        throw new IllegalStateException("Shared watcher for " + config.root + " failed");
+      }
+      return Duration.ofSeconds(1);
+    }
+
+    @Override
+    public void onStop() {
+      if (shared != null) {
+        shared.unsubscribe(queue);
+      }
+    }
+
+    @Override
+    public String getClock() {
+      return shared == null ? null : shared.clock;
+    }
+
+    @Override
+    public boolean isPaused() {
+      return shared != null && shared.watcher.isPaused();
+    }
+
+    @Override
+    public boolean isShared() {
+      return true;
+    }
+  }
+
+  /** Runs the underlying watcher for a root, and fans its changes out to each subscriber. */
+  private class SharedWatcher implements TaskLogic {
+    private final String key;
+    private final Path root;
+    private final BlockingQueue<Update> source = new LinkedBlockingQueue<>();
+    private final FileWatcher watcher;
+    // the latest local update for each path, so new subscribers don't need a rescan; these are
+    // the same instances that the subscribers' trees hold, so should not be copied
+    private final NavigableMap<String, Update> state = new TreeMap<>();
+    private final List<BlockingQueue<Update>> subscribers = new ArrayList<>();
+    private final CountDownLatch failed = new CountDownLatch(1);
+    private boolean started;
+    private boolean stopped;
+    private long idleSinceMillis;
+    // the clock of the last changes we've put in every subscriber's queue
+    private volatile String clock;
+
+    private SharedWatcher(String key, MirrorPaths config) {
+      this.key = key;
+      this.root = config.root;
+      this.watcher = delegate.newWatcher(config, source);
+    }
+
+    /** @return the current state of the root, or null if this watcher has been stopped */
+    private synchronized List<Update> subscribe(BlockingQueue<Update> queue) throws Exception {
+      if (stopped) {
+        return null;
+      }
+      if (!started) {
+        log.info("Starting shared watcher for " + root);
+        try {
+          watcher.performInitialScan().forEach(this::apply);
+        } catch (Exception e) {
+          fail();
+          throw e;
+        }
+        clock = watcher.getClock();
+        taskFactory.runTask(watcher, this::fail);
+        taskFactory.runTask(this, this::fail);
+        started = true;
+      } else {
+        log.info("Reusing shared watcher for " + root + " with " + state.size() + " paths");
+      }
+      subscribers.add(queue);
+      return new ArrayList<>(state.values());
+    }
+
+    private synchronized void unsubscribe(BlockingQueue<Update> queue) {
+      subscribers.remove(queue);
+      if (subscribers.isEmpty()) {
+        idleSinceMillis = System.currentTimeMillis();
+      }
+    }
+
+    @Override
+    public Duration runOneLoop() throws InterruptedException {
+      // check every loop, and not only when the root is quiet, as a root with constant churn
+      // (e.g. a build writing logs) would otherwise keep an unused watcher running forever
+      if (stopIfIdle()) {
+        return Duration.ofMillis(-1);
+      }
+      Update first = source.poll(idleTimeout.toMillis(), TimeUnit.MILLISECONDS);
+      if (first == null) {
+        return null;
+      }
+      // read the clock before draining, so everything up to it is in our batch
+      String c = watcher.getClock();
+      List<Update> updates = new ArrayList<>();
+      updates.add(first);
+      source.drainTo(updates);
+      synchronized (this) {
+        for (Update u : updates) {
+          apply(u);
+          subscribers.forEach(q -> q.add(u));
+        }
+        clock = c;
+      }
+      return null;
+    }
+
+    private void apply(Update u) {
+      if (u.getDelete()) {
+        // the watcher doesn't put deletes for the children of a deleted directory
+        state.remove(u.getPath());
+        state.subMap(u.getPath() + "/", u.getPath() + "0").clear();
+      } else {
+        state.put(u.getPath(), u);
+      }
+    }
+
+    private boolean stopIfIdle() {
+      synchronized (this) {
+        if (!subscribers.isEmpty() || System.currentTimeMillis() - idleSinceMillis < idleTimeout.toMillis()) {
+          return false;
+        }
+        stopped = true;
+      }
+      log.info("Stopping idle shared watcher for " + root);
+      remove(this);
+      taskFactory.stopTask(watcher);
+      return true;
+    }
+
+    private boolean hasFailed() {
+      return failed.getCount() == 0;
+    }
+
+    private void fail() {
+      synchronized (this) {
+        stopped = true;
+      }
+      remove(this);
+      failed.countDown();
+      // we might be called from one of the tasks we're stopping, so stop them from another thread
+      taskFactory.runTask(() -> {
+        taskFactory.stopTask(watcher);
+        taskFactory.stopTask(this);
+        return Duration.ofMillis(-1);
+      });
+    }
+  }
+
+}
@@ -10,16 +10,25 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jooq.lambda.tuple.Tuple2;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.MoreExecutors;
 
+import mirror.UpdateTree.Node;
 import mirror.UpdateTreeDiff.DiffResults;
+import mirror.hash.ContentHasher;
 import mirror.tasks.TaskLogic;
 
 /**
@@ -37,64 +46,287 @@ import mirror.tasks.TaskLogic;
 public class SyncLogic implements TaskLogic {
 
   private static final Logger log = LoggerFactory.getLogger(SyncLogic.class);
+  private static final Duration snapshotInterval = Duration.ofMinutes(10);
+  private static final Duration pausedPollInterval = Duration.ofMillis(500);
   private final Queues queues;
   private final FileAccess fileAccess;
   private final UpdateTree tree;
+  private final Executor hashExecutor;
+  private final FileWatcher fileWatcher;
+  private final TreeSnapshot snapshot;
+  // how many local updates are being hashed, i.e. are newer than what's in our tree
+  private final AtomicInteger pendingHashes = new AtomicInteger();
+  // the FileWatcher clock that the local updates in our tree are current as of
+  private String processedClock;
+  private String savedClock;
+  private long lastSaveMillis = System.currentTimeMillis();
+  private boolean wasPaused;
+  // how many updates our initial diff sent to the remote, or -1 until it's done
+  private volatile int initialSends = -1;
+  // local updates to noisy paths that we're holding until they're quiet, by subtree
+  private final Map<String, HeldSubtree> held = new HashMap<>();
 
+  /** Creates a SyncLogic that hashes files on its own thread, e.g. for tests. */
   public SyncLogic(Queues queues, FileAccess fileAccess, UpdateTree tree) {
+    this(queues, fileAccess, tree, MoreExecutors.directExecutor());
+  }
+
+  public SyncLogic(Queues queues, FileAccess fileAccess, UpdateTree tree, Executor hashExecutor) {
+    this(queues, fileAccess, tree, hashExecutor, null, null);
+  }
+
+  /**
+   * @param fileWatcher the watcher of our local changes, for its clock and whether it's paused, or null
+   * @param snapshot where to periodically save our local state, or null to not save it
+   */
+  public SyncLogic(
+    Queues queues,
+    FileAccess fileAccess,
+    UpdateTree tree,
+    Executor hashExecutor,
+    FileWatcher fileWatcher,
+    TreeSnapshot snapshot) {
     this.queues = queues;
     this.fileAccess = fileAccess;
     this.tree = tree;
+    this.hashExecutor = hashExecutor;
+    this.fileWatcher = fileWatcher;
+    this.snapshot = snapshot;
   }
 
   @Override
   public void onStart() throws InterruptedException {
-    diff(); // do an initial diff
+    // if nothing is queued yet, the initial scan in our tree is current as of the clock
+    String clock = watcherClock();
+    if (queues.incomingQueue.isEmpty()) {
+      processedClock = clock;
+    }
+    int sends = 0;
+    if (!isPaused()) {
+      sends = diff().sendToRemote.size(); // do an initial diff
+    }
+    initialSends = sends;
+  }
+
+  /**
+   * @return how many updates our initial diff queued to send to the remote, which are the first
+   *   updates on the saveToRemote queue, or -1 if we haven't done the initial diff yet
+   */
+  public int getInitialSends() {
+    return initialSends;
   }
 
   @Override
   public Duration runOneLoop() throws InterruptedException {
-    List<Update> batch = getNextBatchOrBlock();
+    List<Update> batch = new ArrayList<>();
+    Duration wait = nextWakeup();
+    if (wait != null) {
+      // wake up to see if we've been resumed or have held updates to release, even if nothing else happens
+      Update u = queues.incomingQueue.poll(wait.toMillis(), TimeUnit.MILLISECONDS);
+      if (u != null) {
+        batch.add(u);
+      }
+    } else {
+      // block for at least one
+      batch.add(queues.incomingQueue.take());
+    }
+    // read the clock before draining, as the watcher queues changes before advancing its
+    // clock, so anything up to the clock is either in this batch or already in our tree
+    String clock = watcherClock();
+    // now go ahead and drain the rest while we're here
+    queues.incomingQueue.drainTo(batch);
     logLocalUpdates(batch);
     for (Update u : batch) {
       handleUpdate(u);
     }
-    diff();
-    // Return no duration so we immediately loop and call getNextBatchOrBlock
+    releaseQuietSubtrees();
+    // while paused, e.g. for a git checkout, we keep updating our tree, but hold off on
+    // diffing, so that once resumed, we only save/send the end result
+    if (isPaused()) {
+      wasPaused = true;
+    } else {
+      if (wasPaused) {
+        log.info("Resuming sync");
+        wasPaused = false;
+      }
+      diff();
+    }
+    // updates being hashed or held aren't in our tree yet, so keep the older clock until they are
+    if (clock != null && pendingHashes.get() == 0 && held.isEmpty()) {
+      processedClock = clock;
+    }
+    if (System.currentTimeMillis() - lastSaveMillis > snapshotInterval.toMillis()) {
+      saveSnapshot();
+    }
+    // Return no duration so we immediately loop and take the next batch
     return null;
   }
 
-  // see if we have up to N more updates
-  private List<Update> getNextBatchOrBlock() throws InterruptedException {
-    List<Update> updates = new ArrayList<>();
-    // block for at least one
-    updates.add(queues.incomingQueue.take());
-    // now go ahead and drain the rest while we're here
-    queues.incomingQueue.drainTo(updates);
-    return updates;
+  @Override
+  public void onStop() {
+    saveSnapshot();
+  }
+
+  /** @return how long to wait for more updates before we need to check on something, or null to block until the next update */
+  private Duration nextWakeup() {
+    Duration wait = isPaused() ? pausedPollInterval : null;
+    if (!held.isEmpty()) {
+      long now = System.currentTimeMillis();
+      long quietMillis = tree.config.getQuiescence().getQuietPeriod().toMillis();
+      long earliest = held.values().stream().mapToLong(h -> h.lastChangeMillis).min().getAsLong();
+      Duration untilRelease = Duration.ofMillis(Math.max(1, earliest + quietMillis - now));
+      wait = wait == null || untilRelease.compareTo(wait) < 0 ? untilRelease : wait;
+    }
+    return wait;
+  }
+
+  /**
+   * Holds {@code local} if it's a noisy path, e.g. a build output, until its subtree has
+   * been quiet for a while, see {@link QuiescencePolicy}.
+   *
+   * @return whether it was held
+   */
+  private boolean holdIfNoisy(Update local) {
+    if (ContentHasher.isOwnFormat(local.getContentHash())) {
+      return false; // we hashed it after it was released, so don't hold it again
+    }
+    String subtree = tree.config.getQuiescence().findSubtree(local.getPath(), local.getDirectory());
+    if (subtree == null) {
+      return false;
+    }
+    HeldSubtree h = held.computeIfAbsent(subtree, k -> new HeldSubtree());
+    h.updates.put(local.getPath(), local);
+    h.lastChangeMillis = System.currentTimeMillis();
+    return true;
+  }
+
+  private void releaseQuietSubtrees() throws InterruptedException {
+    if (held.isEmpty()) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    long quietMillis = tree.config.getQuiescence().getQuietPeriod().toMillis();
+    Iterator<Map.Entry<String, HeldSubtree>> i = held.entrySet().iterator();
+    while (i.hasNext()) {
+      Map.Entry<String, HeldSubtree> e = i.next();
+      if (now - e.getValue().lastChangeMillis >= quietMillis) {
+        i.remove();
+        log.debug("Releasing {} held updates for {}", e.getValue().updates.size(), e.getKey());
+        for (Update u : e.getValue().updates.values()) {
+          handleLocalUpdate(u);
+        }
+      }
+    }
+  }
+
+  private String watcherClock() {
+    return fileWatcher == null ? null : fileWatcher.getClock();
+  }
+
+  private boolean isPaused() {
+    return fileWatcher != null && fileWatcher.isPaused();
+  }
+
+  private void saveSnapshot() {
+    lastSaveMillis = System.currentTimeMillis();
+    if (snapshot == null || processedClock == null || processedClock.equals(savedClock)) {
+      return;
+    }
+    try {
+      snapshot.save(processedClock, tree);
+      savedClock = processedClock;
+    } catch (IOException e) {
+      log.warn("Could not save snapshot", e);
+    }
   }
 
   @VisibleForTesting
   void poll() throws IOException, InterruptedException {
     Update u;
-    while ((u = queues.incomingQueue.poll()) != null) {
-      handleUpdate(u);
-    }
+    do {
+      while ((u = queues.incomingQueue.poll()) != null) {
+        handleUpdate(u);
+      }
+      // released updates may have been re-queued after hashing
+      releaseQuietSubtrees();
+    } while (!queues.incomingQueue.isEmpty());
     diff();
   }
 
   private void handleUpdate(Update u) throws InterruptedException {
     if (u.getLocal()) {
-      if (isStaleLocalUpdate(u)) {
-        return;
+      if (!holdIfNoisy(u)) {
+        handleLocalUpdate(u);
       }
-      tree.addLocal(ensureSettledAndReadModTime(u));
     } else {
       tree.addRemote(u);
     }
   }
 
-  private void diff() throws InterruptedException {
+  private void handleLocalUpdate(Update u) throws InterruptedException {
+    if (isUnchangedLocalUpdate(u) || isStaleLocalUpdate(u)) {
+      return;
+    }
+    Update local = u.getContentHash().isEmpty() ? ensureSettledAndReadModTime(u) : ensureHashIsCurrent(u);
+    if (needsContentHash(local)) {
+      hashInBackground(local);
+      return;
+    }
+    tree.addLocal(local);
+  }
+
+  /**
+   * Whether we should hash {@code local} before diffing it, so that if the file was only
+   * touched/rewritten with the same contents, we can send just the modtime.
+   *
+   * We do this lazily, i.e. only for files we're about to send, and not for echoes of
+   * our own writes (which have the same modtime as the remote) or ignored files.
+   */
+  private boolean needsContentHash(Update local) {
+    if (!UpdateTree.isFile(local) || local.getDelete() || !local.getContentHash().isEmpty()) {
+      return false;
+    }
+    Node node = tree.findClosest(local.getPath());
+    if (!node.getPath().equals(local.getPath())) {
+      // a new path can't be an echo, and we don't want to create its node just for this, so go by whether its
+      // closest ancestor is ignored (at worst we'll hash a file that's ignored by its own name, e.g. *.log)
+      return !node.shouldIgnore();
+    }
+    boolean isEcho = node.getRemote() != null && node.getRemote().getModTime() == local.getModTime();
+    return !isEcho && !node.shouldIgnore();
+  }
+
+  /** Hashes {@code local} off-thread, and then re-queues it so we can diff it with the hash. */
+  private void hashInBackground(Update local) {
+    pendingHashes.incrementAndGet();
+    hashExecutor.execute(() -> {
+      try {
+        String hash = fileAccess.getContentHash(Paths.get(local.getPath()));
+        queues.incomingQueue.put(local.toBuilder().setContentHash(hash).build());
+      } catch (IOException e) {
+        // ignore as the path was probably deleted, and we'll get an event for that
+        log.debug("Exception in hashInBackground: " + e.getMessage());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        pendingHashes.decrementAndGet();
+      }
+    });
+  }
+
+  /** If the file changed while we were hashing it, the hash is stale, so start over. */
+  private Update ensureHashIsCurrent(Update local) throws InterruptedException {
+    try {
+      if (fileAccess.getModifiedTime(Paths.get(local.getPath())) == local.getModTime()) {
+        return local;
+      }
+    } catch (IOException e) {
+      // ignore as the path was probably deleted
+    }
+    return ensureSettledAndReadModTime(local.toBuilder().clearContentHash().build());
+  }
+
+  private DiffResults diff() throws InterruptedException {
     DiffResults r = new UpdateTreeDiff(tree).diff();
     for (Update u : r.saveLocally) {
       queues.saveToLocal.put(u);
@@ -102,6 +334,33 @@ public class SyncLogic implements TaskLogic {
     for (Update u : r.sendToRemote) {
       queues.saveToRemote.put(u);
     }
+    return r;
+  }
+
+  /**
+   * Whether {@code local} is exactly what the tree already has, e.g. because the FileWatcher
+   * re-sent everything after an overflow, or is echoing a remote update we saved, so we can
+   * drop it without touching the disk.
+   */
+  private boolean isUnchangedLocalUpdate(Update local) {
+    if (!local.getContentHash().isEmpty()) {
+      return false; // we re-queued this ourselves after hashing it
+    }
+    Node node = tree.findIfExists(local.getPath());
+    Update existing = node == null ? null : node.getLocal();
+    boolean unchanged = existing != null
+      && existing.getDelete() == local.getDelete()
+      // directory modtimes are pinned by UpdateTree anyway, and updates without a modtime need us to read it
+      && (local.getDelete() || local.getDirectory() || (local.getModTime() != 0 && existing.getModTime() == local.getModTime()))
+      && existing.getDirectory() == local.getDirectory()
+      && existing.getExecutable() == local.getExecutable()
+      && existing.getSymlink().equals(local.getSymlink())
+      && existing.getIgnoreString().equals(local.getIgnoreString());
+    if (unchanged) {
+      // the FileWatcher has now confirmed what we expected, e.g. our write of a remote update
+      node.markLocalObserved();
+    }
+    return unchanged;
   }
 
   /**
@@ -144,12 +403,17 @@ public class SyncLogic implements TaskLogic {
    * If we block for a little bit here, we may still get a delouge of inotify events,
    * but they should all have the same mod time, and so effectively be no-ops and
    * not cause any new diff results to be emitted.
+   *
+   * If the FileWatcher already knows the writer is done, e.g. the inotify watcher
+   * sees IN_CLOSE_WRITE, the update is marked settled and we skip the waiting.
    */
   private Update ensureSettledAndReadModTime(Update local) throws InterruptedException {
     if (!local.getDelete()) {
       try {
         Path path = Paths.get(local.getPath());
-        Utils.ensureSettled(fileAccess, path);
+        if (!local.getSettled()) {
+          Utils.ensureSettled(fileAccess, path);
+        }
         local = Update.newBuilder(local).setModTime(fileAccess.getModifiedTime(path)).build();
         if (!local.getSymlink().isEmpty()) {
           local = Update.newBuilder(local).setSymlink(fileAccess.readSymlink(path).toString()).build();
@@ -177,4 +441,10 @@ public class SyncLogic implements TaskLogic {
     }
   }
 
+  /** The latest local update for each path in a noisy subtree, and when any of them last changed. */
+  private static class HeldSubtree {
+    private final Map<String, Update> updates = new LinkedHashMap<>();
+    private long lastChangeMillis;
+  }
+
 }
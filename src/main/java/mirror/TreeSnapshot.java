@@ -0,0 +1,157 @@
+package mirror;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * An on-disk snapshot of our local files, as of a FileWatcher clock.
+ *
+ * On a cold start, a FileWatcher that supports clocks (i.e. watchman) can load the
+ * snapshot and ask only for what changed since its clock, instead of listing every
+ * file in the root again, which for large trees is most of our startup time.
+ *
+ * Snapshots are stored in {@code ~/.mirror/snapshots} by default, keyed by the root directory
+ * and the include/exclude rules, as the rules change which files the FileWatcher reports.
+ */
+public class TreeSnapshot {
+
+  private static final Logger log = LoggerFactory.getLogger(TreeSnapshot.class);
+  public static final Path defaultDirectory = Paths.get(System.getProperty("user.home"), ".mirror", "snapshots");
+  private static final int version = 2;
+  private final Path file;
+
+  /** @return the snapshot for {@code paths}, which may or may not exist yet. */
+  public static TreeSnapshot forPaths(MirrorPaths paths) {
+    return forPaths(paths, defaultDirectory);
+  }
+
+  /** @return the snapshot for {@code paths} in {@code directory}, which may or may not exist yet. */
+  public static TreeSnapshot forPaths(MirrorPaths paths, Path directory) {
+    Hasher h = Hashing.murmur3_128().newHasher();
+    h.putString(paths.root.toAbsolutePath().normalize().toString(), UTF_8);
+    paths.getIncludes().getLines().forEach(l -> h.putString("\ni " + l, UTF_8));
+    paths.getExcludes().getLines().forEach(l -> h.putString("\ne " + l, UTF_8));
+    return new TreeSnapshot(directory.resolve(h.hash().toString()));
+  }
+
+  TreeSnapshot(Path file) {
+    this.file = file;
+  }
+
+  /**
+   * Saves the local state of {@code tree}, which must be current as of {@code clock}.
+   *
+   * Only state the FileWatcher has reported is saved; paths where we've saved a remote update,
+   * but the FileWatcher hasn't seen the write yet (or the write failed), are saved as unconfirmed,
+   * so that on load we ask the FileWatcher for what's actually on disk.
+   */
+  public void save(String clock, UpdateTree tree) throws IOException {
+    List<Update> updates = new ArrayList<>();
+    List<String> unconfirmed = new ArrayList<>();
+    tree.visitAll(n -> {
+      Update local = n.getLocal();
+      if (local == null || n.getPath().isEmpty()) {
+        return;
+      }
+      if (!n.isLocalObserved()) {
+        unconfirmed.add(n.getPath());
+      } else if (!local.getDelete()) {
+        // only keep the metadata, e.g. not any data the local update was copied from
+        updates.add(n.restorePath(local).toBuilder().clearData().clearSpoolPath().clearModTimeOnly().clearSettled().build());
+      }
+    });
+    String rootGitIgnore = updates.stream().filter(u -> u.getPath().equals(".gitignore")).map(Update::getIgnoreString).findFirst().orElse("");
+    TreeSnapshotHeader header = TreeSnapshotHeader
+      .newBuilder()
+      .setVersion(version)
+      .setClock(clock)
+      .setRootGitIgnore(rootGitIgnore)
+      .setCount(updates.size())
+      .addAllUnconfirmed(unconfirmed)
+      .build();
+    Files.createDirectories(file.getParent());
+    // other sessions for the same root could be saving at the same time
+    Path tmp = file.resolveSibling(file.getFileName() + "." + UUID.randomUUID() + ".tmp");
+    try {
+      // use a FileOutputStream as we're often saving while our thread is being interrupted
+      try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp.toFile()), 1 << 16)) {
+        header.writeDelimitedTo(out);
+        for (Update u : updates) {
+          u.writeDelimitedTo(out);
+        }
+      }
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+    log.debug("Saved {} updates ({} unconfirmed) as of {} to {}", updates.size(), unconfirmed.size(), clock, file);
+  }
+
+  /** @return the saved snapshot, or empty if there isn't one or it's unreadable. */
+  public Optional<Loaded> load() {
+    if (!Files.exists(file)) {
+      return Optional.empty();
+    }
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+      TreeSnapshotHeader header = TreeSnapshotHeader.parseDelimitedFrom(in);
+      if (header == null || header.getVersion() != version || header.getClock().isEmpty()) {
+        return Optional.empty();
+      }
+      List<Update> updates = new ArrayList<>((int) Math.min(header.getCount(), 10_000_000));
+      Update u;
+      while ((u = Update.parseDelimitedFrom(in)) != null) {
+        updates.add(u);
+      }
+      if (updates.size() != header.getCount()) {
+        throw new IOException("Expected " + header.getCount() + " updates but found " + updates.size());
+      }
+      log.debug("Loaded {} updates as of {} from {}", updates.size(), header.getClock(), file);
+      return Optional.of(new Loaded(header.getClock(), header.getRootGitIgnore(), updates, header.getUnconfirmedList()));
+    } catch (IOException | RuntimeException e) {
+      // the snapshot is just an optimization, so start over
+      log.warn("Could not load snapshot from " + file, e);
+      return Optional.empty();
+    }
+  }
+
+  public void delete() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  /** A snapshot read back from disk. */
+  public static class Loaded {
+    public final String clock;
+    public final String rootGitIgnore;
+    public final List<Update> updates;
+    /** Paths that aren't in {@link #updates}, and whose current state needs to be queried. */
+    public final List<String> unconfirmed;
+
+    private Loaded(String clock, String rootGitIgnore, List<Update> updates, List<String> unconfirmed) {
+      this.clock = clock;
+      this.rootGitIgnore = rootGitIgnore;
+      this.updates = updates;
+      this.unconfirmed = unconfirmed;
+    }
+  }
+
+}
@@ -0,0 +1,72 @@
+package mirror;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.NettyServerBuilder;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * An opt-in profile for our grpc transport, for high-throughput links, e.g. a bulk sync
+ * of many small files over a fast LAN.
+ *
+ * On Linux, we use Netty's native epoll transport instead of NIO, which makes fewer
+ * syscalls and less garbage per read/write.
+ *
+ * Incoming messages are handled directly on the event loop, instead of hopping to grpc's
+ * default thread pool, as our observers only queue each update (the gunzipping and spooling
+ * happens on the session's own thread, see {@link MirrorSession#addRemoteUpdate}); initialSync,
+ * which does block, is moved onto its own threads by {@link MirrorServer#runInitialSyncsOn}.
+ *
+ * In {@link mirror.misc.TransportBenchmark}, each of these made 5000 4kb files ~1.2-1.4x faster,
+ * and ~1.3-1.5x together (~1.05-1.7x with 10ms of added latency); 64mb files were the same speed,
+ * as copying them onto the heap dominates. A pooled direct allocator made no difference, and
+ * we leave the flow-control window alone, as grpc already starts at 1mb and auto-tunes it to
+ * the link's bandwidth-delay product.
+ */
+public class TunedTransport {
+
+  private static final Logger log = LoggerFactory.getLogger(TunedTransport.class);
+  // shared by all of our channels/servers, e.g. the daemon's many sessions, and daemon threads so they don't keep the JVM alive
+  private static EventLoopGroup bossGroup;
+  private static EventLoopGroup workerGroup;
+
+  public static NettyServerBuilder tune(NettyServerBuilder builder) {
+    if (Epoll.isAvailable()) {
+      builder.channelType(EpollServerSocketChannel.class).bossEventLoopGroup(bossGroup()).workerEventLoopGroup(workerGroup());
+    } else {
+      log.info("Epoll is not available, using NIO: " + Epoll.unavailabilityCause());
+    }
+    return builder.directExecutor();
+  }
+
+  public static NettyChannelBuilder tune(NettyChannelBuilder builder) {
+    if (Epoll.isAvailable()) {
+      builder.channelType(EpollSocketChannel.class).eventLoopGroup(workerGroup());
+    } else {
+      log.info("Epoll is not available, using NIO: " + Epoll.unavailabilityCause());
+    }
+    return builder.directExecutor();
+  }
+
+  private static synchronized EventLoopGroup bossGroup() {
+    if (bossGroup == null) {
+      bossGroup = new EpollEventLoopGroup(1, new DefaultThreadFactory("mirror-epoll-boss", true));
+    }
+    return bossGroup;
+  }
+
+  private static synchronized EventLoopGroup workerGroup() {
+    if (workerGroup == null) {
+      workerGroup = new EpollEventLoopGroup(0, new DefaultThreadFactory("mirror-epoll", true));
+    }
+    return workerGroup;
+  }
+
+}
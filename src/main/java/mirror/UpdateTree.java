@@ -92,20 +92,28 @@ public class UpdateTree {
    * it's directory foo added first.
    */
   public void addLocal(Update local) {
-    addUpdate(local, true);
+    addUpdate(local, true, false);
+  }
+
+  /**
+   * Adds a local update whose instance is shared with other trees, e.g. by a {@link SharedFileWatcherFactory},
+   * so we keep it as-is, path included, as one shared copy is smaller than a path-less copy in each tree.
+   */
+  public void addSharedLocal(Update local) {
+    addUpdate(local, true, true);
   }
 
   public void addRemote(Update remote) {
-    addUpdate(remote, false);
+    addUpdate(remote, false, false);
   }
 
-  private void addUpdate(Update update, boolean local) {
+  private void addUpdate(Update update, boolean local, boolean shared) {
     if (update.getPath().startsWith("/") || update.getPath().endsWith("/")) {
       throw new IllegalArgumentException("Update path should not start or end with slash: " + update.getPath());
     }
     Node node = find(update.getPath());
     if (local) {
-      node.setLocal(update);
+      node.setLocal(update, true, shared);
     } else {
       node.setRemote(update);
     }
@@ -148,7 +156,8 @@ public class UpdateTree {
     return sb.toString();
   }
 
-  @VisibleForTesting Node find(String path) {
+  /** @return the node for {@code path}, creating it (and any parents) if necessary */
+  Node find(String path) {
     if ("".equals(path)) {
       return root;
     }
@@ -162,6 +171,28 @@ public class UpdateTree {
     return current;
   }
 
+  /** @return the node for {@code path}, or its closest ancestor if it's not in the tree, without creating any nodes */
+  Node findClosest(String path) {
+    if ("".equals(path)) {
+      return root;
+    }
+    Node current = root;
+    for (Path part : Paths.get(path)) {
+      Node child = current.getExistingChild(part.getFileName().toString());
+      if (child == null) {
+        break;
+      }
+      current = child;
+    }
+    return current;
+  }
+
+  /** @return the node for {@code path}, or null if it's not in the tree, without creating it */
+  Node findIfExists(String path) {
+    Node node = findClosest(path);
+    return node.getPath().equals(path) ? node : null;
+  }
+
   @VisibleForTesting List<Node> getChildren() {
     return root.children;
   }
@@ -181,6 +212,8 @@ public class UpdateTree {
     private boolean isDirty;
     private Update local;
     private Update remote;
+    // whether local came from the FileWatcher, vs. being what we expect after saving a remote update
+    private boolean localObserved;
     private Boolean shouldIgnore;
 
     private Node(Node parent, String name) {
@@ -197,6 +230,10 @@ public class UpdateTree {
     }
 
     void setRemote(Update remote) {
+      // if the remote data we had was never saved, it's been superseded
+      if (this.remote != null && !this.remote.getSpoolPath().equals(remote.getSpoolPath())) {
+        IncomingSpool.deleteSpoolFile(this.remote);
+      }
       this.remote = clearPath(remote);
       updateParentIgnoreRulesIfNeeded();
       markDirty();
@@ -206,7 +243,27 @@ public class UpdateTree {
       return local;
     }
 
+    /** Sets what we expect our local state to be, e.g. after saving a remote update, before the FileWatcher confirms it. */
     void setLocal(Update local) {
+      setLocal(local, false);
+    }
+
+    /** @return whether our local state was reported by the FileWatcher, vs. only expected */
+    boolean isLocalObserved() {
+      return localObserved;
+    }
+
+    /** Marks our expected local state as reported by the FileWatcher, e.g. when it sees our write of a remote update. */
+    void markLocalObserved() {
+      localObserved = true;
+    }
+
+    private void setLocal(Update local, boolean observed) {
+      setLocal(local, observed, false);
+    }
+
+    private void setLocal(Update local, boolean observed, boolean shared) {
+      Update given = local;
       // Deleted files don't have a modtime, so keep the previous mod time
       if (local != null && this.local != null && local.getDelete() && local.getModTime() == 0L) {
         local = local.toBuilder().setModTime(this.local.getModTime()).build();
@@ -231,13 +288,15 @@ public class UpdateTree {
         local = local.toBuilder().setModTime(this.local.getModTime() + minimumMillisPrecision).build();
       }
       boolean wasDirectory = this.local != null && this.local.getDirectory();
-      this.local = clearPath(local);
+      // only keep a shared instance if we didn't have to change it
+      this.local = shared && local == given ? local : clearPath(local);
+      this.localObserved = observed;
       // If we're no longer a directory, or we got deleted, ensure our children they are deleted.
       // Technically both Java's WatchService and watchman will send delete events for our children,
       // so this is just a safe guard (although watchman sends parent deletes first).
       if (((wasDirectory && !UpdateTree.isDirectory(local)) || local.getDelete()) && children != null) {
         children.stream().filter(c -> c.getLocal() != null && !c.getLocal().getDelete()).forEach(c -> {
-          c.setLocal(c.getLocal().toBuilder().setDelete(true).build());
+          c.setLocal(c.getLocal().toBuilder().setDelete(true).build(), observed);
         });
       }
       updateParentIgnoreRulesIfNeeded();
@@ -324,14 +383,35 @@ public class UpdateTree {
       return child;
     }
 
+    /** @return the node for {@code name}, or null if it doesn't exist */
+    Node getExistingChild(String name) {
+      if (children != null) {
+        for (Node child : children) {
+          if (child.getName().equals(name)) {
+            return child;
+          }
+        }
+      }
+      return null;
+    }
+
     List<Node> getChildren() {
       return children;
     }
 
+    /** Drops our reference to the remote data, e.g. after handing it to SaveToLocal, which then owns any spool file. */
     void clearData() {
       if (remote != null) {
-        remote = remote.toBuilder().setData(UpdateTree.initialSyncMarker).build();
+        remote = remote.toBuilder().setData(UpdateTree.initialSyncMarker).clearSpoolPath().build();
+      }
+    }
+
+    /** Drops the remote data without saving it, so also deletes any spool file. */
+    void discardData() {
+      if (remote != null) {
+        IncomingSpool.deleteSpoolFile(remote);
       }
+      clearData();
     }
 
     boolean isDirectory() {
@@ -71,7 +71,9 @@ public class UpdateTreeDiff {
         if (local.getDelete() && node.isParentDeleted()) {
           // don't send repetitive deletes
         } else {
-          results.sendToRemote.add(node.restorePath(local));
+          // if the file was only touched/rewritten with the same contents, the remote only needs the new modtime
+          boolean modTimeOnly = isSameContent(local, remote);
+          results.sendToRemote.add(node.restorePath(local.toBuilder().setModTimeOnly(modTimeOnly).build()));
         }
       }
       node.setRemote(local);
@@ -87,22 +89,34 @@ public class UpdateTreeDiff {
       // the remote when it does it's own initial sync
       boolean skipBecauseNoData = UpdateTree.isFile(remote) && !remote.getDelete() && remote.getData().equals(UpdateTree.initialSyncMarker);
       if (!skipBecauseNoData) {
+        // we're done with the data, so don't keep it in memory (or on disk, if we're not saving it)
         if (!node.shouldIgnore()) {
           debugIfEnabled(node, "isRemoteNewer");
           results.saveLocally.add(node.restorePath(remote));
+          node.clearData();
+        } else {
+          node.discardData();
         }
-        // we're done with the data, so don't keep it in memory
-        node.clearData();
-        node.setLocal(remote);
+        node.setLocal(remote.toBuilder().clearData().clearSpoolPath().build());
       }
     } else {
       // should rarely/never happen (although it did happen when a bug existed), but
       // if the remote side sends over data that exactly matches what we already have,
-      // we won't save but, which is fine, but make sure we free it from memory
-      node.clearData();
+      // we won't save but, which is fine, but make sure we free it from memory (and the spool)
+      node.discardData();
     }
   }
 
+  private static boolean isSameContent(Update local, Update remote) {
+    return remote != null
+      && UpdateTree.isFile(local)
+      && UpdateTree.isFile(remote)
+      && !local.getDelete()
+      && !remote.getDelete()
+      && !local.getContentHash().isEmpty()
+      && local.getContentHash().equals(remote.getContentHash());
+  }
+
   private void debugIfEnabled(Node node, String operation) {
     if (tree.config.shouldDebug(node)) {
       log.info(node.getPath() + " " + operation);
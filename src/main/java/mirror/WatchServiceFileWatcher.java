@@ -11,17 +11,15 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.FileSystems;
-import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.SimpleFileVisitor;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
@@ -252,28 +250,23 @@ public class WatchServiceFileWatcher implements TaskLogic, FileWatcher {
       // for existing directories, just emit an Update event
       putDir(queue, directory, lastModified(directory));
     } else {
-      // Otherwise setup watchers on the whole tree.
-      // Use walkFileTree because it in theory could minimize system calls, e.g.
-      // like http://benhoyt.com/writings/scandir/. FWIW I don't actually know if
-      // walkFileTree behaves this way, but it's cute.
-      Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+      // Otherwise setup watchers on the whole tree, scanning directories in parallel, and
+      // using the attributes from the scan instead of stat'ing each file again.
+      ParallelTreeScanner.scan(directory, new ParallelTreeScanner.Visitor() {
         @Override
-        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        public boolean visitDirectory(Path dir, PosixFileAttributes attrs) throws IOException {
           putDir(queue, dir, attrs.lastModifiedTime().toMillis());
           watchDirectory(dir);
-          return FileVisitResult.CONTINUE;
+          return true;
         }
 
         @Override
-        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        public void visitFile(Path file, PosixFileAttributes attrs) throws IOException {
           if (attrs.isSymbolicLink()) {
-            // reuse onChangedSymbolicLink even though it will do a file access for the
-            // mod time, which we already have available in the attrs object
-            onChangedSymbolicLink(queue, file);
+            onChangedSymbolicLink(queue, file, attrs.lastModifiedTime().toMillis());
           } else {
-            putFile(queue, file, attrs.lastModifiedTime().toMillis());
+            putFile(queue, file, attrs);
           }
-          return FileVisitResult.CONTINUE;
         }
       });
     }
@@ -298,10 +291,14 @@ public class WatchServiceFileWatcher implements TaskLogic, FileWatcher {
   }
 
   private void onChangedFile(BlockingQueue<Update> queue, Path file) throws IOException {
-    putFile(queue, file, lastModified(file));
+    putFile(queue, file, ParallelTreeScanner.readAttributes(file));
   }
 
   private void onChangedSymbolicLink(BlockingQueue<Update> queue, Path path) throws IOException {
+    onChangedSymbolicLink(queue, path, lastModified(path));
+  }
+
+  private void onChangedSymbolicLink(BlockingQueue<Update> queue, Path path, long modTime) throws IOException {
     Path symlink = Files.readSymbolicLink(path);
     String targetPath;
     if (symlink.isAbsolute()) {
@@ -312,22 +309,22 @@ public class WatchServiceFileWatcher implements TaskLogic, FileWatcher {
     }
     String relativePath = toRelativePath(path);
     log.trace("Symlink {}, relative={}, target={}", path, relativePath, targetPath);
-    put(queue, Update.newBuilder().setPath(relativePath).setSymlink(targetPath).setModTime(lastModified(path)).setLocal(true).build());
+    put(queue, Update.newBuilder().setPath(relativePath).setSymlink(targetPath).setModTime(modTime).setLocal(true).build());
   }
 
   private void putDir(BlockingQueue<Update> queue, Path dir, long modTime) {
     put(queue, Update.newBuilder().setPath(toRelativePath(dir)).setDirectory(true).setLocal(true).setModTime(modTime).build());
   }
 
-  private void putFile(BlockingQueue<Update> queue, Path file, long modTime) throws IOException {
+  private void putFile(BlockingQueue<Update> queue, Path file, PosixFileAttributes attrs) throws IOException {
     String relativePath = toRelativePath(file);
     Update.Builder b = Update
       .newBuilder() //
       .setPath(relativePath)
       .setDirectory(false)
       .setLocal(true)
-      .setModTime(modTime)
-      .setExecutable(fileAccess.isExecutable(Paths.get(relativePath)));
+      .setModTime(attrs.lastModifiedTime().toMillis())
+      .setExecutable(NativeFileAccessUtils.isExecutable(attrs.permissions()));
     // In theory we should read this in the debouncer, but performInitialScan
     // does not go through that codepath
     if (file.getFileName().toString().equals(".gitignore")) {
@@ -0,0 +1,136 @@
+package mirror.hash;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.ByteString;
+
+/**
+ * Hashes file contents with {@link XxHash64}, either inline or on a shared pool of workers.
+ *
+ * Small files are read through a per-thread direct buffer, and large files are
+ * memory-mapped, so that hashing doesn't allocate on the heap regardless of file size.
+ *
+ * Hashes are formatted as strings prefixed by the algorithm, e.g. {@code xxh64:...},
+ * so that if we ever change algorithms, old and new hashes will never compare equal.
+ */
+public class ContentHasher {
+
+  public static final ContentHasher shared = new ContentHasher(Runtime.getRuntime().availableProcessors());
+  private static final String prefix = "xxh64:";
+  // hashes from watchman's content.sha1hex field, see WatchmanFileWatcher
+  private static final String sha1Prefix = "sha1:";
+  // Files at least this big are mapped instead of read; mapping has a fixed cost that isn't worth it for small files
+  private static final long mapThreshold = 1024 * 1024;
+  // Map large files in chunks, so we don't need a huge amount of address space per worker
+  private static final long mapChunkSize = 64 * 1024 * 1024;
+  private static final ThreadLocal<ByteBuffer> readBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(64 * 1024));
+  private final ExecutorService pool;
+
+  /** @return {@code data}'s hash, in the same format as {@link #hash(Path)} */
+  public static String hash(ByteString data) {
+    XxHash64 h = new XxHash64();
+    data.asReadOnlyByteBufferList().forEach(h::update);
+    return format(h.digest());
+  }
+
+  /** @return {@code data}'s hash, in the same format as {@link #hash(Path)} */
+  public static String hash(byte[] data) {
+    return format(XxHash64.hash(data));
+  }
+
+  /** @return the string form of a hash that was computed by streaming data into {@link XxHash64} */
+  public static String format(long hash) {
+    return prefix + String.format("%016x", hash);
+  }
+
+  /** @return a hex SHA-1 from watchman as a hash string */
+  public static String formatSha1(String sha1hex) {
+    return sha1Prefix + sha1hex;
+  }
+
+  /** @return whether {@code hash} is in the format that we compute, vs. one we got from elsewhere, e.g. watchman */
+  public static boolean isOwnFormat(String hash) {
+    return hash.startsWith(prefix);
+  }
+
+  /** @return {@code data}'s hash, in the same format as {@code other}, so that the two can be compared */
+  public static String hashLike(String other, ByteString data) {
+    if (other.startsWith(sha1Prefix)) {
+      return formatSha1(Hashing.sha1().hashBytes(data.toByteArray()).toString());
+    }
+    return hash(data);
+  }
+
+  public ContentHasher(int threads) {
+    this.pool = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ContentHasher-%s").build());
+  }
+
+  /** @return the pool that {@link #hashAsync(Path)} uses, for callers that want to do other hashing-related work on it */
+  public ExecutorService getPool() {
+    return pool;
+  }
+
+  /** @return a future of {@code absolutePath}'s hash, computed on our worker pool */
+  public CompletableFuture<String> hashAsync(Path absolutePath) {
+    CompletableFuture<String> f = new CompletableFuture<>();
+    pool.execute(() -> {
+      try {
+        f.complete(hash(absolutePath));
+      } catch (IOException | RuntimeException e) {
+        f.completeExceptionally(e);
+      }
+    });
+    return f;
+  }
+
+  /** @return {@code absolutePath}'s hash, computed on the current thread */
+  public String hash(Path absolutePath) throws IOException {
+    try (FileChannel fc = FileChannel.open(absolutePath, StandardOpenOption.READ)) {
+      XxHash64 h = new XxHash64();
+      long size = fc.size();
+      if (size >= mapThreshold) {
+        hashMapped(fc, size, h);
+      } else {
+        hashRead(fc, h);
+      }
+      return format(h.digest());
+    } catch (NoSuchFileException e) {
+      throw new FileNotFoundException(e.getMessage());
+    }
+  }
+
+  private static void hashRead(FileChannel fc, XxHash64 h) throws IOException {
+    ByteBuffer buffer = readBuffers.get();
+    buffer.clear();
+    while (fc.read(buffer) > 0) {
+      buffer.flip();
+      h.update(buffer);
+      buffer.clear();
+    }
+  }
+
+  private static void hashMapped(FileChannel fc, long size, XxHash64 h) throws IOException {
+    try {
+      for (long position = 0; position < size; position += mapChunkSize) {
+        MappedByteBuffer chunk = fc.map(FileChannel.MapMode.READ_ONLY, position, Math.min(mapChunkSize, size - position));
+        h.update(chunk);
+      }
+    } catch (InternalError e) {
+      // the JVM turns a SIGBUS (the file was truncated while mapped) into an InternalError
+      throw new IOException("File changed while being hashed", e);
+    }
+  }
+
+}
@@ -0,0 +1,136 @@
+package mirror.hash;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A streaming implementation of the <a href="https://cyan4973.github.io/xxHash/">xxHash64</a> hash.
+ *
+ * xxHash is not a cryptographic hash, but it's well-distributed and runs at close
+ * to memory bandwidth, which is all we need for noticing whether a file's contents
+ * have changed.
+ *
+ * Instances are not thread safe; call {@link #update(ByteBuffer)} as data is read,
+ * and then {@link #digest()} at the end.
+ */
+public class XxHash64 {
+
+  private static final long P1 = 0x9E3779B185EBCA87L;
+  private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+  private static final long P3 = 0x165667B19E3779F9L;
+  private static final long P4 = 0x85EBCA77C2B2AE63L;
+  private static final long P5 = 0x27D4EB2F165667C5L;
+  private final long seed;
+  // the 32-byte stripe we're still filling, if the last update didn't end on a stripe boundary
+  private final ByteBuffer pending = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+  private long v1;
+  private long v2;
+  private long v3;
+  private long v4;
+  private long totalLength;
+
+  /** @return the hash of the remaining bytes in {@code data}, without changing its position */
+  public static long hash(ByteBuffer data) {
+    XxHash64 h = new XxHash64();
+    h.update(data.duplicate());
+    return h.digest();
+  }
+
+  public static long hash(byte[] data) {
+    return hash(ByteBuffer.wrap(data));
+  }
+
+  public XxHash64() {
+    this(0);
+  }
+
+  public XxHash64(long seed) {
+    this.seed = seed;
+    v1 = seed + P1 + P2;
+    v2 = seed + P2;
+    v3 = seed;
+    v4 = seed - P1;
+  }
+
+  /** Consumes the remaining bytes of {@code data}. */
+  public void update(ByteBuffer data) {
+    ByteBuffer in = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    totalLength += in.remaining();
+    // finish any partial stripe from the last update
+    if (pending.position() > 0) {
+      while (pending.hasRemaining() && in.hasRemaining()) {
+        pending.put(in.get());
+      }
+      if (pending.hasRemaining()) {
+        data.position(data.limit());
+        return;
+      }
+      pending.flip();
+      stripe(pending);
+      pending.clear();
+    }
+    while (in.remaining() >= 32) {
+      stripe(in);
+    }
+    pending.put(in);
+    data.position(data.limit());
+  }
+
+  public void update(byte[] data, int offset, int length) {
+    update(ByteBuffer.wrap(data, offset, length));
+  }
+
+  /** @return the hash of all of the bytes passed to {@link #update(ByteBuffer)} so far */
+  public long digest() {
+    long h;
+    if (totalLength >= 32) {
+      h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+      h = mergeRound(h, v1);
+      h = mergeRound(h, v2);
+      h = mergeRound(h, v3);
+      h = mergeRound(h, v4);
+    } else {
+      h = seed + P5;
+    }
+    h += totalLength;
+    ByteBuffer tail = pending.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    tail.flip();
+    while (tail.remaining() >= 8) {
+      h ^= round(0, tail.getLong());
+      h = Long.rotateLeft(h, 27) * P1 + P4;
+    }
+    if (tail.remaining() >= 4) {
+      h ^= (tail.getInt() & 0xFFFFFFFFL) * P1;
+      h = Long.rotateLeft(h, 23) * P2 + P3;
+    }
+    while (tail.hasRemaining()) {
+      h ^= (tail.get() & 0xFF) * P5;
+      h = Long.rotateLeft(h, 11) * P1;
+    }
+    h ^= h >>> 33;
+    h *= P2;
+    h ^= h >>> 29;
+    h *= P3;
+    h ^= h >>> 32;
+    return h;
+  }
+
+  private void stripe(ByteBuffer in) {
+    v1 = round(v1, in.getLong());
+    v2 = round(v2, in.getLong());
+    v3 = round(v3, in.getLong());
+    v4 = round(v4, in.getLong());
+  }
+
+  private static long round(long acc, long input) {
+    acc += input * P2;
+    acc = Long.rotateLeft(acc, 31);
+    return acc * P1;
+  }
+
+  private static long mergeRound(long acc, long value) {
+    acc ^= round(0, value);
+    return acc * P1 + P4;
+  }
+
+}
@@ -0,0 +1,209 @@
+package mirror.inotify;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import jnr.constants.platform.Errno;
+import jnr.ffi.LastError;
+import jnr.ffi.LibraryLoader;
+import jnr.ffi.Platform;
+import jnr.ffi.Runtime;
+import jnr.ffi.annotations.In;
+import jnr.ffi.annotations.Out;
+import jnr.ffi.types.size_t;
+import jnr.ffi.types.ssize_t;
+
+/**
+ * A minimal binding to the Linux inotify API, via jnr-ffi (which jnr-posix is built on).
+ *
+ * jnr-posix itself doesn't expose inotify, so we bind the few libc calls we need directly.
+ */
+public class Inotify implements Closeable {
+
+  public static final int IN_MODIFY = 0x00000002;
+  public static final int IN_ATTRIB = 0x00000004;
+  public static final int IN_CLOSE_WRITE = 0x00000008;
+  public static final int IN_MOVED_FROM = 0x00000040;
+  public static final int IN_MOVED_TO = 0x00000080;
+  public static final int IN_CREATE = 0x00000100;
+  public static final int IN_DELETE = 0x00000200;
+  public static final int IN_Q_OVERFLOW = 0x00004000;
+  public static final int IN_IGNORED = 0x00008000;
+  public static final int IN_ONLYDIR = 0x01000000;
+  public static final int IN_DONT_FOLLOW = 0x02000000;
+  public static final int IN_EXCL_UNLINK = 0x04000000;
+  public static final int IN_ISDIR = 0x40000000;
+  private static final int IN_NONBLOCK = 0x800;
+  private static final int IN_CLOEXEC = 0x80000;
+  private static final short POLLIN = 1;
+  // Read events in large batches, so that a burst of changes (e.g. a git checkout) takes few syscalls
+  private static final int bufferSize = 256 * 1024;
+  private static final LibC libc = loadIfAvailable();
+  private final int fd;
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.nativeOrder());
+  private final ByteBuffer pollFd = ByteBuffer.allocateDirect(8).order(ByteOrder.nativeOrder());
+  private boolean lastReadWasFull;
+
+  /** The libc calls we need; the method names have to match the C functions. */
+  public interface LibC {
+    int inotify_init1(int flags);
+
+    int inotify_add_watch(int fd, String path, int mask);
+
+    int inotify_rm_watch(int fd, int wd);
+
+    @ssize_t
+    long read(int fd, @Out ByteBuffer buffer, @size_t long count);
+
+    int poll(@In @Out ByteBuffer fds, long nfds, int timeout);
+
+    int close(int fd);
+  }
+
+  /** A single inotify event; {@code name} is relative to the watched directory, and empty for events on the directory itself. */
+  public static class Event {
+    public final int wd;
+    public final int mask;
+    public final int cookie;
+    public final String name;
+
+    private Event(int wd, int mask, int cookie, String name) {
+      this.wd = wd;
+      this.mask = mask;
+      this.cookie = cookie;
+      this.name = name;
+    }
+
+    public boolean is(int flag) {
+      return (mask & flag) != 0;
+    }
+
+    @Override
+    public String toString() {
+      return "Event[wd=" + wd + ", mask=" + Integer.toHexString(mask) + ", cookie=" + cookie + ", name=" + name + "]";
+    }
+  }
+
+  /** @return whether we're on Linux and could bind to inotify */
+  public static boolean isAvailable() {
+    return libc != null;
+  }
+
+  public static Inotify open() throws IOException {
+    if (libc == null) {
+      throw new IOException("inotify is not available on this platform");
+    }
+    int fd = libc.inotify_init1(IN_NONBLOCK | IN_CLOEXEC);
+    if (fd < 0) {
+      throw new IOException("inotify_init1 failed with " + lastError());
+    }
+    return new Inotify(fd);
+  }
+
+  private Inotify(int fd) {
+    this.fd = fd;
+  }
+
+  /** @return the watch descriptor for {@code absoluteDirectory}, which is the same descriptor if it was already watched */
+  public int addWatch(Path absoluteDirectory, int mask) throws IOException {
+    int wd = libc.inotify_add_watch(fd, absoluteDirectory.toString(), mask);
+    if (wd < 0) {
+      Errno errno = lastError();
+      if (errno == Errno.ENOSPC) {
+        throw new IOException("Ran out of inotify watches, please increase fs.inotify.max_user_watches");
+      }
+      throw new IOException("inotify_add_watch failed for " + absoluteDirectory + " with " + errno);
+    }
+    return wd;
+  }
+
+  public void removeWatch(int wd) {
+    // this fails if the kernel already removed the watch, e.g. the directory was deleted, which is fine
+    libc.inotify_rm_watch(fd, wd);
+  }
+
+  /**
+   * Reads all of the currently-available events, waiting up to {@code timeoutMillis} for the first one.
+   *
+   * @return the events, or an empty list if the timeout elapsed
+   */
+  public List<Event> read(int timeoutMillis) throws IOException {
+    List<Event> events = new ArrayList<>();
+    pollFd.clear();
+    pollFd.putInt(0, fd).putShort(4, POLLIN).putShort(6, (short) 0);
+    int ready = libc.poll(pollFd, 1, timeoutMillis);
+    if (ready <= 0) {
+      // either a timeout, or EINTR, and in both cases we'll just be called again
+      lastReadWasFull = false;
+      return events;
+    }
+    buffer.clear();
+    long n = libc.read(fd, buffer, bufferSize);
+    if (n < 0) {
+      Errno errno = lastError();
+      if (errno == Errno.EAGAIN || errno == Errno.EINTR) {
+        lastReadWasFull = false;
+        return events;
+      }
+      throw new IOException("inotify read failed with " + errno);
+    }
+    // struct inotify_event { int wd; uint32_t mask; uint32_t cookie; uint32_t len; char name[len]; }
+    int position = 0;
+    while (position + 16 <= n) {
+      int wd = buffer.getInt(position);
+      int mask = buffer.getInt(position + 4);
+      int cookie = buffer.getInt(position + 8);
+      int len = buffer.getInt(position + 12);
+      events.add(new Event(wd, mask, cookie, readName(position + 16, len)));
+      position += 16 + len;
+    }
+    // if we filled the buffer, there are probably more events waiting, e.g. the other half of a rename
+    lastReadWasFull = n > bufferSize - 4096;
+    return events;
+  }
+
+  /** @return whether the last {@link #read(int)} filled most of our buffer, so more events are likely already waiting */
+  public boolean lastReadWasFull() {
+    return lastReadWasFull;
+  }
+
+  @Override
+  public void close() {
+    libc.close(fd);
+  }
+
+  private String readName(int offset, int len) {
+    // the name is null-terminated and then null-padded to an alignment boundary
+    int end = offset;
+    while (end < offset + len && buffer.get(end) != 0) {
+      end++;
+    }
+    byte[] name = new byte[end - offset];
+    for (int i = 0; i < name.length; i++) {
+      name[i] = buffer.get(offset + i);
+    }
+    return new String(name, StandardCharsets.UTF_8);
+  }
+
+  private static Errno lastError() {
+    return Errno.valueOf(LastError.getLastError(Runtime.getRuntime(libc)));
+  }
+
+  private static LibC loadIfAvailable() {
+    if (Platform.getNativePlatform().getOS() != Platform.OS.LINUX) {
+      return null;
+    }
+    try {
+      return LibraryLoader.create(LibC.class).load("c");
+    } catch (LinkageError | RuntimeException e) {
+      return null;
+    }
+  }
+
+}
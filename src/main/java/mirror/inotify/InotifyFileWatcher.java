@@ -0,0 +1,417 @@
+package mirror.inotify;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static mirror.Utils.resetIfInterrupted;
+import static mirror.inotify.Inotify.IN_ATTRIB;
+import static mirror.inotify.Inotify.IN_CLOSE_WRITE;
+import static mirror.inotify.Inotify.IN_CREATE;
+import static mirror.inotify.Inotify.IN_DELETE;
+import static mirror.inotify.Inotify.IN_DONT_FOLLOW;
+import static mirror.inotify.Inotify.IN_EXCL_UNLINK;
+import static mirror.inotify.Inotify.IN_IGNORED;
+import static mirror.inotify.Inotify.IN_ISDIR;
+import static mirror.inotify.Inotify.IN_MOVED_FROM;
+import static mirror.inotify.Inotify.IN_MOVED_TO;
+import static mirror.inotify.Inotify.IN_ONLYDIR;
+import static mirror.inotify.Inotify.IN_Q_OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.TextFormat;
+
+import mirror.FileWatcher;
+import mirror.LoggingConfig;
+import mirror.MirrorPaths;
+import mirror.ParallelTreeScanner;
+import mirror.Update;
+import mirror.UpdateTree;
+import mirror.tasks.TaskFactory;
+import mirror.tasks.ThreadBasedTaskFactory;
+
+/**
+ * A {@link FileWatcher} that uses Linux's inotify directly, so doesn't need the watchman daemon.
+ *
+ * Unlike {@link mirror.WatchServiceFileWatcher}, we see the raw inotify events, which
+ * lets us:
+ *
+ * 1. Pair up IN_MOVED_FROM/IN_MOVED_TO events by their cookie, so that a renamed
+ * directory's watch descriptors are re-pointed at its new path, instead of events
+ * for its children being reported against the old path.
+ *
+ * 2. Wait for IN_CLOSE_WRITE before emitting a regular file, so we don't send files
+ * that are still being written, and can mark the updates as {@code settled}, which
+ * lets SyncLogic skip its size-polling in {@code Utils.ensureSettled}. Not every file
+ * gets an IN_CLOSE_WRITE, e.g. hard links, chmods, or mmap'd and long-lived writers, so
+ * if a regular file's IN_CREATE or IN_ATTRIB isn't followed by an IN_CLOSE_WRITE within
+ * {@link #unclosedWindow}, we emit it anyway, as unsettled, so SyncLogic's settle check
+ * applies to it. (Waiting first means the common create/write/close doesn't make
+ * SyncLogic poll the file's size.)
+ *
+ * (A file can still change after its IN_CLOSE_WRITE, e.g. if it's re-opened, but then
+ * we'll get another IN_CLOSE_WRITE, so the last update we emit is always complete.)
+ */
+public class InotifyFileWatcher implements FileWatcher {
+
+  private static final Logger log = LoggerFactory.getLogger(InotifyFileWatcher.class);
+  private static final int watchMask = IN_ATTRIB
+    | IN_CLOSE_WRITE
+    | IN_CREATE
+    | IN_DELETE
+    | IN_MOVED_FROM
+    | IN_MOVED_TO
+    | IN_DONT_FOLLOW
+    | IN_ONLYDIR
+    | IN_EXCL_UNLINK;
+  // How long to block in poll before checking if we've been stopped
+  private static final int pollMillis = 250;
+  // How long to wait for an IN_CLOSE_WRITE after an IN_CREATE/IN_ATTRIB; this matches how recent
+  // a modtime has to be for Utils.ensureSettled to poll the file's size
+  static final Duration unclosedWindow = Duration.ofSeconds(2);
+  private final MirrorPaths config;
+  private final Path ourRoot;
+  private final BlockingQueue<Update> queue;
+  // relative directory paths, with "" for the root
+  private final Map<Integer, String> wdToPath = new ConcurrentHashMap<>();
+  private final Map<String, Integer> pathToWd = new ConcurrentHashMap<>();
+  // IN_MOVED_FROM events that are waiting for their IN_MOVED_TO, by cookie
+  private final Map<Integer, MovedFrom> movedFrom = new LinkedHashMap<>();
+  // regular files that had an IN_CREATE/IN_ATTRIB, and are waiting for an IN_CLOSE_WRITE, to when we first saw them
+  private final Map<String, Long> unclosed = new LinkedHashMap<>();
+  private volatile Inotify inotify;
+
+  /** Main method for doing manual debugging/observation of behavior. */
+  public static void main(String[] args) throws Exception {
+    LoggingConfig.initWithTracing();
+    TaskFactory f = new ThreadBasedTaskFactory();
+    Path testDirectory = Paths.get("/home/stephen/dir1");
+    BlockingQueue<Update> queue = new LinkedBlockingQueue<>();
+    InotifyFileWatcher w = new InotifyFileWatcher(MirrorPaths.forTesting(testDirectory), queue);
+    log.info("Starting performInitialScan");
+    List<Update> initialScan = w.performInitialScan();
+    initialScan.forEach(node -> {
+      log.info("Initial: " + UpdateTree.toDebugString(node));
+    });
+    f.runTask(w);
+    while (true) {
+      log.info("Update: " + UpdateTree.toDebugString(queue.take()));
+    }
+  }
+
+  public InotifyFileWatcher(MirrorPaths config, BlockingQueue<Update> queue) {
+    this.config = config;
+    try {
+      this.ourRoot = config.root.toFile().getCanonicalFile().toPath();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    this.queue = queue;
+  }
+
+  @Override
+  public List<Update> performInitialScan() throws Exception {
+    inotify = Inotify.open();
+    scan("");
+    List<Update> updates = new ArrayList<>(queue.size());
+    queue.drainTo(updates);
+    return updates;
+  }
+
+  @Override
+  public Duration runOneLoop() throws InterruptedException {
+    try {
+      for (Inotify.Event event : inotify.read(pollMillis)) {
+        if (log.isTraceEnabled()) {
+          log.trace("Event: " + event);
+        }
+        handleEvent(event);
+      }
+      // a rename's IN_MOVED_TO comes right after its IN_MOVED_FROM, so if we've
+      // read everything that was queued, any unpaired MOVED_FROMs were moved out of our root
+      if (!inotify.lastReadWasFull()) {
+        flushMovedOut();
+      }
+      flushUnclosed();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return null;
+  }
+
+  @Override
+  public void onStop() {
+    if (inotify != null) {
+      inotify.close();
+    }
+  }
+
+  private void handleEvent(Inotify.Event event) throws IOException {
+    if (event.is(IN_Q_OVERFLOW)) {
+      throw new RuntimeException("inotify queue overflowed, consider increasing fs.inotify.max_queued_events");
+    }
+    String parent = wdToPath.get(event.wd);
+    if (parent == null) {
+      return; // a watch we've already forgotten about
+    }
+    if (event.is(IN_IGNORED)) {
+      // the kernel removed the watch, e.g. because the directory was deleted
+      wdToPath.remove(event.wd);
+      pathToWd.remove(parent, event.wd);
+      return;
+    }
+    if (event.name.isEmpty()) {
+      return; // events on the directory itself are also reported, with a name, to its parent's watch
+    }
+    String path = parent.isEmpty() ? event.name : parent + "/" + event.name;
+    boolean isDir = event.is(IN_ISDIR);
+    if (event.is(IN_MOVED_FROM)) {
+      unclosed.remove(path);
+      movedFrom.put(event.cookie, new MovedFrom(path, isDir));
+    } else if (event.is(IN_MOVED_TO)) {
+      MovedFrom from = movedFrom.remove(event.cookie);
+      if (from != null) {
+        putDelete(from.path);
+        if (from.isDir) {
+          renameWatches(from.path, path);
+        }
+      }
+      // even files that were just renamed need to be sent to the remote with their new name
+      putPathOrScan(path, isDir);
+    } else if (event.is(IN_CREATE)) {
+      if (isDir) {
+        // children might have been created before we could add our watch
+        scan(path);
+      } else if (!Files.isRegularFile(ourRoot.resolve(path), LinkOption.NOFOLLOW_LINKS)) {
+        // symlinks are never opened for writing, so we won't get an IN_CLOSE_WRITE for them
+        putPath(path, true);
+      } else {
+        // usually the writer's IN_CLOSE_WRITE follows, but e.g. hard links never get one
+        unclosed.putIfAbsent(path, System.nanoTime());
+      }
+    } else if (event.is(IN_CLOSE_WRITE)) {
+      unclosed.remove(path);
+      putPath(path, true);
+    } else if (event.is(IN_ATTRIB)) {
+      if (isDir) {
+        putPath(path, true);
+      } else {
+        // e.g. a chmod or touch, which can also happen while the file is being written
+        unclosed.putIfAbsent(path, System.nanoTime());
+      }
+    } else if (event.is(IN_DELETE)) {
+      unclosed.remove(path);
+      putDelete(path);
+      if (isDir) {
+        forgetWatches(path, false);
+      }
+    }
+  }
+
+  private void putPathOrScan(String path, boolean isDir) throws IOException {
+    if (isDir) {
+      scan(path);
+    } else {
+      putPath(path, true);
+    }
+  }
+
+  /**
+   * Watches {@code relativeDir} and all of its sub-directories, and emits everything in them.
+   *
+   * Files are emitted as settled, as any that are still being written will get an IN_CLOSE_WRITE
+   * once they're done, now that we're watching their directory.
+   */
+  private void scan(String relativeDir) throws IOException {
+    // scan directories in parallel, using the attributes from the scan instead of stat'ing each file again
+    ParallelTreeScanner.scan(ourRoot.resolve(relativeDir), new ParallelTreeScanner.Visitor() {
+      @Override
+      public boolean visitDirectory(Path dir, PosixFileAttributes attrs) throws IOException {
+        String path = toRelativePath(dir);
+        try {
+          // add the watch before we list the directory, so we can't miss new files
+          watch(path, dir);
+        } catch (NoSuchFileException e) {
+          return false; // the directory was already deleted, and we'll get an event for that
+        }
+        if (!path.isEmpty()) {
+          putPath(path, attrs, true);
+        }
+        return true;
+      }
+
+      @Override
+      public void visitFile(Path file, PosixFileAttributes attrs) throws IOException {
+        putPath(toRelativePath(file), attrs, true);
+      }
+    });
+  }
+
+  private void watch(String relativeDir, Path absoluteDir) throws IOException {
+    if (!Files.isDirectory(absoluteDir, LinkOption.NOFOLLOW_LINKS)) {
+      throw new NoSuchFileException(absoluteDir.toString());
+    }
+    int wd = inotify.addWatch(absoluteDir, watchMask);
+    wdToPath.put(wd, relativeDir);
+    pathToWd.put(relativeDir, wd);
+  }
+
+  /** Re-points the watches for {@code from} and its sub-directories to their new paths under {@code to}. */
+  private void renameWatches(String from, String to) {
+    for (Map.Entry<String, Integer> e : new ArrayList<>(pathToWd.entrySet())) {
+      String path = e.getKey();
+      if (isSameOrChild(path, from)) {
+        String newPath = to + path.substring(from.length());
+        pathToWd.remove(path);
+        pathToWd.put(newPath, e.getValue());
+        wdToPath.put(e.getValue(), newPath);
+      }
+    }
+  }
+
+  /** Forgets the watches for {@code dir} and its sub-directories, and removes them from the kernel if they're still active. */
+  private void forgetWatches(String dir, boolean removeFromKernel) {
+    for (Map.Entry<String, Integer> e : new ArrayList<>(pathToWd.entrySet())) {
+      if (isSameOrChild(e.getKey(), dir)) {
+        pathToWd.remove(e.getKey());
+        wdToPath.remove(e.getValue());
+        if (removeFromKernel) {
+          inotify.removeWatch(e.getValue());
+        }
+      }
+    }
+  }
+
+  private void flushMovedOut() {
+    movedFrom.values().forEach(from -> {
+      putDelete(from.path);
+      if (from.isDir) {
+        // the directory still exists (just not under our root), so the kernel is still watching it
+        forgetWatches(from.path, true);
+      }
+    });
+    movedFrom.clear();
+  }
+
+  /** Emits the regular files that haven't had an IN_CLOSE_WRITE within {@link #unclosedWindow}, as unsettled. */
+  private void flushUnclosed() throws IOException {
+    long now = System.nanoTime();
+    Iterator<Map.Entry<String, Long>> i = unclosed.entrySet().iterator();
+    while (i.hasNext()) {
+      Map.Entry<String, Long> e = i.next();
+      if (now - e.getValue() < unclosedWindow.toNanos()) {
+        break; // the rest were seen after this one
+      }
+      i.remove();
+      putPath(e.getKey(), false);
+    }
+  }
+
+  private void putPath(String path, boolean settled) throws IOException {
+    PosixFileAttributes attrs;
+    try {
+      attrs = ParallelTreeScanner.readAttributes(ourRoot.resolve(path));
+    } catch (NoSuchFileException e) {
+      return; // it was deleted, and we'll get an event for that
+    }
+    putPath(path, attrs, settled);
+  }
+
+  private void putPath(String path, PosixFileAttributes attrs, boolean settled) throws IOException {
+    Path absolutePath = ourRoot.resolve(path);
+    Update.Builder ub = Update
+      .newBuilder()
+      .setPath(path)
+      .setModTime(attrs.lastModifiedTime().toMillis())
+      .setDirectory(attrs.isDirectory())
+      .setExecutable(isExecutable(attrs.permissions()))
+      .setSettled(settled)
+      .setLocal(true);
+    if (attrs.isSymbolicLink()) {
+      try {
+        readSymlinkTarget(ub, absolutePath);
+      } catch (IOException e) {
+        // ignore as the file probably disappeared
+        log.debug("Exception reading symlink, assumed stale", e);
+        return;
+      }
+    }
+    if (path.endsWith(".gitignore") && attrs.isRegularFile()) {
+      try {
+        ub.setIgnoreString(FileUtils.readFileToString(absolutePath.toFile(), UTF_8));
+      } catch (IOException e) {
+        // ignore as the file probably disappeared
+        log.debug("Exception reading .gitignore, assumed stale", e);
+      }
+    }
+    put(ub.build());
+  }
+
+  private void putDelete(String path) {
+    put(Update.newBuilder().setPath(path).setDelete(true).setLocal(true).build());
+  }
+
+  private void put(Update u) {
+    if (log.isTraceEnabled()) {
+      log.trace("Queueing: " + TextFormat.shortDebugString(u));
+    }
+    if (config.shouldDebug(u.getPath())) {
+      log.info("Queueing: " + TextFormat.shortDebugString(u));
+    }
+    resetIfInterrupted(() -> queue.put(u));
+  }
+
+  private void readSymlinkTarget(Update.Builder ub, Path path) throws IOException {
+    Path symlink = Files.readSymbolicLink(path);
+    if (symlink.isAbsolute()) {
+      ub.setSymlink(path.getParent().normalize().relativize(symlink.normalize()).toString());
+    } else {
+      // the symlink is already relative, so we can leave it alone, e.g. foo.txt
+      ub.setSymlink(symlink.toString());
+    }
+  }
+
+  private String toRelativePath(Path absolutePath) {
+    return ourRoot.relativize(absolutePath).toString();
+  }
+
+  private static boolean isSameOrChild(String path, String dir) {
+    return path.equals(dir) || path.startsWith(dir + "/");
+  }
+
+  private static boolean isExecutable(Set<PosixFilePermission> p) {
+    return p.contains(PosixFilePermission.OWNER_EXECUTE)
+      || p.contains(PosixFilePermission.GROUP_EXECUTE)
+      || p.contains(PosixFilePermission.OTHERS_EXECUTE);
+  }
+
+  private static class MovedFrom {
+    private final String path;
+    private final boolean isDir;
+
+    private MovedFrom(String path, boolean isDir) {
+      this.path = path;
+      this.isDir = isDir;
+    }
+  }
+
+}
@@ -14,45 +14,86 @@ import java.security.NoSuchAlgorithmException;
 import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import com.google.common.base.Stopwatch;
 
 import mirror.FileWatcher;
 import mirror.Update;
 import mirror.WatchServiceFileWatcher;
+import mirror.hash.ContentHasher;
 import mirror.tasks.TaskFactory;
 import mirror.tasks.ThreadBasedTaskFactory;
 
-/** Tests how quickly creating MD5s of a directory tree would take. */
+/**
+ * Benchmarks hashing a directory tree with our original MD5 prototype ({@link #getHash(Path)})
+ * against {@link ContentHasher}, both serially and on its worker pool.
+ *
+ * Pass the root of a real checkout, and optionally the number of rounds.
+ */
 public class Digest {
 
+  private interface Hasher {
+    String hash(Path path) throws Exception;
+  }
+
   public static void main(String[] args) throws Exception {
-    Path root = Paths.get("/home/stephen/linkedin");
+    Path root = Paths.get(args.length > 0 ? args[0] : "/home/stephen/linkedin");
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
     TaskFactory taskFactory = new ThreadBasedTaskFactory();
     BlockingQueue<Update> queue = new ArrayBlockingQueue<>(1_000_000);
     WatchService watchService = FileSystems.getDefault().newWatchService();
     final Stopwatch s = Stopwatch.createStarted();
     FileWatcher r = new WatchServiceFileWatcher(taskFactory, watchService, root, queue);
-    List<Update> initial = r.performInitialScan();
+    List<Path> files = r.performInitialScan().stream()
+      .map(u -> root.resolve(u.getPath()))
+      .filter(Files::isRegularFile)
+      .collect(Collectors.toList());
     s.stop();
-
     System.out.println("scan took " + s.elapsed(TimeUnit.MILLISECONDS) + " millis");
-    s.reset();
-    s.start();
 
-    StringBuilder b = new StringBuilder();
-    for (Update update : initial) {
-      Path p = root.resolve(update.getPath());
-      if (Files.exists(p) && Files.isRegularFile(p)) {
-        b.append(getHash(p));
-      }
+    for (int i = 0; i < rounds; i++) {
+      run("md5", files, Digest::getHash);
+      run("xxh64", files, ContentHasher.shared::hash);
+      runParallel(files);
     }
-    s.stop();
+    System.exit(0);
+  }
 
-    System.out.println("hash took " + s.elapsed(TimeUnit.MILLISECONDS) + " millis");
+  private static void run(String name, List<Path> files, Hasher hasher) throws Exception {
+    Stopwatch s = Stopwatch.createStarted();
+    for (Path file : files) {
+      hasher.hash(file);
+    }
+    report(name, files, s);
+  }
+
+  private static void runParallel(List<Path> files) throws Exception {
+    Stopwatch s = Stopwatch.createStarted();
+    List<CompletableFuture<String>> hashes = files.stream().map(ContentHasher.shared::hashAsync).collect(Collectors.toList());
+    CompletableFuture.allOf(hashes.toArray(new CompletableFuture[0])).get();
+    report("xxh64-parallel", files, s);
+  }
+
+  private static void report(String name, List<Path> files, Stopwatch s) throws IOException {
+    s.stop();
+    long bytes = 0;
+    for (Path file : files) {
+      bytes += Files.size(file);
+    }
+    long millis = Math.max(1, s.elapsed(TimeUnit.MILLISECONDS));
+    System.out.println(String.format(
+      "%-15s %d files, %d mb in %d millis = %d mb/s",
+      name,
+      files.size(),
+      bytes / 1024 / 1024,
+      millis,
+      bytes * 1000 / millis / 1024 / 1024));
   }
 
+  /** The original MD5 prototype; kept only as a baseline for the benchmark. */
   public static String getHash(Path path) throws IOException {
     try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
       MessageDigest md = MessageDigest.getInstance("MD5");
@@ -0,0 +1,73 @@
+package mirror.misc;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.google.common.base.Stopwatch;
+import com.google.protobuf.ByteString;
+
+import mirror.NativeFileAccess;
+
+/**
+ * Compares the read throughput and allocation rate of {@link NativeFileAccess#read}
+ * against the original {@code ByteString.readFrom(FileInputStream)} implementation.
+ *
+ * Pass a directory of files to read (e.g. a build output directory with jars in it).
+ */
+public class ReadBenchmark {
+
+  private interface Reader {
+    ByteString read(Path path) throws IOException;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Path root = Paths.get(args.length > 0 ? args[0] : "/home/stephen/linkedin");
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    List<Path> files;
+    try (Stream<Path> s = Files.walk(root)) {
+      files = s.filter(Files::isRegularFile).map(root::relativize).collect(Collectors.toList());
+    }
+    NativeFileAccess fileAccess = new NativeFileAccess(root);
+    for (int i = 0; i < rounds; i++) {
+      run("readFrom", files, p -> {
+        try (FileInputStream fis = new FileInputStream(root.resolve(p).toFile())) {
+          return ByteString.readFrom(fis);
+        }
+      });
+      run("native", files, fileAccess::read);
+    }
+  }
+
+  private static void run(String name, List<Path> files, Reader reader) throws IOException {
+    long allocatedBefore = allocatedBytes();
+    long bytes = 0;
+    Stopwatch s = Stopwatch.createStarted();
+    for (Path file : files) {
+      bytes += reader.read(file).size();
+    }
+    s.stop();
+    long allocated = allocatedBytes() - allocatedBefore;
+    long millis = Math.max(1, s.elapsed(TimeUnit.MILLISECONDS));
+    System.out.println(String.format(
+      "%-8s %d files, %d mb in %d millis = %d mb/s, %d mb allocated on the heap",
+      name,
+      files.size(),
+      bytes / 1024 / 1024,
+      millis,
+      bytes * 1000 / millis / 1024 / 1024,
+      allocated / 1024 / 1024));
+  }
+
+  private static long allocatedBytes() {
+    return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+}
@@ -0,0 +1,80 @@
+package mirror.misc;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Stopwatch;
+
+import mirror.LoggingConfig;
+import mirror.MirrorPaths;
+import mirror.Update;
+import mirror.tasks.TaskFactory;
+import mirror.tasks.ThreadBasedTaskFactory;
+import mirror.watchman.WatchmanFileWatcher;
+import mirror.watchman.WatchmanImpl;
+
+/**
+ * Forces watchman to overflow, {@link Overflow}-style, and measures how long the
+ * {@link WatchmanFileWatcher} takes to recover, and how many updates it queues while doing so.
+ *
+ * Lower the inotify queue size first so that the overflow is easy to hit, e.g.:
+ *
+ * sudo sysctl fs.inotify.max_queued_events=1024
+ */
+public class WatchmanOverflowBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    LoggingConfig.init();
+    int nfiles = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+    int nchurn = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+    Path directory = Files.createTempDirectory("watchman-overflow");
+    for (int i = 0; i < nfiles; i++) {
+      Files.createFile(directory.resolve("file" + i));
+    }
+
+    TaskFactory taskFactory = new ThreadBasedTaskFactory();
+    BlockingQueue<Update> queue = new LinkedBlockingQueue<>();
+    WatchmanFileWatcher watcher = new WatchmanFileWatcher(WatchmanImpl.createIfAvailable().get(), MirrorPaths.forTesting(directory), queue);
+    Stopwatch s = Stopwatch.createStarted();
+    int initial = watcher.performInitialScan().size();
+    System.out.println("Initial scan of " + initial + " files took " + s.elapsed(TimeUnit.MILLISECONDS) + " millis");
+    taskFactory.runTask(watcher);
+
+    AtomicLong updates = new AtomicLong();
+    AtomicLong lastUpdate = new AtomicLong(System.currentTimeMillis());
+    Thread counter = new Thread(() -> {
+      try {
+        while (true) {
+          queue.take();
+          updates.incrementAndGet();
+          lastUpdate.set(System.currentTimeMillis());
+        }
+      } catch (InterruptedException e) {
+        // done
+      }
+    });
+    counter.setDaemon(true);
+    counter.start();
+
+    System.out.println("Churning " + nchurn + " creates/deletes");
+    s.reset().start();
+    Path p = directory.resolve("food");
+    for (int i = 0; i < nchurn; i++) {
+      Files.createFile(p);
+      Files.delete(p);
+    }
+    // wait for the watcher to go quiet
+    while (System.currentTimeMillis() - lastUpdate.get() < 5_000) {
+      Thread.sleep(100);
+    }
+    long millis = s.elapsed(TimeUnit.MILLISECONDS) - 5_000;
+    System.out.println("Recovered after ~" + millis + " millis, queued " + updates.get() + " updates for " + nfiles + " existing files");
+    taskFactory.stopTask(watcher);
+    System.exit(0);
+  }
+
+}
@@ -0,0 +1,360 @@
+package mirror.watchman;
+
+import static mirror.watchman.BserEncoder.ARRAY;
+import static mirror.watchman.BserEncoder.FALSE;
+import static mirror.watchman.BserEncoder.INT16;
+import static mirror.watchman.BserEncoder.INT32;
+import static mirror.watchman.BserEncoder.INT64;
+import static mirror.watchman.BserEncoder.INT8;
+import static mirror.watchman.BserEncoder.NULL;
+import static mirror.watchman.BserEncoder.OBJECT;
+import static mirror.watchman.BserEncoder.REAL;
+import static mirror.watchman.BserEncoder.SKIP;
+import static mirror.watchman.BserEncoder.STRING;
+import static mirror.watchman.BserEncoder.TEMPLATE;
+import static mirror.watchman.BserEncoder.TRUE;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Decodes watchman's <a href="https://facebook.github.io/watchman/docs/bser.html">BSER</a>
+ * responses as they're read from the socket.
+ *
+ * Most of a response is decoded generically into maps/lists, but the {@code files} array
+ * (which for an initial query can have millions of entries) is streamed to a callback as
+ * {@link WatchmanFile}s, so we never have the whole response in memory, nor allocate a
+ * {@code Map} and boxed values for every file.
+ */
+class BserDecoder {
+
+  private static final int NAME = 0;
+  private static final int EXISTS = 1;
+  private static final int MODE = 2;
+  private static final int MTIME_MS = 3;
+  private static final int SHA1 = 4;
+  private static final int UNKNOWN = -1;
+  private static final byte[][] fieldNames = {
+    utf8("name"),
+    utf8("exists"),
+    utf8("mode"),
+    utf8("mtime_ms"),
+    utf8("content.sha1hex") };
+  private final InputStream in;
+  private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).order(ByteOrder.nativeOrder());
+  private final CharsetDecoder utf8 = StandardCharsets.UTF_8
+    .newDecoder()
+    .onMalformedInput(CodingErrorAction.REPORT)
+    .onUnmappableCharacter(CodingErrorAction.REPORT);
+  private byte[] stringBytes = new byte[1024];
+  private int stringLength;
+
+  BserDecoder(InputStream in) {
+    this.in = in;
+    buffer.flip(); // start out empty
+  }
+
+  /**
+   * Reads the next PDU, which is expected to be an object, e.g. a query response.
+   *
+   * @return the response's fields, except for {@code files}, which are passed to {@code files} as they are decoded
+   */
+  Map<String, Object> readResponse(Consumer<WatchmanFile> files) throws IOException {
+    readHeader();
+    expectType(OBJECT, readByte());
+    long size = readInt();
+    Map<String, Object> response = new LinkedHashMap<>();
+    for (long i = 0; i < size; i++) {
+      String key = readString();
+      if (key.equals("files")) {
+        readFiles(files);
+      } else {
+        response.put(key, readValue());
+      }
+    }
+    return response;
+  }
+
+  private void readHeader() throws IOException {
+    byte b1 = readByte();
+    byte b2 = readByte();
+    if (b1 != 0x00 || b2 != 0x01) {
+      throw new IOException("Unsupported BSER header " + b1 + " " + b2);
+    }
+    readInt(); // the PDU length, which we don't need since we stream
+  }
+
+  private void readFiles(Consumer<WatchmanFile> files) throws IOException {
+    byte type = readByte();
+    if (type == TEMPLATE) {
+      // a template is the list of keys once, then just the values for each object
+      long keyCount = readArrayHeader();
+      int[] fields = new int[(int) keyCount];
+      for (int i = 0; i < keyCount; i++) {
+        expectType(STRING, readByte());
+        readStringBytes();
+        fields[i] = fieldIndex();
+      }
+      long count = readInt();
+      for (long i = 0; i < count; i++) {
+        FileFields f = new FileFields();
+        for (int field : fields) {
+          readField(f, field);
+        }
+        files.accept(f.toFile());
+      }
+    } else if (type == ARRAY) {
+      long count = readInt();
+      for (long i = 0; i < count; i++) {
+        expectType(OBJECT, readByte());
+        long size = readInt();
+        FileFields f = new FileFields();
+        for (long j = 0; j < size; j++) {
+          expectType(STRING, readByte());
+          readStringBytes();
+          readField(f, fieldIndex());
+        }
+        files.accept(f.toFile());
+      }
+    } else {
+      throw new IOException("Unexpected BSER type for files " + type);
+    }
+  }
+
+  private void readField(FileFields f, int field) throws IOException {
+    byte type = readByte();
+    if (type == SKIP) {
+      return;
+    }
+    switch (field) {
+      case NAME:
+        expectType(STRING, type);
+        readStringBytes();
+        f.name = decodeStrictly();
+        break;
+      case EXISTS:
+        f.exists = type == TRUE;
+        break;
+      case MODE:
+        f.mode = (int) readIntBody(type);
+        break;
+      case MTIME_MS:
+        f.mtimeMs = readIntBody(type);
+        break;
+      case SHA1:
+        if (type == STRING) {
+          readStringBytes();
+          f.sha1 = decodeStrictly();
+        } else {
+          // an object with an error message, e.g. for directories
+          readValueBody(type);
+        }
+        break;
+      default:
+        readValueBody(type);
+    }
+  }
+
+  private int fieldIndex() {
+    for (int i = 0; i < fieldNames.length; i++) {
+      if (isStringBytes(fieldNames[i])) {
+        return i;
+      }
+    }
+    return UNKNOWN;
+  }
+
+  private boolean isStringBytes(byte[] name) {
+    if (name.length != stringLength) {
+      return false;
+    }
+    for (int i = 0; i < stringLength; i++) {
+      if (name[i] != stringBytes[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private Object readValue() throws IOException {
+    return readValueBody(readByte());
+  }
+
+  private Object readValueBody(byte type) throws IOException {
+    switch (type) {
+      case ARRAY: {
+        long size = readInt();
+        List<Object> list = new ArrayList<>();
+        for (long i = 0; i < size; i++) {
+          list.add(readValue());
+        }
+        return list;
+      }
+      case OBJECT: {
+        long size = readInt();
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (long i = 0; i < size; i++) {
+          map.put(readString(), readValue());
+        }
+        return map;
+      }
+      case STRING:
+        readStringBytes();
+        return new String(stringBytes, 0, stringLength, StandardCharsets.UTF_8);
+      case INT8:
+      case INT16:
+      case INT32:
+      case INT64:
+        return readIntBody(type);
+      case REAL:
+        ensure(8);
+        return buffer.getDouble();
+      case TRUE:
+        return true;
+      case FALSE:
+        return false;
+      case NULL:
+        return null;
+      case TEMPLATE: {
+        long keyCount = readArrayHeader();
+        List<String> keys = new ArrayList<>();
+        for (long i = 0; i < keyCount; i++) {
+          keys.add((String) readValue());
+        }
+        long count = readInt();
+        List<Object> list = new ArrayList<>();
+        for (long i = 0; i < count; i++) {
+          Map<String, Object> map = new LinkedHashMap<>();
+          for (String key : keys) {
+            byte valueType = readByte();
+            if (valueType != SKIP) {
+              map.put(key, readValueBody(valueType));
+            }
+          }
+          list.add(map);
+        }
+        return list;
+      }
+      default:
+        throw new IOException("Unknown BSER type " + type);
+    }
+  }
+
+  private long readArrayHeader() throws IOException {
+    expectType(ARRAY, readByte());
+    return readInt();
+  }
+
+  private String readString() throws IOException {
+    expectType(STRING, readByte());
+    readStringBytes();
+    return new String(stringBytes, 0, stringLength, StandardCharsets.UTF_8);
+  }
+
+  /** Reads a string's length and bytes into {@link #stringBytes}, reusing it across strings. */
+  private void readStringBytes() throws IOException {
+    int length = (int) readInt();
+    if (stringBytes.length < length) {
+      stringBytes = new byte[Math.max(length, stringBytes.length * 2)];
+    }
+    int read = 0;
+    while (read < length) {
+      ensure(1);
+      int n = Math.min(length - read, buffer.remaining());
+      buffer.get(stringBytes, read, n);
+      read += n;
+    }
+    stringLength = length;
+  }
+
+  /** @return the current string bytes as a String, or null if they're not valid UTF-8 */
+  private String decodeStrictly() {
+    try {
+      CharBuffer chars = utf8.decode(ByteBuffer.wrap(stringBytes, 0, stringLength));
+      return chars.toString();
+    } catch (CharacterCodingException e) {
+      return null;
+    }
+  }
+
+  private long readInt() throws IOException {
+    return readIntBody(readByte());
+  }
+
+  private long readIntBody(byte type) throws IOException {
+    switch (type) {
+      case INT8:
+        ensure(1);
+        return buffer.get();
+      case INT16:
+        ensure(2);
+        return buffer.getShort();
+      case INT32:
+        ensure(4);
+        return buffer.getInt();
+      case INT64:
+        ensure(8);
+        return buffer.getLong();
+      default:
+        throw new IOException("Expected a BSER int but got " + type);
+    }
+  }
+
+  private byte readByte() throws IOException {
+    ensure(1);
+    return buffer.get();
+  }
+
+  /** Ensures at least {@code n} bytes are in the buffer, reading more from the stream if needed. */
+  private void ensure(int n) throws IOException {
+    if (buffer.remaining() >= n) {
+      return;
+    }
+    buffer.compact();
+    while (buffer.position() < n) {
+      int read = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+      if (read == -1) {
+        throw new EOFException("Unexpected end of BSER stream");
+      }
+      buffer.position(buffer.position() + read);
+    }
+    buffer.flip();
+  }
+
+  private static void expectType(byte expected, byte actual) throws IOException {
+    if (expected != actual) {
+      throw new IOException("Expected BSER type " + expected + " but got " + actual);
+    }
+  }
+
+  private static byte[] utf8(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /** The mutable fields of a file while we're decoding it. */
+  private static class FileFields {
+    private String name;
+    private boolean exists;
+    private int mode;
+    private long mtimeMs;
+    private String sha1;
+
+    private WatchmanFile toFile() {
+      return new WatchmanFile(name, exists, mode, mtimeMs, sha1);
+    }
+  }
+
+}
@@ -0,0 +1,108 @@
+package mirror.watchman;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Encodes commands in watchman's <a href="https://facebook.github.io/watchman/docs/bser.html">BSER</a> format.
+ *
+ * Commands are small, so this just supports the types we send, i.e. lists, maps, strings,
+ * numbers, and booleans.
+ */
+class BserEncoder {
+
+  static final byte ARRAY = 0x00;
+  static final byte OBJECT = 0x01;
+  static final byte STRING = 0x02;
+  static final byte INT8 = 0x03;
+  static final byte INT16 = 0x04;
+  static final byte INT32 = 0x05;
+  static final byte INT64 = 0x06;
+  static final byte REAL = 0x07;
+  static final byte TRUE = 0x08;
+  static final byte FALSE = 0x09;
+  static final byte NULL = 0x0a;
+  static final byte TEMPLATE = 0x0b;
+  static final byte SKIP = 0x0c;
+  private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+  /** Writes {@code value} to {@code out} as a single BSER v1 PDU. */
+  static void encode(Object value, OutputStream out) throws IOException {
+    BserEncoder e = new BserEncoder();
+    e.writeValue(value);
+    BserEncoder header = new BserEncoder();
+    header.body.write(0x00);
+    header.body.write(0x01);
+    header.writeInt(e.body.size());
+    header.body.writeTo(out);
+    e.body.writeTo(out);
+    out.flush();
+  }
+
+  private void writeValue(Object value) {
+    if (value == null) {
+      body.write(NULL);
+    } else if (value instanceof String) {
+      byte[] bytes = ((String) value).getBytes(UTF_8);
+      body.write(STRING);
+      writeInt(bytes.length);
+      body.write(bytes, 0, bytes.length);
+    } else if (value instanceof Boolean) {
+      body.write((Boolean) value ? TRUE : FALSE);
+    } else if (value instanceof Double || value instanceof Float) {
+      body.write(REAL);
+      writeBytes(ByteBuffer.allocate(8).order(ByteOrder.nativeOrder()).putDouble(((Number) value).doubleValue()));
+    } else if (value instanceof Number) {
+      writeInt(((Number) value).longValue());
+    } else if (value instanceof Collection) {
+      Collection<?> c = (Collection<?>) value;
+      body.write(ARRAY);
+      writeInt(c.size());
+      c.forEach(this::writeValue);
+    } else if (value instanceof Object[]) {
+      Object[] a = (Object[]) value;
+      body.write(ARRAY);
+      writeInt(a.length);
+      for (Object o : a) {
+        writeValue(o);
+      }
+    } else if (value instanceof Map) {
+      Map<?, ?> m = (Map<?, ?>) value;
+      body.write(OBJECT);
+      writeInt(m.size());
+      m.forEach((k, v) -> {
+        writeValue(k.toString());
+        writeValue(v);
+      });
+    } else {
+      throw new IllegalArgumentException("Unsupported BSER value " + value.getClass());
+    }
+  }
+
+  /** Writes {@code value} with the smallest int type that fits it. */
+  private void writeInt(long value) {
+    ByteBuffer b = ByteBuffer.allocate(9).order(ByteOrder.nativeOrder());
+    if (value == (byte) value) {
+      b.put(INT8).put((byte) value);
+    } else if (value == (short) value) {
+      b.put(INT16).putShort((short) value);
+    } else if (value == (int) value) {
+      b.put(INT32).putInt((int) value);
+    } else {
+      b.put(INT64).putLong(value);
+    }
+    writeBytes(b);
+  }
+
+  private void writeBytes(ByteBuffer b) {
+    body.write(b.array(), 0, b.position());
+  }
+
+}
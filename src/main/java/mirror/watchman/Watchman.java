@@ -2,6 +2,7 @@ package mirror.watchman;
 
 import java.nio.file.Path;
 import java.util.Map;
+import java.util.function.Consumer;
 
 import com.facebook.watchman.Callback;
 import com.facebook.watchman.WatchmanClient;
@@ -17,6 +18,14 @@ public interface Watchman extends AutoCloseable {
 
   Map<String, Object> run(Object... query);
 
+  /**
+   * Runs a {@code query} against {@code root}, passing each file in the response to {@code files}
+   * as it's decoded, instead of building the whole response in memory.
+   *
+   * @return the rest of the response, e.g. the clock
+   */
+  Map<String, Object> query(String root, Map<String, Object> params, Consumer<WatchmanFile> files);
+
   SubscriptionDescriptor subscribe(Path path, Map<String, Object> query, Callback listener);
 
   void unsubscribe(SubscriptionDescriptor descriptor);
@@ -0,0 +1,118 @@
+package mirror.watchman;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Translates our .gitignore-style include/exclude rules into a watchman query expression,
+ * so that watchman doesn't send us paths that we're just going to ignore anyway.
+ *
+ * The expression only has to be conservative, i.e. it must never filter out a path that
+ * {@code UpdateTree.shouldIgnore} would keep, because the client-side filtering still runs
+ * on everything watchman sends. So:
+ *
+ * - Exclude rules we can't translate are just dropped, and left to the client-side filtering.
+ * - Negated exclude rules (e.g. {@code !keep.log}) are sent as includes.
+ * - If an include (or negated exclude) can't be translated, we can't know what it would
+ * have let through, so we don't send an expression at all.
+ *
+ * Only the root .gitignore is used; nested .gitignore files are filtered client-side.
+ */
+class WatchmanExpression {
+
+  private static final Map<String, Object> matchOptions = ImmutableMap.of("includedotfiles", true);
+
+  /** @return the expression for the given rules, or empty if there is nothing to filter or the rules can't be expressed */
+  static Optional<List<Object>> forRules(List<String> includes, List<String> excludes, List<String> rootIgnores) {
+    List<List<Object>> included = new ArrayList<>();
+    List<List<Object>> excluded = new ArrayList<>();
+    for (String line : includes) {
+      if (isBlankOrComment(line) || line.startsWith("!")) {
+        // a negated include only un-includes paths, so it's safe to skip
+        continue;
+      }
+      List<Object> term = translate(line);
+      if (term == null) {
+        return Optional.empty();
+      }
+      included.add(term);
+    }
+    List<String> allExcludes = new ArrayList<>(excludes);
+    allExcludes.addAll(rootIgnores);
+    for (String line : allExcludes) {
+      if (isBlankOrComment(line)) {
+        continue;
+      }
+      if (line.startsWith("!")) {
+        List<Object> term = translate(line.substring(1));
+        if (term == null) {
+          return Optional.empty();
+        }
+        included.add(term);
+      } else {
+        List<Object> term = translate(line);
+        if (term != null) {
+          excluded.add(term);
+        }
+      }
+    }
+    if (excluded.isEmpty()) {
+      return Optional.empty();
+    }
+    List<Object> expression = newArrayList("not", anyOf(excluded));
+    if (!included.isEmpty()) {
+      expression = newArrayList("anyof", anyOf(included), expression);
+    }
+    return Optional.of(expression);
+  }
+
+  /**
+   * Translates a single .gitignore pattern into a watchman term that matches the same paths,
+   * and everything under them, or returns null if the pattern uses syntax we don't translate.
+   */
+  static List<Object> translate(String pattern) {
+    if (pattern.contains("\\") || !pattern.equals(pattern.trim())) {
+      return null;
+    }
+    boolean directoryOnly = pattern.endsWith("/");
+    if (directoryOnly) {
+      pattern = pattern.substring(0, pattern.length() - 1);
+    }
+    // a leading slash, or any slash in the middle, means the pattern is relative to the root
+    boolean anchored = pattern.contains("/");
+    if (pattern.startsWith("/")) {
+      pattern = pattern.substring(1);
+    }
+    if (pattern.isEmpty()) {
+      return null;
+    }
+    String glob = anchored ? pattern : "**/" + pattern;
+    List<Object> self = newArrayList("match", glob, "wholename", matchOptions);
+    if (directoryOnly) {
+      self = newArrayList("allof", newArrayList("type", "d"), self);
+    }
+    // gitignore rules that match a directory also apply to everything under it
+    List<Object> children = newArrayList("match", glob + "/**", "wholename", matchOptions);
+    return newArrayList("anyof", self, children);
+  }
+
+  private static List<Object> anyOf(List<List<Object>> terms) {
+    if (terms.size() == 1) {
+      return terms.get(0);
+    }
+    List<Object> anyOf = newArrayList("anyof");
+    anyOf.addAll(terms);
+    return anyOf;
+  }
+
+  private static boolean isBlankOrComment(String line) {
+    return line.isEmpty() || line.startsWith("#") || line.equals("/");
+  }
+
+}
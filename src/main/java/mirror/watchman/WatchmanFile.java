@@ -0,0 +1,51 @@
+package mirror.watchman;
+
+import java.util.Map;
+
+/**
+ * The fields we ask watchman for about each file.
+ *
+ * For large query results, {@link BserDecoder} creates these directly from the
+ * response bytes, instead of creating a {@code Map} per file with boxed values.
+ */
+public class WatchmanFile {
+
+  /** The path relative to the query's root, or null if the name was not valid UTF-8. */
+  public final String name;
+  public final boolean exists;
+  public final int mode;
+  public final long mtimeMs;
+  /** The hex SHA-1 of a regular file's contents, or null if watchman couldn't hash it (or we didn't ask). */
+  public final String sha1;
+
+  /** Converts a file from a response that was decoded as maps, e.g. by {@code WatchmanClient} for subscriptions. */
+  public static WatchmanFile fromMap(Map<String, Object> file) {
+    Object name = file.get("name");
+    Object sha1 = file.get("content.sha1hex");
+    return new WatchmanFile(
+      name instanceof String ? (String) name : null,
+      Boolean.TRUE.equals(file.get("exists")),
+      ((Number) file.get("mode")).intValue(),
+      ((Number) file.get("mtime_ms")).longValue(),
+      // for directories, or files that disappeared, this is an object with an error message
+      sha1 instanceof String ? (String) sha1 : null);
+  }
+
+  public WatchmanFile(String name, boolean exists, int mode, long mtimeMs) {
+    this(name, exists, mode, mtimeMs, null);
+  }
+
+  public WatchmanFile(String name, boolean exists, int mode, long mtimeMs, String sha1) {
+    this.name = name;
+    this.exists = exists;
+    this.mode = mode;
+    this.mtimeMs = mtimeMs;
+    this.sha1 = sha1;
+  }
+
+  @Override
+  public String toString() {
+    return "WatchmanFile[name=" + name + ", exists=" + exists + ", mode=" + Integer.toOctalString(mode) + ", mtimeMs=" + mtimeMs + ", sha1=" + sha1 + "]";
+  }
+
+}
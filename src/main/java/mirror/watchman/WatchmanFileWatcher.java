@@ -11,12 +11,17 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
@@ -30,8 +35,10 @@ import jnr.posix.FileStat;
 import mirror.FileWatcher;
 import mirror.LoggingConfig;
 import mirror.MirrorPaths;
+import mirror.TreeSnapshot;
 import mirror.Update;
 import mirror.UpdateTree;
+import mirror.hash.ContentHasher;
 import mirror.tasks.TaskFactory;
 import mirror.tasks.ThreadBasedTaskFactory;
 
@@ -46,11 +53,19 @@ public class WatchmanFileWatcher implements FileWatcher {
   private final Path ourRoot;
   private final BlockingQueue<Update> queue;
   private final BlockingQueue<Exception> exceptions = new LinkedBlockingQueue<>();
+  private final boolean contentHashes;
+  private final TreeSnapshot snapshot;
+  // the states from WatchmanStates that are currently asserted
+  private final Set<String> states = ConcurrentHashMap.newKeySet();
   // we may ask to watch /home/foo/bar, but watchman decides to watch /home/foo
   private volatile String watchmanRoot;
   private volatile Optional<String> watchmanPrefix;
-  private volatile String initialScanClock;
+  // the clock of the last results we've queued, either from the initial query or a subscription message
+  private volatile String lastClock;
   private volatile SubscriptionDescriptor subscription;
+  // the root .gitignore contents that our query expression was built from
+  private volatile String rootGitIgnore = "";
+  private final AtomicBoolean closed = new AtomicBoolean();
 
   /** Main method for doing manual debugging/observation of behavior. */
   public static void main(String[] args) throws Exception {
@@ -72,7 +87,24 @@ public class WatchmanFileWatcher implements FileWatcher {
   }
 
   public WatchmanFileWatcher(Watchman wm, MirrorPaths config, BlockingQueue<Update> queue) {
+    this(wm, config, queue, false);
+  }
+
+  /**
+   * @param contentHashes whether to ask watchman for each file's SHA-1, so our updates arrive already
+   * hashed, and settled, instead of SyncLogic reading each file to hash it and polling its size to see
+   * if it's settled. Watchman only sends changes after the root has been quiet for its {@code settle}
+   * period (20ms by default, and configurable in {@code .watchmanconfig}).
+   */
+  public WatchmanFileWatcher(Watchman wm, MirrorPaths config, BlockingQueue<Update> queue, boolean contentHashes) {
+    this(wm, config, queue, contentHashes, TreeSnapshot.forPaths(config));
+  }
+
+  /** @param snapshot the snapshot to resume from, if it exists */
+  public WatchmanFileWatcher(Watchman wm, MirrorPaths config, BlockingQueue<Update> queue, boolean contentHashes, TreeSnapshot snapshot) {
     this.config = config;
+    this.contentHashes = contentHashes;
+    this.snapshot = snapshot;
     this.wm = wm;
     try {
       // If we get passed /home/foo/./path watchman's path sensitiveness check complains,
@@ -95,12 +127,13 @@ public class WatchmanFileWatcher implements FileWatcher {
 
   @Override
   public void onInterrupt() {
-    try {
-      log.debug("Stopping watchman");
-      wm.close();
-    } catch (Exception e) {
-      throw new RuntimeException(e);
-    }
+    closeWatchman();
+  }
+
+  @Override
+  public void onStop() {
+    // we also get here after a failure, without an interrupt, and should release a pooled client either way
+    closeWatchman();
   }
 
   @Override
@@ -110,14 +143,24 @@ public class WatchmanFileWatcher implements FileWatcher {
       throw exceptions.take();
     } catch (WatchmanOverflowException e) {
       try {
-        // try resetting the overflow
+        // watchman recrawls after an overflow, so we just need to catch up on what changed since
+        // the last results we saw, instead of deleting the watch and re-querying everything
         wm.unsubscribe(subscription);
-        wm.run("watch-del", watchmanRoot);
-        startWatchAndInitialFind();
+        queryChangesSince(lastClock);
         startSubscription();
       } catch (Exception e2) {
         log.error("Could not reset watchman", e2);
       }
+    } catch (RootGitIgnoreChangedException e) {
+      try {
+        // re-query with the new rules, as files that were previously filtered out may now be included
+        log.info("Root .gitignore changed, re-querying watchman");
+        wm.unsubscribe(subscription);
+        startWatchAndInitialFind();
+        startSubscription();
+      } catch (Exception e2) {
+        log.error("Could not re-query watchman", e2);
+      }
     } catch (InterruptedException e) {
       // BserEofException
       // shutting down
@@ -129,40 +172,83 @@ public class WatchmanFileWatcher implements FileWatcher {
 
   @Override
   public List<Update> performInitialScan() throws Exception {
-    startWatchAndInitialFind();
+    startWatch();
+    Optional<TreeSnapshot.Loaded> loaded = snapshot.load();
+    if (loaded.isPresent() && loaded.get().rootGitIgnore.equals(readRootGitIgnore())) {
+      return resumeFromSnapshot(loaded.get());
+    }
+    initialFind();
     List<Update> updates = new ArrayList<>(queue.size());
     queue.drainTo(updates);
     return updates;
   }
 
-  @SuppressWarnings("unchecked")
-  private void putFiles(Map<String, Object> response) {
-    List<Map<String, Object>> files = (List<Map<String, Object>>) response.get("files");
-    if (files == null) {
-      throw new RuntimeException("Invalid response " + response);
+  @Override
+  public String getClock() {
+    return lastClock;
+  }
+
+  @Override
+  public boolean isPaused() {
+    return !states.isEmpty();
+  }
+
+  /** Applies what changed since {@code snapshot}'s clock on top of it, instead of querying for every file. */
+  private List<Update> resumeFromSnapshot(TreeSnapshot.Loaded snapshot) {
+    Map<String, Object> params = newQueryParams();
+    params.put("since", snapshot.clock);
+    Map<String, Object> r = wm.query(watchmanRoot, params, this::putFile);
+    lastClock = (String) r.get("clock");
+    List<Update> changes = new ArrayList<>(queue.size());
+    queue.drainTo(changes);
+    if (Boolean.TRUE.equals(r.get("is_fresh_instance"))) {
+      // watchman restarted since the snapshot, so it sent us every file instead of just the changes
+      log.info("Watchman could not answer since {}, ignoring snapshot", snapshot.clock);
+      return changes;
     }
-    files.forEach(this::putFile);
+    if (!snapshot.unconfirmed.isEmpty()) {
+      // we don't know if our last writes to these paths made it to disk, so ask for their current state
+      Map<String, Object> unconfirmedParams = newQueryParams();
+      List<Object> name = newArrayList("name", snapshot.unconfirmed, "wholename");
+      Object expression = unconfirmedParams.get("expression");
+      unconfirmedParams.put("expression", expression == null ? name : newArrayList("allof", expression, name));
+      wm.query(watchmanRoot, unconfirmedParams, this::putFile);
+      queue.drainTo(changes);
+    }
+    log.info("Resuming from snapshot of {} files with {} changes", snapshot.updates.size(), changes.size());
+    Map<String, Update> updates = new LinkedHashMap<>();
+    snapshot.updates.forEach(u -> updates.put(u.getPath(), u));
+    for (Update u : changes) {
+      if (u.getDelete()) {
+        updates.remove(u.getPath());
+      } else {
+        updates.put(u.getPath(), u);
+      }
+    }
+    return new ArrayList<>(updates.values());
   }
 
-  private void putFile(Map<String, Object> file) {
-    int mode = ((Number) file.get("mode")).intValue();
-    long mtime = ((Number) file.get("mtime_ms")).longValue();
-    Object name = file.get("name");
-    if (!(name instanceof String)) {
+  private void putFile(WatchmanFile file) {
+    if (file.name == null) {
       return; // ignore non-utf8 file names as they are likely corrupted
     }
+    int mode = file.mode;
     resetIfInterrupted(() -> {
       Update.Builder ub = Update
         .newBuilder()
-        .setPath((String) name)
-        .setDelete(!(boolean) file.get("exists"))
-        .setModTime(mtime)
+        .setPath(file.name)
+        .setDelete(!file.exists)
+        .setModTime(file.mtimeMs)
         .setDirectory(isFileStatType(mode, FileStat.S_IFDIR))
         .setExecutable(isExecutable(mode))
         .setLocal(true);
       readSymlinkTargetIfNeeded(ub, mode);
       setIgnoreStringIfNeeded(ub);
+      setContentHashIfNeeded(ub, file);
       clearModTimeIfADelete(ub);
+      if (ub.getPath().equals(".gitignore") && !ub.getIgnoreString().equals(rootGitIgnore)) {
+        exceptions.add(new RootGitIgnoreChangedException());
+      }
       Update u = ub.build();
       if (log.isTraceEnabled()) {
         log.trace("Queueing: " + TextFormat.shortDebugString(u));
@@ -175,30 +261,55 @@ public class WatchmanFileWatcher implements FileWatcher {
   }
 
   private void startWatchAndInitialFind() throws Exception {
+    startWatch();
+    initialFind();
+  }
+
+  private void startWatch() throws Exception {
     // This will be a no-op after the first execution, as we don't currently clean up on our watches.
     Map<String, Object> result = wm.run("watch-project", ourRoot.toString());
     watchmanRoot = (String) result.get("watch");
     watchmanPrefix = Optional.ofNullable((String) result.get("relative_path"));
     log.info("Watchman root is {}", watchmanRoot);
+  }
 
-    Map<String, Object> params = new HashMap<>();
-    params.put("fields", newArrayList("name", "exists", "mode", "mtime_ms"));
-    watchmanPrefix.ifPresent(prefix -> {
-      params.put("relative_root", prefix);
-    });
-    Map<String, Object> r = wm.run("query", watchmanRoot, params);
-    initialScanClock = (String) r.get("clock");
-    putFiles(r);
+  private void initialFind() {
+    Map<String, Object> params = newQueryParams();
+    // stream the files straight into the queue, as the initial query can be huge
+    Map<String, Object> r = wm.query(watchmanRoot, params, this::putFile);
+    lastClock = (String) r.get("clock");
+  }
+
+  /**
+   * Queues the files that changed since {@code clock}.
+   *
+   * After a recrawl, watchman may report every file as changed, but SyncLogic cheaply
+   * drops updates that match what its UpdateTree already has.
+   */
+  private void queryChangesSince(String clock) {
+    Map<String, Object> params = newQueryParams();
+    params.put("since", clock);
+    Map<String, Object> r = wm.query(watchmanRoot, params, this::putFile);
+    if (Boolean.TRUE.equals(r.get("is_fresh_instance"))) {
+      // watchman doesn't report deletes for fresh instances, so we might miss some
+      log.warn("Watchman could not answer since {}, files deleted during the overflow may be missed", clock);
+    }
+    lastClock = (String) r.get("clock");
   }
 
   private void startSubscription() throws Exception {
-    Map<String, Object> params = new HashMap<>();
+    // we won't get the state-leave for states entered on an old subscription, so start over, and at
+    // worst we don't pause for a state that's still asserted (the new subscription still defers for it)
+    states.clear();
+    Map<String, Object> params = newQueryParams();
     // Pass since b/c we don't need to be re-sent everything that we already saw in performInitialScan.
-    params.put("since", initialScanClock);
-    params.put("fields", newArrayList("name", "exists", "mode", "mtime_ms"));
-    watchmanPrefix.ifPresent(prefix -> {
-      params.put("relative_root", prefix);
-    });
+    params.put("since", lastClock);
+    // hold changes while a checkout/rebase/etc. is happening, so we get them all at once after
+    params.put("defer", WatchmanStates.deferred);
+    if (contentHashes) {
+      // don't hash files while a checkout/rebase is rewriting them, we'll get the final versions after
+      params.put("defer_vcs", true);
+    }
     subscription = wm.subscribe(Paths.get(watchmanRoot), params, new Callback() {
       @Override
       public void call(Map<String, Object> message) {
@@ -211,9 +322,25 @@ public class WatchmanFileWatcher implements FileWatcher {
             }
             throw new RuntimeException("Watchman error: " + message.get("error"));
           }
+          // these don't have files, and their clock isn't for a set of changes we've seen
+          if (message.get("state-enter") instanceof String) {
+            String state = (String) message.get("state-enter");
+            log.info("Pausing sync for {}", state);
+            states.add(state);
+            return;
+          }
+          if (message.get("state-leave") instanceof String) {
+            String state = (String) message.get("state-leave");
+            log.info("Resuming sync after {}", state);
+            states.remove(state);
+            return;
+          }
           @SuppressWarnings("unchecked")
           List<Map<String, Object>> files = (List<Map<String, Object>>) message.get("files");
-          files.forEach(WatchmanFileWatcher.this::putFile);
+          files.forEach(f -> putFile(WatchmanFile.fromMap(f)));
+          if (message.get("clock") instanceof String) {
+            lastClock = (String) message.get("clock");
+          }
         } catch (Exception e) {
           exceptions.add(e);
         }
@@ -221,6 +348,43 @@ public class WatchmanFileWatcher implements FileWatcher {
     });
   }
 
+  private void closeWatchman() {
+    if (closed.compareAndSet(false, true)) {
+      try {
+        log.debug("Stopping watchman");
+        wm.close();
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  private Map<String, Object> newQueryParams() {
+    Map<String, Object> params = new HashMap<>();
+    if (contentHashes) {
+      params.put("fields", newArrayList("name", "exists", "mode", "mtime_ms", "content.sha1hex"));
+    } else {
+      params.put("fields", newArrayList("name", "exists", "mode", "mtime_ms"));
+    }
+    watchmanPrefix.ifPresent(prefix -> {
+      params.put("relative_root", prefix);
+    });
+    // have watchman filter out paths we'd ignore anyway, e.g. build/ directories
+    rootGitIgnore = readRootGitIgnore();
+    WatchmanExpression
+      .forRules(config.getIncludes().getLines(), config.getExcludes().getLines(), Arrays.asList(rootGitIgnore.split("\n")))
+      .ifPresent(e -> params.put("expression", e));
+    return params;
+  }
+
+  private String readRootGitIgnore() {
+    try {
+      return FileUtils.readFileToString(ourRoot.resolve(".gitignore").toFile(), UTF_8);
+    } catch (IOException e) {
+      return ""; // the file probably doesn't exist
+    }
+  }
+
   // The modtime from watchman is the pre-deletion modtime; to be
   // considered newer, we increment the pre-deletiong modtime by
   // one. Currently that logic is in UpdateTree, so we just clear
@@ -231,6 +395,13 @@ public class WatchmanFileWatcher implements FileWatcher {
     }
   }
 
+  private void setContentHashIfNeeded(Update.Builder ub, WatchmanFile file) {
+    // watchman hashed the file after it settled, so we don't need to read it or wait for it to settle
+    if (file.sha1 != null && file.exists && isFileStatType(file.mode, FileStat.S_IFREG)) {
+      ub.setContentHash(ContentHasher.formatSha1(file.sha1)).setSettled(true);
+    }
+  }
+
   private void setIgnoreStringIfNeeded(Update.Builder ub) {
     if (ub.getPath().endsWith(".gitignore")) {
       try {
@@ -277,4 +448,9 @@ public class WatchmanFileWatcher implements FileWatcher {
   private static boolean isExecutable(int mode) {
     return (mode & FileStat.S_IXUGO) != 0;
   }
+
+  /** Signals our pumping thread that the root .gitignore changed, so our query expression is stale. */
+  private static class RootGitIgnoreChangedException extends Exception {
+    private static final long serialVersionUID = 1L;
+  }
 }
@@ -5,6 +5,7 @@ import java.util.Arrays;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,6 +22,9 @@ import com.facebook.watchman.WatchmanTransportBuilder;
  *
  * Originally this did hand-written communication with the watchman process, but now
  * it's just a boilerplate mapping to the {@link WatchmanClient}.
+ *
+ * The exception is {@link #query}, which uses its own connection and {@link BserDecoder},
+ * so that large responses are streamed instead of decoded into maps.
  */
 public class WatchmanImpl implements Watchman {
 
@@ -68,6 +72,22 @@ public class WatchmanImpl implements Watchman {
     }
   }
 
+  @Override
+  public Map<String, Object> query(String root, Map<String, Object> params, Consumer<WatchmanFile> files) {
+    try (WatchmanTransport t = WatchmanTransportBuilder.discoverTransport()) {
+      BserEncoder.encode(Arrays.asList("query", root, params), t.getOutputStream());
+      Map<String, Object> response = new BserDecoder(t.getInputStream()).readResponse(files);
+      if (response.containsKey("error")) {
+        throw new RuntimeException("Watchman error: " + response.get("error"));
+      }
+      return response;
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   @Override
   public void unsubscribe(SubscriptionDescriptor descriptor) {
     try {
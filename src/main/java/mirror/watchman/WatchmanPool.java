@@ -0,0 +1,159 @@
+package mirror.watchman;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.facebook.watchman.Callback;
+import com.facebook.watchman.WatchmanClient.SubscriptionDescriptor;
+import com.google.common.base.Throwables;
+
+/**
+ * Shares one watchman client across all of the watchers in the JVM.
+ *
+ * Creating a {@link WatchmanImpl} per watcher meant a server with many sessions held a
+ * watchman connection (and its reader thread) per session, and each new session paid
+ * for the connection setup. Instead, each watcher {@link #acquire}s a lease on a shared
+ * client, and its subscriptions are multiplexed over the client's one connection (the
+ * client already routes each unilateral message to its subscription's callback, so e.g.
+ * an overflow is still only seen, and recovered from, by the watcher it happened to).
+ *
+ * Closing a lease unsubscribes whatever it left subscribed, and the client itself is
+ * closed when its last lease is closed. If the client's connection fails, e.g. because
+ * watchman restarted, new leases get a new client, and the old one is closed once its
+ * existing leases are.
+ */
+public class WatchmanPool {
+
+  private static final Logger log = LoggerFactory.getLogger(WatchmanPool.class);
+  public static final WatchmanPool shared = new WatchmanPool(WatchmanImpl::createIfAvailable);
+  private final Supplier<Optional<Watchman>> factory;
+  private Pooled current;
+
+  public WatchmanPool(Supplier<Optional<Watchman>> factory) {
+    this.factory = factory;
+  }
+
+  /** @return a lease on the shared client, to be closed when done, or empty if watchman is not available */
+  public synchronized Optional<Watchman> acquire() {
+    if (current == null || current.broken) {
+      Optional<Watchman> wm = factory.get();
+      if (!wm.isPresent()) {
+        return Optional.empty();
+      }
+      current = new Pooled(wm.get());
+    }
+    current.leases++;
+    return Optional.of(new Lease(current));
+  }
+
+  private synchronized void release(Pooled pooled) {
+    if (--pooled.leases > 0) {
+      return;
+    }
+    if (current == pooled) {
+      current = null;
+    }
+    log.debug("Closing watchman client");
+    try {
+      pooled.wm.close();
+    } catch (Exception e) {
+      log.error("Could not close watchman client", e);
+    }
+  }
+
+  private synchronized void checkConnection(Pooled pooled, RuntimeException e) {
+    // watchman's own errors (e.g. a bad query) come back as responses, so an IOException means the connection is gone
+    if (!pooled.broken && Throwables.getCausalChain(e).stream().anyMatch(t -> t instanceof IOException)) {
+      log.warn("Watchman client failed, new watchers will use a new client", e);
+      pooled.broken = true;
+    }
+  }
+
+  private static class Pooled {
+    private final Watchman wm;
+    private int leases;
+    private boolean broken;
+
+    private Pooled(Watchman wm) {
+      this.wm = wm;
+    }
+  }
+
+  /** A watcher's view of the shared client, which tracks its subscriptions. */
+  private class Lease implements Watchman {
+    private final Pooled pooled;
+    private final Set<SubscriptionDescriptor> subscriptions = ConcurrentHashMap.newKeySet();
+    private boolean closed;
+
+    private Lease(Pooled pooled) {
+      this.pooled = pooled;
+    }
+
+    @Override
+    public Map<String, Object> run(Object... query) {
+      try {
+        return pooled.wm.run(query);
+      } catch (RuntimeException e) {
+        checkConnection(pooled, e);
+        throw e;
+      }
+    }
+
+    @Override
+    public Map<String, Object> query(String root, Map<String, Object> params, Consumer<WatchmanFile> files) {
+      // this uses its own connection anyway, so that the response can be streamed
+      return pooled.wm.query(root, params, files);
+    }
+
+    @Override
+    public SubscriptionDescriptor subscribe(Path path, Map<String, Object> query, Callback listener) {
+      try {
+        SubscriptionDescriptor s = pooled.wm.subscribe(path, query, listener);
+        subscriptions.add(s);
+        return s;
+      } catch (RuntimeException e) {
+        checkConnection(pooled, e);
+        throw e;
+      }
+    }
+
+    @Override
+    public void unsubscribe(SubscriptionDescriptor descriptor) {
+      subscriptions.remove(descriptor);
+      try {
+        pooled.wm.unsubscribe(descriptor);
+      } catch (RuntimeException e) {
+        checkConnection(pooled, e);
+        throw e;
+      }
+    }
+
+    @Override
+    public synchronized void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      // the client may outlive us, so don't leave our callbacks subscribed
+      for (SubscriptionDescriptor s : subscriptions) {
+        try {
+          pooled.wm.unsubscribe(s);
+        } catch (RuntimeException e) {
+          log.debug("Could not unsubscribe " + s.name(), e);
+        }
+      }
+      subscriptions.clear();
+      release(pooled);
+    }
+  }
+
+}
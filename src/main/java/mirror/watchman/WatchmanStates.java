@@ -0,0 +1,51 @@
+package mirror.watchman;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watchman "states" that we pause syncing for.
+ *
+ * Tools can assert a named state on a watched root, e.g. Mercurial's fsmonitor asserts
+ * {@code hg.update} during checkouts, and our {@code mirror pause} command asserts
+ * {@code mirror.pause}, e.g. around a {@code git rebase}. Our subscriptions defer
+ * notifications until these states are left, so we see one consolidated set of
+ * changes instead of each intermediate version of the files.
+ *
+ * See https://facebook.github.io/watchman/docs/cmd/state-enter.html.
+ */
+public class WatchmanStates {
+
+  private static final Logger log = LoggerFactory.getLogger(WatchmanStates.class);
+  public static final String pause = "mirror.pause";
+  /** The states that our subscriptions defer notifications for. */
+  public static final List<String> deferred = Arrays.asList("hg.update", pause);
+
+  /**
+   * Asserts {@link #pause} on {@code root} while running {@code command}.
+   *
+   * Watchman ties states to the connection that asserted them, so if we die without leaving
+   * the state, watchman will leave it for us.
+   *
+   * @return the command's exit code
+   */
+  public static int runPaused(Watchman wm, Path root, List<String> command) throws IOException, InterruptedException {
+    Map<String, Object> result = wm.run("watch-project", root.toAbsolutePath().normalize().toString());
+    String watchRoot = (String) result.get("watch");
+    wm.run("state-enter", watchRoot, pause);
+    try {
+      log.info("Paused syncing of {}", watchRoot);
+      return new ProcessBuilder(command).inheritIO().start().waitFor();
+    } finally {
+      wm.run("state-leave", watchRoot, pause);
+      log.info("Resumed syncing of {}", watchRoot);
+    }
+  }
+
+}
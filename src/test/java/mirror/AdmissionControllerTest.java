@@ -0,0 +1,68 @@
+package mirror;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link AdmissionController}.
+ */
+public class AdmissionControllerTest {
+
+  @Test
+  public void shouldQueueInitialSyncsBeyondTheLimit() throws Exception {
+    AdmissionController admission = new AdmissionController(1, 0);
+    AdmissionController.Admission first = admission.admitInitialSync("a");
+    // when a second sync asks to start
+    CountDownLatch admitted = new CountDownLatch(1);
+    Thread second = new Thread(() -> {
+      try (AdmissionController.Admission a = admission.admitInitialSync("b")) {
+        admitted.countDown();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    second.start();
+    // then it waits for the first
+    assertThat(admitted.await(100, TimeUnit.MILLISECONDS), is(false));
+    first.close();
+    assertThat(admitted.await(5, TimeUnit.SECONDS), is(true));
+    second.join();
+  }
+
+  @Test
+  public void shouldOnlyReleaseOncePerAdmission() throws Exception {
+    AdmissionController admission = new AdmissionController(1, 0);
+    AdmissionController.Admission first = admission.admitInitialSync("a");
+    // e.g. the initial send finished, and then the session stopped
+    first.close();
+    first.close();
+    AdmissionController.Admission second = admission.admitInitialSync("b");
+    // then only one sync is let in at a time
+    CountDownLatch admitted = new CountDownLatch(1);
+    Thread third = new Thread(() -> {
+      try (AdmissionController.Admission a = admission.admitInitialSync("c")) {
+        admitted.countDown();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    third.start();
+    assertThat(admitted.await(100, TimeUnit.MILLISECONDS), is(false));
+    second.close();
+    assertThat(admitted.await(5, TimeUnit.SECONDS), is(true));
+    third.join();
+  }
+
+  @Test
+  public void shouldOnlyLimitSendsWhenAsked() {
+    assertThat(AdmissionController.defaults().newSendLimiter(), is(nullValue()));
+    assertThat(new AdmissionController(1, 1000).newSendLimiter().getRate(), is(1000.0));
+  }
+
+}
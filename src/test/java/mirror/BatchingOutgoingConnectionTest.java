@@ -0,0 +1,98 @@
+package mirror;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.google.protobuf.ByteString;
+
+import io.grpc.stub.StreamObserver;
+
+/**
+ * Tests {@link BatchingOutgoingConnection}.
+ */
+public class BatchingOutgoingConnectionTest {
+
+  private final List<Update> sent = new ArrayList<>();
+  private final AtomicLong nanos = new AtomicLong();
+  private final BatchingOutgoingConnection outgoing = new BatchingOutgoingConnection(new OutgoingConnectionImpl(new StreamObserver<Update>() {
+    @Override
+    public void onNext(Update value) {
+      sent.add(value);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+    }
+
+    @Override
+    public void onCompleted() {
+    }
+  }), new Ticker() {
+    @Override
+    public long read() {
+      return nanos.get();
+    }
+  });
+
+  @Test
+  public void shouldBatchSmallUpdatesUntilFlushed() {
+    outgoing.send(Update.newBuilder().setPath("foo").setDelete(true).build());
+    outgoing.send(Update.newBuilder().setPath("bar").setDirectory(true).build());
+    assertThat(sent.size(), is(0));
+    outgoing.flush();
+    assertThat(sent.size(), is(1));
+    assertThat(sent.get(0).getBatchCount(), is(2));
+    assertThat(sent.get(0).getBatch(0).getPath(), is("foo"));
+    assertThat(sent.get(0).getBatch(1).getPath(), is("bar"));
+  }
+
+  @Test
+  public void shouldSendTheBatchBeforeALargeUpdate() {
+    outgoing.send(Update.newBuilder().setPath("foo").setDelete(true).build());
+    outgoing.send(Update.newBuilder().setPath("large").setData(ByteString.copyFrom(new byte[8 * 1024])).build());
+    // the batch of one is sent by itself, and in order
+    assertThat(sent.size(), is(2));
+    assertThat(sent.get(0).getPath(), is("foo"));
+    assertThat(sent.get(1).getPath(), is("large"));
+  }
+
+  @Test
+  public void shouldSendFullBatches() {
+    for (int i = 0; i < 1500; i++) {
+      outgoing.send(Update.newBuilder().setPath("build/file" + i).setDelete(true).build());
+    }
+    assertThat(sent.size(), is(1));
+    assertThat(sent.get(0).getBatchCount(), is(1000));
+    outgoing.flush();
+    assertThat(sent.get(1).getBatchCount(), is(500));
+  }
+
+  @Test
+  public void shouldSendBatchesOnceTheOldestUpdateHasWaitedLongEnough() {
+    // given a steady trickle of updates, that never gives SaveToRemote a reason to flush
+    outgoing.send(Update.newBuilder().setPath("foo").setDelete(true).build());
+    nanos.addAndGet(BatchingOutgoingConnection.maxDelay.toNanos() / 2);
+    outgoing.send(Update.newBuilder().setPath("bar").setDelete(true).build());
+    assertThat(sent.size(), is(0));
+    // when the first one has waited long enough
+    nanos.addAndGet(BatchingOutgoingConnection.maxDelay.toNanos() / 2);
+    outgoing.send(Update.newBuilder().setPath("zaz").setDelete(true).build());
+    // then the batch is sent
+    assertThat(sent.size(), is(1));
+    assertThat(sent.get(0).getBatchCount(), is(3));
+  }
+
+  @Test
+  public void shouldNotSendEmptyBatches() {
+    outgoing.flush();
+    assertThat(sent.size(), is(0));
+  }
+
+}
@@ -0,0 +1,33 @@
+package mirror;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import org.junit.Test;
+
+public class ByteBudgetTest {
+
+  private final ByteBudget budget = new ByteBudget(100);
+
+  @Test
+  public void shouldRejectReadsPastTheBudget() {
+    assertThat(budget.tryAcquire(60), is(60L));
+    assertThat(budget.tryAcquire(60), is(-1L));
+    assertThat(budget.getUsedBytes(), is(60L));
+  }
+
+  @Test
+  public void shouldAllowReadsAgainAfterARelease() {
+    budget.release(budget.tryAcquire(60));
+    assertThat(budget.tryAcquire(60), is(60L));
+  }
+
+  @Test
+  public void shouldClampFilesLargerThanTheWholeBudget() throws Exception {
+    assertThat(budget.acquire(1_000), is(100L));
+    assertThat(budget.tryAcquire(1), is(-1L));
+    budget.release(100);
+    assertThat(budget.getUsedBytes(), is(0L));
+  }
+
+}
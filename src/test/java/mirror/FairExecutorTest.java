@@ -0,0 +1,60 @@
+package mirror;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link FairExecutor}.
+ */
+public class FairExecutorTest {
+
+  private final FairExecutor executor = new FairExecutor(1, "FairExecutorTest-%s");
+  private final List<String> order = new CopyOnWriteArrayList<>();
+
+  @Test
+  public void shouldTakeTurnsBetweenQueues() throws Exception {
+    Executor bulk = executor.newQueue();
+    Executor interactive = executor.newQueue();
+    // given our one thread is busy
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    bulk.execute(() -> {
+      started.countDown();
+      await(release);
+    });
+    started.await();
+    // and the bulk queue has several tasks before the interactive one
+    CountDownLatch done = new CountDownLatch(4);
+    bulk.execute(() -> run("b1", done));
+    bulk.execute(() -> run("b2", done));
+    bulk.execute(() -> run("b3", done));
+    interactive.execute(() -> run("i1", done));
+    // when the thread frees up
+    release.countDown();
+    done.await(5, TimeUnit.SECONDS);
+    // then the interactive task only waited for one bulk task
+    assertThat(order.toString(), is("[b1, i1, b2, b3]"));
+  }
+
+  private void run(String name, CountDownLatch done) {
+    order.add(name);
+    done.countDown();
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
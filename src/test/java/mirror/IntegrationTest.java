@@ -13,6 +13,7 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -507,6 +508,30 @@ public class IntegrationTest {
     assertThat(readFile(new File(root2, "foo.txt")), is("abc1"));
   }
 
+  @Test
+  public void testUpdateLargeFileThatWasMarkedReadOnlyByCodeGenerator() throws Exception {
+    // given two files that are large enough to be spooled to disk when received
+    writeFile(new File(root1, "foo/foo.txt"), StringUtils.repeat("a", 128 * 1024));
+    writeFile(new File(root2, "foo/foo.txt"), StringUtils.repeat("b", 128 * 1024));
+    // and root1's file is newer
+    new File(root1, "foo/foo.txt").setLastModified(2000);
+    new File(root2, "foo/foo.txt").setLastModified(1000);
+    // but root2's file, and its directory, are read only
+    NativeFileAccessUtils.setReadOnly(new File(root2, "foo/foo.txt").toPath());
+    NativeFileAccessUtils.setMode(new File(root2, "foo").toPath(), Integer.parseInt("0555", 8));
+    try {
+      // when mirror is started
+      startMirror();
+      sleep();
+      // then we can successfully update root2
+      assertThat(readFile(new File(root2, "foo/foo.txt")), is(StringUtils.repeat("a", 128 * 1024)));
+      // and the directory is still read only
+      assertThat(NativeFileAccessUtils.getMode(new File(root2, "foo").toPath()), is(Integer.parseInt("0555", 8)));
+    } finally {
+      NativeFileAccessUtils.setWritable(new File(root2, "foo").toPath());
+    }
+  }
+
   @Test
   public void testSimpleFileThatIsEmpty() throws Exception {
     startMirror();
@@ -0,0 +1,67 @@
+package mirror;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link MirrorDaemon}.
+ */
+public class MirrorDaemonTest {
+
+  private final Map<String, MirrorClient> clients = new HashMap<>();
+  private final MirrorDaemon daemon = new MirrorDaemon(paths -> {
+    MirrorClient client = mock(MirrorClient.class);
+    clients.put(paths.root.toString(), client);
+    return client;
+  });
+
+  @Test
+  public void shouldStartEachRoot() {
+    daemon.setRoots(roots("a", "b"));
+    assertThat(daemon.numberOfRoots(), is(2));
+    verify(clients.get("a")).start();
+    verify(clients.get("b")).start();
+  }
+
+  @Test
+  public void shouldOnlyStopRemovedRoots() {
+    daemon.setRoots(roots("a", "b"));
+    MirrorClient a = clients.get("a");
+    MirrorClient b = clients.get("b");
+    // when b is removed and c is added
+    daemon.setRoots(roots("a", "c"));
+    // then a is left running
+    assertThat(daemon.numberOfRoots(), is(2));
+    verify(a, never()).stop();
+    verify(b).stop();
+    verify(clients.get("c")).start();
+  }
+
+  @Test
+  public void shouldStopAllRoots() {
+    daemon.setRoots(roots("a", "b"));
+    daemon.stop();
+    assertThat(daemon.numberOfRoots(), is(0));
+    verify(clients.get("a")).stop();
+    verify(clients.get("b")).stop();
+  }
+
+  private static Map<String, MirrorPaths> roots(String... names) {
+    Map<String, MirrorPaths> roots = new LinkedHashMap<>();
+    for (String name : names) {
+      roots.put(name, MirrorPaths.forTesting(Paths.get(name)));
+    }
+    return roots;
+  }
+
+}
@@ -7,6 +7,7 @@ import static org.junit.Assert.assertThat;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -44,6 +45,59 @@ public class MirrorServerTest {
     assertThat(server.numberOfSessions(), is(1));
   }
 
+  @Test
+  public void shouldNotBlockOtherClientsDuringAnInitialSync() throws Exception {
+    // Given one client's initial scan is taking awhile
+    CountDownLatch scanning = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Mockito.when(fileWatcher.performInitialScan()).thenAnswer(i -> {
+      scanning.countDown();
+      release.await();
+      return fileUpdates;
+    }).thenReturn(fileUpdates);
+    Thread slow = new Thread(() -> server.initialSync(InitialSyncRequest.newBuilder().setRemotePath("home").setClientId("a").build(), new StubObserver<>()));
+    slow.start();
+    scanning.await();
+    // When another client connects
+    StubObserver<InitialSyncResponse> response = new StubObserver<>();
+    server.initialSync(InitialSyncRequest.newBuilder().setRemotePath("home").setClientId("b").build(), response);
+    // Then it doesn't wait for the first client
+    assertThat(response.values.size(), is(1));
+    release.countDown();
+    slow.join();
+    assertThat(server.numberOfSessions(), is(2));
+  }
+
+  @Test
+  public void shouldAdmitReconnectingClientsInPlaceOfTheirPriorSessions() throws Exception {
+    // Given two clients whose sessions are holding every admission, as they haven't sent their initial diffs
+    server = new MirrorServer(taskFactory, accessFactory, fileWatcherFactory, rootFileAccess, null, new AdmissionController(2, 0));
+    server.initialSync(InitialSyncRequest.newBuilder().setRemotePath("home").setClientId("a").build(), new StubObserver<>());
+    server.initialSync(InitialSyncRequest.newBuilder().setRemotePath("home").setClientId("b").build(), new StubObserver<>());
+    // When both reconnect, along with a new client that has to wait for an admission
+    List<StubObserver<InitialSyncResponse>> responses = new ArrayList<>();
+    List<Thread> threads = new ArrayList<>();
+    for (String clientId : new String[] { "a", "b", "a", "c" }) {
+      StubObserver<InitialSyncResponse> response = new StubObserver<>();
+      responses.add(response);
+      Thread t = new Thread(() -> server.initialSync(InitialSyncRequest.newBuilder().setRemotePath("home").setClientId(clientId).build(), response));
+      t.setDaemon(true);
+      t.start();
+      threads.add(t);
+      if (!clientId.equals("c")) {
+        t.join(5_000);
+      }
+    }
+    // Then each reconnect stops its prior session, and is admitted in its place
+    assertThat(responses.get(0).values.size(), is(1));
+    assertThat(responses.get(1).values.size(), is(1));
+    assertThat(responses.get(2).values.size(), is(1));
+    // And the new client is admitted once a session stops
+    server.getSession("home:b").stop();
+    threads.get(3).join(5_000);
+    assertThat(responses.get(3).values.size(), is(1));
+  }
+
   @Test
   public void shouldWarnAnOlderClient() {
     // Given a valid request with an older client
@@ -0,0 +1,109 @@
+package mirror;
+
+import static mirror.TestUtils.writeFile;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link ParallelTreeScanner}.
+ */
+public class ParallelTreeScannerTest {
+
+  private static final File dir = new File("./build/ParallelTreeScannerTest");
+  private final Map<String, PosixFileAttributes> found = new ConcurrentHashMap<>();
+  private final List<String> order = new CopyOnWriteArrayList<>();
+
+  @Before
+  public void clearFiles() throws Exception {
+    if (dir.exists()) {
+      FileUtils.forceDelete(dir);
+    }
+    dir.mkdirs();
+  }
+
+  @Test
+  public void shouldFindNestedFilesAndDirectories() throws Exception {
+    // given a few levels of files
+    writeFile(new File(dir, "foo.txt"), "abc");
+    writeFile(new File(dir, "dir1/bar.txt"), "abc");
+    writeFile(new File(dir, "dir1/dir2/zaz.sh"), "abc");
+    new File(dir, "dir1/dir2/zaz.sh").setExecutable(true);
+    Files.createSymbolicLink(dir.toPath().resolve("dir1/link"), Paths.get("bar.txt"));
+    // when we scan
+    scan();
+    // then we found everything
+    assertThat(found.keySet().size(), is(7));
+    assertThat(found.get("dir1").isDirectory(), is(true));
+    assertThat(found.get("foo.txt").isRegularFile(), is(true));
+    assertThat(found.get("dir1/link").isSymbolicLink(), is(true));
+    // and have the permissions from the same stat
+    assertThat(NativeFileAccessUtils.isExecutable(found.get("dir1/dir2/zaz.sh").permissions()), is(true));
+    assertThat(NativeFileAccessUtils.isExecutable(found.get("foo.txt").permissions()), is(false));
+    // and directories were visited before their children
+    assertThat(order.indexOf("dir1") < order.indexOf("dir1/dir2"), is(true));
+    assertThat(order.indexOf("dir1/dir2") < order.indexOf("dir1/dir2/zaz.sh"), is(true));
+  }
+
+  @Test
+  public void shouldSkipDirectoriesTheVisitorRejects() throws Exception {
+    writeFile(new File(dir, "dir1/bar.txt"), "abc");
+    writeFile(new File(dir, "build/foo.txt"), "abc");
+    ParallelTreeScanner.scan(dir.toPath(), new ParallelTreeScanner.Visitor() {
+      @Override
+      public boolean visitDirectory(Path directory, PosixFileAttributes attrs) {
+        found.put(relative(directory), attrs);
+        return !directory.getFileName().toString().equals("build");
+      }
+
+      @Override
+      public void visitFile(Path file, PosixFileAttributes attrs) {
+        found.put(relative(file), attrs);
+      }
+    });
+    assertThat(found.containsKey("dir1/bar.txt"), is(true));
+    assertThat(found.containsKey("build"), is(true));
+    assertThat(found.containsKey("build/foo.txt"), is(false));
+  }
+
+  @Test
+  public void shouldIgnoreAMissingDirectory() throws Exception {
+    ParallelTreeScanner.scan(dir.toPath().resolve("missing"), null);
+  }
+
+  private void scan() throws IOException {
+    ParallelTreeScanner.scan(dir.toPath(), new ParallelTreeScanner.Visitor() {
+      @Override
+      public boolean visitDirectory(Path directory, PosixFileAttributes attrs) {
+        found.put(relative(directory), attrs);
+        order.add(relative(directory));
+        return true;
+      }
+
+      @Override
+      public void visitFile(Path file, PosixFileAttributes attrs) {
+        found.put(relative(file), attrs);
+        order.add(relative(file));
+      }
+    });
+  }
+
+  private static String relative(Path path) {
+    return dir.toPath().relativize(path).toString();
+  }
+
+}
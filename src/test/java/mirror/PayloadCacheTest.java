@@ -0,0 +1,73 @@
+package mirror;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Tests {@link PayloadCache}.
+ */
+public class PayloadCacheTest {
+
+  private final PayloadCache cache = new PayloadCache(1024 * 1024);
+  private final Path path = Paths.get("/home/foo/foo.txt");
+  private final ByteString text = ByteString.copyFromUtf8(StringUtils.repeat("abc", 10_000));
+  private final AtomicInteger reads = new AtomicInteger();
+
+  @Test
+  public void shouldReadEachVersionOnce() throws Exception {
+    assertThat(cache.getRaw(path, 1L, text.size(), this::read), is(text));
+    assertThat(cache.getRaw(path, 1L, text.size(), this::read), is(text));
+    assertThat(reads.get(), is(1));
+    assertThat(cache.stats().hitCount(), is(1L));
+    // a new modtime is a new version
+    cache.getRaw(path, 2L, text.size(), this::read);
+    assertThat(reads.get(), is(2));
+  }
+
+  @Test
+  public void shouldGzipOnceAndShareTheRead() throws Exception {
+    ByteString gzipped = cache.getGzipped(path, 1L, text.size(), this::read);
+    assertThat(gzipped.size() < text.size(), is(true));
+    assertThat(cache.getGzipped(path, 1L, text.size(), this::read), is(gzipped));
+    assertThat(cache.getRaw(path, 1L, text.size(), this::read), is(text));
+    assertThat(reads.get(), is(1));
+  }
+
+  @Test
+  public void shouldRoundTripGzippedUpdates() throws Exception {
+    ByteString gzipped = cache.getGzipped(path, 1L, text.size(), this::read);
+    Update u = Update.newBuilder().setPath("foo.txt").setData(gzipped).setDataGzipped(true).build();
+    Update gunzipped = PayloadCache.gunzipIfNeeded(u);
+    assertThat(gunzipped.getData(), is(text));
+    assertThat(gunzipped.getDataGzipped(), is(false));
+  }
+
+  @Test
+  public void shouldNotGzipDataThatDoesNotCompress() throws Exception {
+    byte[] random = new byte[32 * 1024];
+    new Random(1).nextBytes(random);
+    assertThat(cache.getGzipped(path, 1L, random.length, () -> ByteString.copyFrom(random)), is(nullValue()));
+  }
+
+  @Test
+  public void shouldNotGzipSmallFiles() throws Exception {
+    assertThat(cache.getGzipped(path, 1L, 3, () -> ByteString.copyFromUtf8("abc")), is(nullValue()));
+  }
+
+  private ByteString read() {
+    reads.incrementAndGet();
+    return text;
+  }
+
+}
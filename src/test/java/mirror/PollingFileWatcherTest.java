@@ -0,0 +1,114 @@
+package mirror;
+
+import static mirror.TestUtils.writeFile;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.commons.io.FileUtils;
+import org.jooq.lambda.Seq;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link PollingFileWatcher}.
+ */
+public class PollingFileWatcherTest {
+
+  private static final File dir = new File("./build/PollingFileWatcherTest");
+  private final BlockingQueue<Update> queue = new LinkedBlockingQueue<>();
+  private PollingFileWatcher watcher;
+
+  @Before
+  public void clearFiles() throws Exception {
+    if (dir.exists()) {
+      FileUtils.forceDelete(dir);
+    }
+    dir.mkdirs();
+    watcher = new PollingFileWatcher(MirrorPaths.forTesting(dir.toPath()), queue);
+  }
+
+  @Test
+  public void shouldFindExistingFilesInTheInitialScan() throws Exception {
+    writeFile(new File(dir, "foo.txt"), "abc");
+    writeFile(new File(dir, "dir1/bar.txt"), "abc");
+    List<Update> updates = watcher.performInitialScan();
+    assertThat(paths(updates), is("dir1,dir1/bar.txt,foo.txt"));
+  }
+
+  @Test
+  public void shouldOnlyPutChangedFiles() throws Exception {
+    // given an initial scan
+    writeFile(new File(dir, "foo.txt"), "abc");
+    writeFile(new File(dir, "dir1/bar.txt"), "abc");
+    watcher.performInitialScan();
+    // when bar.txt changes
+    File bar = new File(dir, "dir1/bar.txt");
+    writeFile(bar, "abcd");
+    bar.setLastModified(bar.lastModified() + 2000);
+    watcher.runOneLoop();
+    // then only bar.txt is put
+    assertThat(paths(drain()), is("dir1/bar.txt"));
+    // and nothing is put if nothing changed
+    watcher.runOneLoop();
+    assertThat(drain().size(), is(0));
+  }
+
+  @Test
+  public void shouldPutNewFilesAndDeletes() throws Exception {
+    writeFile(new File(dir, "foo.txt"), "abc");
+    writeFile(new File(dir, "dir1/bar.txt"), "abc");
+    watcher.performInitialScan();
+    // when we delete dir1 and add zaz.txt
+    FileUtils.forceDelete(new File(dir, "dir1"));
+    writeFile(new File(dir, "zaz.txt"), "abc");
+    watcher.runOneLoop();
+    List<Update> updates = drain();
+    // then we see the new file and the deleted directory (UpdateTree will delete its children)
+    assertThat(Seq.seq(updates).filter(u -> u.getDelete()).map(u -> u.getPath()).toString(","), is("dir1"));
+    assertThat(Seq.seq(updates).filter(u -> !u.getDelete()).map(u -> u.getPath()).toString(","), is("zaz.txt"));
+  }
+
+  @Test
+  public void shouldSkipIgnoredSubtrees() throws Exception {
+    writeFile(new File(dir, ".gitignore"), "node_modules/");
+    writeFile(new File(dir, "node_modules/foo/foo.js"), "abc");
+    writeFile(new File(dir, "build/bar.class"), "abc");
+    writeFile(new File(dir, "src/bar.java"), "abc");
+    watcher = new PollingFileWatcher(new MirrorPaths(dir.toPath(), null, new PathRules(), new PathRules("build"), false, new ArrayList<>()), queue);
+    // then neither the excluded nor the git ignored directories are reported
+    assertThat(paths(watcher.performInitialScan()), is(".gitignore,src,src/bar.java"));
+    // and when the .gitignore no longer ignores node_modules
+    File gitIgnore = new File(dir, ".gitignore");
+    writeFile(gitIgnore, "");
+    gitIgnore.setLastModified(gitIgnore.lastModified() + 2000);
+    watcher.runOneLoop();
+    // then we find it
+    assertThat(paths(drain()), is(".gitignore,node_modules,node_modules/foo,node_modules/foo/foo.js"));
+  }
+
+  @Test
+  public void shouldBackOffWhenNothingChanges() throws Exception {
+    watcher.performInitialScan();
+    Duration first = watcher.runOneLoop();
+    Duration second = watcher.runOneLoop();
+    assertThat(second.compareTo(first) > 0, is(true));
+  }
+
+  private List<Update> drain() {
+    List<Update> updates = new ArrayList<>();
+    queue.drainTo(updates);
+    return updates;
+  }
+
+  private static String paths(List<Update> updates) {
+    return Seq.seq(updates).map(u -> u.getPath()).sorted().toString(",");
+  }
+
+}
@@ -0,0 +1,34 @@
+package mirror;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.time.Duration;
+
+import org.junit.Test;
+
+public class QuiescencePolicyTest {
+
+  private final QuiescencePolicy p = new QuiescencePolicy(new PathRules("build/", "*-SNAPSHOT.jar"), Duration.ofSeconds(1));
+
+  @Test
+  public void shouldHoldFilesWithTheirNoisyDirectory() {
+    assertThat(p.findSubtree("build", true), is("build"));
+    assertThat(p.findSubtree("build/classes/Foo.class", false), is("build"));
+    assertThat(p.findSubtree("project/build/classes/Foo.class", false), is("project/build"));
+  }
+
+  @Test
+  public void shouldHoldNoisyFilesByThemselves() {
+    assertThat(p.findSubtree("lib/foo-1.0-SNAPSHOT.jar", false), is("lib/foo-1.0-SNAPSHOT.jar"));
+  }
+
+  @Test
+  public void shouldNotHoldOtherFiles() {
+    assertThat(p.findSubtree("src/Foo.java", false), is(nullValue()));
+    assertThat(p.findSubtree("build.gradle", false), is(nullValue()));
+    assertThat(QuiescencePolicy.none().findSubtree("build/Foo.class", false), is(nullValue()));
+  }
+
+}
@@ -0,0 +1,79 @@
+package mirror;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Tests {@link RawConnection}.
+ */
+public class RawConnectionTest {
+
+  private static final File dir = new File("./build/RawConnectionTest");
+  private RawConnection sender;
+  private RawConnection receiver;
+
+  @Before
+  public void before() throws Exception {
+    FileUtils.deleteDirectory(dir);
+    dir.mkdirs();
+    try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+      sender = RawConnection.connect((InetSocketAddress) server.getLocalAddress());
+      receiver = new RawConnection(server.accept());
+    }
+  }
+
+  @After
+  public void after() {
+    sender.close();
+    receiver.close();
+  }
+
+  @Test
+  public void shouldSendMetadataAndSmallData() throws Exception {
+    sender.send(Update.newBuilder().setPath("foo.txt").setModTime(1L).setData(ByteString.copyFromUtf8("abc")).build());
+    sender.send(Update.newBuilder().setPath("dir").setDirectory(true).build());
+    Update u1 = receiver.receive();
+    assertThat(u1.getPath(), is("foo.txt"));
+    assertThat(u1.getModTime(), is(1L));
+    assertThat(u1.getData().toStringUtf8(), is("abc"));
+    Update u2 = receiver.receive();
+    assertThat(u2.getPath(), is("dir"));
+    assertThat(u2.getDirectory(), is(true));
+  }
+
+  @Test
+  public void shouldSpoolLargeFiles() throws Exception {
+    byte[] data = new byte[1024 * 1024];
+    new Random(1).nextBytes(data);
+    File file = new File(dir, "large.bin");
+    FileUtils.writeByteArrayToFile(file, data);
+    sender.sendFile(Update.newBuilder().setPath("large.bin").build(), file.toPath());
+    Update u = receiver.receive();
+    assertThat(u.getPath(), is("large.bin"));
+    assertThat(u.getData().isEmpty(), is(true));
+    assertThat(Files.readAllBytes(Paths.get(u.getSpoolPath())), is(data));
+  }
+
+  @Test
+  public void shouldReturnNullWhenClosed() throws Exception {
+    sender.close();
+    assertThat(receiver.receive(), is(nullValue()));
+  }
+
+}
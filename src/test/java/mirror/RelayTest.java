@@ -0,0 +1,82 @@
+package mirror;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.nio.file.Paths;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+import mirror.hash.ContentHasher;
+
+/**
+ * Tests {@link Relay}.
+ */
+public class RelayTest {
+
+  private final Relay relay = new Relay();
+  private final BlockingQueue<Update> queue1 = new LinkedBlockingQueue<>();
+  private final BlockingQueue<Update> queue2 = new LinkedBlockingQueue<>();
+  private final BlockingQueue<Update> queue3 = new LinkedBlockingQueue<>();
+  private final Relay.Peer peer1 = relay.join(MirrorPaths.forTesting(Paths.get("/home/foo")), queue1);
+  private final Relay.Peer peer2 = relay.join(MirrorPaths.forTesting(Paths.get("/home/foo")), queue2);
+  private final Relay.Peer peer3 = relay.join(MirrorPaths.forTesting(Paths.get("/home/bar")), queue3);
+  private final ByteString data = ByteString.copyFromUtf8("abc");
+
+  @Test
+  public void shouldForwardSavedUpdatesToOtherSessionsOnTheSameRoot() {
+    peer1.publish(Update.newBuilder().setPath("foo.txt").setModTime(1L).setData(data).build());
+    // the other session on our root gets a settled, hashed local update without the data
+    Update u = queue2.poll();
+    assertThat(u.getPath(), is("foo.txt"));
+    assertThat(u.getLocal(), is(true));
+    assertThat(u.getSettled(), is(true));
+    assertThat(u.getContentHash(), is(ContentHasher.hash(data)));
+    assertThat(u.getData().isEmpty(), is(true));
+    // and we don't get our own update, nor does the other root
+    assertThat(queue1.size(), is(0));
+    assertThat(queue3.size(), is(0));
+  }
+
+  @Test
+  public void shouldHandOverTheDataOnce() {
+    peer1.publish(Update.newBuilder().setPath("foo.txt").setModTime(1L).setData(data).build());
+    Update u = queue2.poll();
+    assertThat(peer2.takeData(u), is(data));
+    assertThat(peer2.takeData(u), is(nullValue()));
+  }
+
+  @Test
+  public void shouldNotHandOverDataForADifferentModTime() {
+    peer1.publish(Update.newBuilder().setPath("foo.txt").setModTime(1L).setData(data).build());
+    Update u = queue2.poll();
+    assertThat(peer2.takeData(u.toBuilder().setModTime(2L).build()), is(nullValue()));
+  }
+
+  @Test
+  public void shouldForwardSpooledUpdatesWithoutData() {
+    // given a large update, that was spooled and then moved into place
+    peer1.publish(Update.newBuilder().setPath("foo.txt").setModTime(1L).setSpoolPath("/tmp/spool/1").setContentHash("xxh64:1").build());
+    // then the other session gets the settled update, with the remote's hash
+    Update u = queue2.poll();
+    assertThat(u.getSettled(), is(true));
+    assertThat(u.getContentHash(), is("xxh64:1"));
+    assertThat(u.getSpoolPath().isEmpty(), is(true));
+    // but it has to read the file we saved
+    assertThat(peer2.takeData(u), is(nullValue()));
+  }
+
+  @Test
+  public void shouldStopForwardingToSessionsThatLeft() {
+    peer2.leave();
+    peer1.publish(Update.newBuilder().setPath("foo.txt").setModTime(1L).setData(data).build());
+    assertThat(queue2.size(), is(0));
+    assertThat(peer3.takeData(Update.newBuilder().setPath("foo.txt").setModTime(1L).build()), is(nullValue()));
+  }
+
+}
@@ -0,0 +1,70 @@
+package mirror;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import mirror.MirrorGrpc.MirrorBlockingStub;
+
+/**
+ * Tests {@link SharedChannelFactory}.
+ */
+public class SharedChannelFactoryTest {
+
+  private Server server;
+  private ManagedChannel channel;
+  private SharedChannelFactory factory;
+
+  @Before
+  public void before() throws Exception {
+    server = InProcessServerBuilder.forName("SharedChannelFactoryTest").addService(new MirrorGrpc.MirrorImplBase() {
+      @Override
+      public void ping(PingRequest request, StreamObserver<PingResponse> responseObserver) {
+        responseObserver.onNext(PingResponse.newBuilder().build());
+        responseObserver.onCompleted();
+      }
+    }).build().start();
+    channel = InProcessChannelBuilder.forName("SharedChannelFactoryTest").build();
+    factory = new SharedChannelFactory(channel);
+  }
+
+  @After
+  public void after() {
+    factory.shutdown();
+    server.shutdownNow();
+  }
+
+  @Test
+  public void shouldFailNewCallsOnAShutdownSessionChannel() {
+    ManagedChannel a = factory.newChannel();
+    ManagedChannel b = factory.newChannel();
+    ping(a);
+    a.shutdown();
+    assertThat(a.isShutdown(), is(true));
+    try {
+      ping(a);
+      fail();
+    } catch (StatusRuntimeException e) {
+      assertThat(e.getStatus().getCode(), is(Status.Code.UNAVAILABLE));
+    }
+    // the other sessions, and the underlying channel, are still up
+    ping(b);
+    assertThat(channel.isShutdown(), is(false));
+  }
+
+  private static void ping(ManagedChannel channel) {
+    MirrorBlockingStub stub = MirrorGrpc.newBlockingStub(channel);
+    stub.ping(PingRequest.newBuilder().build());
+  }
+}
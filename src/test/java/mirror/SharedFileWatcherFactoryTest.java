@@ -0,0 +1,138 @@
+package mirror;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.jooq.lambda.Seq;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import mirror.tasks.StubTaskFactory;
+
+/**
+ * Tests {@link SharedFileWatcherFactory}.
+ */
+public class SharedFileWatcherFactoryTest {
+
+  private final StubTaskFactory taskFactory = new StubTaskFactory();
+  private final FileWatcherFactory delegate = Mockito.mock(FileWatcherFactory.class);
+  private final FileWatcher watcher = Mockito.mock(FileWatcher.class);
+  private final List<Update> initialUpdates = new ArrayList<>();
+  private final MirrorPaths paths = MirrorPaths.forTesting(Paths.get("/home/foo"));
+  private final BlockingQueue<Update> queue1 = new LinkedBlockingQueue<>();
+  private final BlockingQueue<Update> queue2 = new LinkedBlockingQueue<>();
+  private BlockingQueue<Update> source;
+  private SharedFileWatcherFactory factory;
+
+  @Before
+  public void before() throws Exception {
+    Mockito.when(delegate.newWatcher(Mockito.any(), Mockito.any())).thenAnswer(i -> {
+      source = i.getArgument(1);
+      return watcher;
+    });
+    Mockito.when(watcher.performInitialScan()).thenReturn(initialUpdates);
+    factory = new SharedFileWatcherFactory(taskFactory, delegate);
+  }
+
+  @Test
+  public void shouldScanTheRootOnceForTwoSessions() throws Exception {
+    initialUpdates.add(local("foo.txt", 1));
+    // when two sessions start on the same root
+    List<Update> first = factory.newWatcher(paths, queue1).performInitialScan();
+    List<Update> second = factory.newWatcher(paths, queue2).performInitialScan();
+    // then we only scanned once
+    Mockito.verify(delegate, Mockito.times(1)).newWatcher(Mockito.any(), Mockito.any());
+    Mockito.verify(watcher, Mockito.times(1)).performInitialScan();
+    assertThat(factory.numberOfWatchers(), is(1));
+    // and both sessions got the initial state
+    assertThat(paths(first), is("foo.txt"));
+    assertThat(paths(second), is("foo.txt"));
+  }
+
+  @Test
+  public void shouldShareTheLocalUpdatesInEachSessionsTree() throws Exception {
+    initialUpdates.add(local("foo.txt", 1));
+    // when two sessions build their trees from the shared state
+    FileWatcher first = factory.newWatcher(paths, queue1);
+    FileWatcher second = factory.newWatcher(paths, queue2);
+    UpdateTree tree1 = UpdateTree.newRoot(paths);
+    UpdateTree tree2 = UpdateTree.newRoot(paths);
+    first.performInitialScan().forEach(tree1::addSharedLocal);
+    second.performInitialScan().forEach(tree2::addSharedLocal);
+    // then they both hold the same instance, instead of their own copies
+    assertThat(first.isShared(), is(true));
+    assertThat(tree1.findIfExists("foo.txt").getLocal(), is(sameInstance(tree2.findIfExists("foo.txt").getLocal())));
+  }
+
+  @Test
+  public void shouldFanOutChangesToEachSession() throws Exception {
+    factory.newWatcher(paths, queue1).performInitialScan();
+    factory.newWatcher(paths, queue2).performInitialScan();
+    // when the watcher sees a change
+    source.add(local("foo.txt", 2));
+    taskFactory.tick();
+    // then both sessions get it
+    assertThat(paths(drain(queue1)), is("foo.txt"));
+    assertThat(paths(drain(queue2)), is("foo.txt"));
+  }
+
+  @Test
+  public void shouldStartNewSessionsWithTheLatestState() throws Exception {
+    initialUpdates.add(local("dir", 1));
+    initialUpdates.add(local("dir/foo.txt", 1));
+    initialUpdates.add(local("bar.txt", 1));
+    factory.newWatcher(paths, queue1).performInitialScan();
+    // when bar.txt changes and dir is deleted
+    source.add(local("bar.txt", 2));
+    source.add(Update.newBuilder().setPath("dir").setDelete(true).setLocal(true).build());
+    taskFactory.tick();
+    // then a new session sees the latest bar.txt and nothing in dir
+    List<Update> second = factory.newWatcher(paths, queue2).performInitialScan();
+    assertThat(paths(second), is("bar.txt"));
+    assertThat(second.get(0).getModTime(), is(2L));
+  }
+
+  @Test
+  public void shouldUseSeparateWatchersForSeparateRoots() throws Exception {
+    factory.newWatcher(paths, queue1).performInitialScan();
+    factory.newWatcher(MirrorPaths.forTesting(Paths.get("/home/bar")), queue2).performInitialScan();
+    assertThat(factory.numberOfWatchers(), is(2));
+  }
+
+  @Test
+  public void shouldStopFanningOutToStoppedSessions() throws Exception {
+    FileWatcher first = factory.newWatcher(paths, queue1);
+    first.performInitialScan();
+    factory.newWatcher(paths, queue2).performInitialScan();
+    // when the first session stops
+    first.onStop();
+    source.add(local("foo.txt", 2));
+    taskFactory.tick();
+    // then only the second session gets the change
+    assertThat(drain(queue1).size(), is(0));
+    assertThat(paths(drain(queue2)), is("foo.txt"));
+  }
+
+  private static Update local(String path, long modTime) {
+    return Update.newBuilder().setPath(path).setModTime(modTime).setLocal(true).build();
+  }
+
+  private static List<Update> drain(BlockingQueue<Update> queue) {
+    List<Update> updates = new ArrayList<>();
+    queue.drainTo(updates);
+    return updates;
+  }
+
+  private static String paths(List<Update> updates) {
+    return Seq.seq(updates).map(u -> u.getPath()).toString(",");
+  }
+
+}
@@ -3,6 +3,7 @@ package mirror;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -11,6 +12,8 @@ import java.util.Map;
 
 import com.google.protobuf.ByteString;
 
+import mirror.hash.ContentHasher;
+
 public class StubFileAccess implements FileAccess {
 
   private static final byte[] directoryMarker = new byte[] { 0 };
@@ -28,6 +31,13 @@ public class StubFileAccess implements FileAccess {
     fileTimes.put(path, 1L);
   }
 
+  @Override
+  public void moveInto(Path path, Path absoluteSource) throws IOException {
+    fileData.put(path, Files.readAllBytes(absoluteSource));
+    fileTimes.put(path, 1L);
+    Files.delete(absoluteSource);
+  }
+
   public void write(Path path, ByteBuffer data, long modTime) throws IOException {
     write(path, data);
     fileTimes.put(path, modTime);
@@ -74,6 +84,11 @@ public class StubFileAccess implements FileAccess {
     return deleted.contains(path);
   }
 
+  @Override
+  public Path getAbsolutePath(Path relativePath) {
+    return null;
+  }
+
   @Override
   public Path readSymlink(Path link) {
     return symlinks.get(link);
@@ -116,4 +131,13 @@ public class StubFileAccess implements FileAccess {
     executable.put(relativePath, true);
   }
 
+  @Override
+  public String getContentHash(Path relativePath) throws IOException {
+    return ContentHasher.hash(read(relativePath).toByteArray());
+  }
+
+  @Override
+  public void setContentHash(Path relativePath, String hash) {
+  }
+
 }
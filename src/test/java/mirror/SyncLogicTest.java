@@ -2,16 +2,24 @@ package mirror;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.concurrent.BlockingQueue;
 
 import org.junit.Test;
 
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.ByteString;
 
+import mirror.hash.ContentHasher;
+
 public class SyncLogicTest {
 
   private static final Path fooDotTxt = Paths.get("foo.txt");
@@ -40,6 +48,68 @@ public class SyncLogicTest {
     // and the time stamp
     assertThat(sent.getModTime(), is(1L));
     assertThat(sent.getLocal(), is(false));
+    // and the hash of the data
+    assertThat(sent.getContentHash(), is(ContentHasher.hash(data)));
+  }
+
+  @Test
+  public void sendTheHashOfTheDataThatIsSent() throws Exception {
+    // given a file that was queued with a hash from before it last changed
+    fileAccess.write(fooDotTxt, ByteBuffer.wrap(data2));
+    queues.saveToRemote.add(Update.newBuilder().setPath("foo.txt").setModTime(1L).setContentHash(ContentHasher.hash(data)).build());
+    // when we send it
+    poll();
+    // then the hash matches the data
+    Update sent = outgoing.values.get(0);
+    assertThat(sent.getData().toByteArray(), is(data2));
+    assertThat(sent.getContentHash(), is(ContentHasher.hash(data2)));
+  }
+
+  @Test
+  public void sendOnlyModTimeWhenLocalContentIsUnchanged() throws Exception {
+    // given a file that is in sync with the remote
+    String hash = ContentHasher.hash(data);
+    tree.addLocal(Update.newBuilder().setPath("foo.txt").setModTime(1L).setContentHash(hash).build());
+    tree.addRemote(Update.newBuilder().setPath("foo.txt").setModTime(1L).setContentHash(hash).build());
+    // and it is rewritten locally with the same contents
+    fileAccess.write(fooDotTxt, ByteBuffer.wrap(data), 2L);
+    changes.add(Update.newBuilder().setPath("foo.txt").setLocal(true).build());
+    // when we notice
+    poll();
+    // then we only send the new mod time
+    assertThat(outgoing.values.size(), is(1));
+    Update sent = outgoing.values.get(0);
+    assertThat(sent.getModTimeOnly(), is(true));
+    assertThat(sent.getData().isEmpty(), is(true));
+    assertThat(sent.getModTime(), is(2L));
+  }
+
+  @Test
+  public void saveRemoteTouchLocally() throws Exception {
+    // given we have an existing local file
+    tree.addLocal(Update.newBuilder().setPath("foo.txt").setModTime(1L).build());
+    fileAccess.write(fooDotTxt, ByteBuffer.wrap(data), 1L);
+    // and the remote rewrites it with the same contents
+    changes.add(Update.newBuilder().setPath("foo.txt").setModTime(10L).setModTimeOnly(true).setContentHash(ContentHasher.hash(data)).build());
+    // when we notice
+    poll();
+    // then we've only updated the mod time
+    assertThat(fileAccess.read(fooDotTxt).toByteArray(), is(data));
+    assertThat(fileAccess.getModifiedTime(fooDotTxt), is(10L));
+  }
+
+  @Test
+  public void resendLocalFileWhenRemoteTouchDoesNotMatch() throws Exception {
+    // given we have an existing local file
+    tree.addLocal(Update.newBuilder().setPath("foo.txt").setModTime(1L).build());
+    fileAccess.write(fooDotTxt, ByteBuffer.wrap(data2), 1L);
+    // and the remote thinks we have different contents
+    changes.add(Update.newBuilder().setPath("foo.txt").setModTime(10L).setModTimeOnly(true).setContentHash(ContentHasher.hash(data)).build());
+    // when we notice
+    poll();
+    // then we keep our contents, but make them newer than the remote's, so they'll be sent back
+    assertThat(fileAccess.read(fooDotTxt).toByteArray(), is(data2));
+    assertThat(fileAccess.getModifiedTime(fooDotTxt) > 10L, is(true));
   }
 
   @Test
@@ -97,6 +167,55 @@ public class SyncLogicTest {
     assertThat(fileAccess.getModifiedTime(fooDotTxt), is(10L));
   }
 
+  @Test
+  public void confirmRemoteChangeWhenTheFileWatcherSeesItSaved() throws Exception {
+    // given a remote change that we've saved locally
+    changes.add(Update.newBuilder().setPath("foo.txt").setData(ByteString.copyFrom(data2)).setModTime(10L).build());
+    poll();
+    // and the FileWatcher sees our write, which is otherwise a no-op
+    changes.add(Update.newBuilder().setPath("foo.txt").setModTime(10L).setLocal(true).build());
+    poll();
+    // when we save a snapshot
+    TreeSnapshot snapshot = new TreeSnapshot(Paths.get("./build/SyncLogicTest/snapshot"));
+    snapshot.save("c:1", tree);
+    // then the write is saved as confirmed, and not as a path to re-query
+    TreeSnapshot.Loaded loaded = snapshot.load().get();
+    assertThat(loaded.unconfirmed.size(), is(0));
+    assertThat(loaded.updates.size(), is(1));
+    assertThat(loaded.updates.get(0).getModTime(), is(10L));
+    snapshot.delete();
+  }
+
+  @Test
+  public void saveSpooledRemoteChangeLocally() throws Exception {
+    // given a large remote change that was spooled to disk when received
+    IncomingSpool spool = new IncomingSpool(Files.createTempDirectory("spool"), 1);
+    Update spooled = spool.spoolIfLarge(Update.newBuilder().setPath("foo.txt").setData(ByteString.copyFrom(data2)).setModTime(10L).build());
+    assertThat(spooled.getData().size(), is(0));
+    changes.add(spooled);
+    // when we notice
+    poll();
+    // then we've moved it into place locally
+    assertThat(fileAccess.read(fooDotTxt).toByteArray(), is(data2));
+    assertThat(fileAccess.getModifiedTime(fooDotTxt), is(10L));
+    spool.delete();
+  }
+
+  @Test
+  public void deleteSpooledRemoteChangeThatIsNotSaved() throws Exception {
+    // given we already have foo.txt
+    tree.addLocal(Update.newBuilder().setPath("foo.txt").setModTime(10L).build());
+    // and the remote sends us the same version, which is spooled to disk when received
+    IncomingSpool spool = new IncomingSpool(Files.createTempDirectory("spool"), 1);
+    Update spooled = spool.spoolIfLarge(Update.newBuilder().setPath("foo.txt").setData(ByteString.copyFrom(data2)).setModTime(10L).build());
+    changes.add(spooled);
+    // when we notice
+    poll();
+    // then we don't save it, and don't leave the spool file behind either
+    assertThat(Files.exists(Paths.get(spooled.getSpoolPath())), is(false));
+    spool.delete();
+  }
+
   @Test
   public void saveRemoteDeleteLocally() throws Exception {
     // given we have an existing local file
@@ -306,6 +425,55 @@ public class SyncLogicTest {
     assertThat(sent.getModTime(), is(3L));
   }
 
+  @Test
+  public void holdDiffsWhileTheWatcherIsPaused() throws Exception {
+    // given our watcher is paused, e.g. for a git checkout, and will resume while we wait for more updates
+    FileWatcher watcher = mock(FileWatcher.class);
+    when(watcher.isPaused()).thenReturn(true, true, true, false);
+    SyncLogic paused = new SyncLogic(queues, fileAccess, tree, MoreExecutors.directExecutor(), watcher, null);
+    // and the remote sends a file
+    changes.add(Update.newBuilder().setPath("foo.txt").setModTime(10L).setData(ByteString.copyFrom(data)).build());
+    // when we process it while paused
+    paused.runOneLoop();
+    // then we haven't saved it yet
+    assertThat(queues.saveToLocal.size(), is(0));
+    // and when we're resumed, even with nothing else to process
+    paused.runOneLoop();
+    // then we save it
+    assertThat(queues.saveToLocal.size(), is(1));
+  }
+
+  @Test
+  public void holdNoisyLocalChangesUntilTheyAreQuiet() throws Exception {
+    // given build/ is noisy
+    SyncLogic quiet = newSyncLogicWithQuietPeriod(Duration.ofHours(1));
+    // when a build output and a source file change
+    fileAccess.write(Paths.get("build/foo.class"), ByteBuffer.wrap(data));
+    fileAccess.write(fooDotTxt, ByteBuffer.wrap(data));
+    changes.add(Update.newBuilder().setPath("build/foo.class").setLocal(true).build());
+    changes.add(Update.newBuilder().setPath("foo.txt").setLocal(true).build());
+    quiet.poll();
+    // then only the source file is sent right away
+    assertThat(queues.saveToRemote.size(), is(1));
+    assertThat(queues.saveToRemote.peek().getPath(), is("foo.txt"));
+  }
+
+  @Test
+  public void releaseNoisyLocalChangesOnceTheyAreQuiet() throws Exception {
+    SyncLogic quiet = newSyncLogicWithQuietPeriod(Duration.ZERO);
+    fileAccess.write(Paths.get("build/foo.class"), ByteBuffer.wrap(data));
+    changes.add(Update.newBuilder().setPath("build/foo.class").setLocal(true).build());
+    quiet.poll();
+    assertThat(queues.saveToRemote.size(), is(1));
+    assertThat(queues.saveToRemote.peek().getPath(), is("build/foo.class"));
+  }
+
+  private SyncLogic newSyncLogicWithQuietPeriod(Duration quietPeriod) {
+    QuiescencePolicy policy = new QuiescencePolicy(new PathRules("build/"), quietPeriod);
+    MirrorPaths paths = new MirrorPaths(null, null, new PathRules(), new PathRules(), false, new ArrayList<>(), policy);
+    return new SyncLogic(queues, fileAccess, UpdateTree.newRoot(paths));
+  }
+
   private void poll() throws Exception {
     l.poll();
     new SaveToLocal(queues, fileAccess).drain();
@@ -0,0 +1,71 @@
+package mirror;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Tests {@link TreeSnapshot}.
+ */
+public class TreeSnapshotTest {
+
+  private static final File dir = new File("./build/TreeSnapshotTest");
+  private final TreeSnapshot snapshot = new TreeSnapshot(new File(dir, "snapshot").toPath());
+  private final UpdateTree tree = UpdateTree.newRoot();
+
+  @Before
+  public void before() throws Exception {
+    FileUtils.deleteDirectory(dir);
+  }
+
+  @Test
+  public void shouldLoadWhatWasSaved() throws Exception {
+    tree.addLocal(Update.newBuilder().setPath("foo").setDirectory(true).setModTime(1L).setLocal(true).build());
+    tree.addLocal(Update.newBuilder().setPath("foo/bar.txt").setModTime(2L).setContentHash("xxh64:1").setSettled(true).setLocal(true).build());
+    tree.addLocal(Update.newBuilder().setPath(".gitignore").setModTime(3L).setIgnoreString("*.log").setLocal(true).build());
+    tree.addLocal(Update.newBuilder().setPath("deleted.txt").setDelete(true).setLocal(true).build());
+    snapshot.save("c:1", tree);
+    TreeSnapshot.Loaded loaded = snapshot.load().get();
+    assertThat(loaded.clock, is("c:1"));
+    assertThat(loaded.rootGitIgnore, is("*.log"));
+    assertThat(loaded.unconfirmed.size(), is(0));
+    assertThat(loaded.updates.size(), is(3));
+    Update bar = loaded.updates.stream().filter(u -> u.getPath().equals("foo/bar.txt")).findFirst().get();
+    assertThat(bar.getModTime(), is(2L));
+    assertThat(bar.getContentHash(), is("xxh64:1"));
+    assertThat(bar.getSettled(), is(false));
+  }
+
+  @Test
+  public void shouldNotSaveRemoteDataOrUnconfirmedWrites() throws Exception {
+    // given the remote sent us foo.txt, and we've diffed it, but the FileWatcher hasn't seen it saved yet
+    tree.addRemote(Update.newBuilder().setPath("foo.txt").setModTime(2L).setData(ByteString.copyFromUtf8("abc")).build());
+    new UpdateTreeDiff(tree).diff();
+    snapshot.save("c:1", tree);
+    // then it's only saved as a path to re-query
+    TreeSnapshot.Loaded loaded = snapshot.load().get();
+    assertThat(loaded.updates.size(), is(0));
+    assertThat(loaded.unconfirmed.size(), is(1));
+    assertThat(loaded.unconfirmed.get(0), is("foo.txt"));
+    // and once the FileWatcher sees the write, it's saved as normal, without any data
+    tree.addLocal(Update.newBuilder().setPath("foo.txt").setModTime(2L).setLocal(true).build());
+    snapshot.save("c:2", tree);
+    loaded = snapshot.load().get();
+    assertThat(loaded.unconfirmed.size(), is(0));
+    assertThat(loaded.updates.size(), is(1));
+    assertThat(loaded.updates.get(0).getData().isEmpty(), is(true));
+  }
+
+  @Test
+  public void shouldNotLoadAMissingSnapshot() {
+    assertThat(snapshot.load().isPresent(), is(false));
+  }
+
+}
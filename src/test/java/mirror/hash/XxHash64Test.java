@@ -0,0 +1,71 @@
+package mirror.hash;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+public class XxHash64Test {
+
+  @Test
+  public void testKnownValues() {
+    assertThat(XxHash64.hash(new byte[0]), is(0xef46db3751d8e999L));
+    assertThat(XxHash64.hash("abc".getBytes(UTF_8)), is(0x44bc2cf5ad770999L));
+    // long enough to use the 32-byte stripes
+    assertThat(XxHash64.hash("Nobody inspects the spammish repetition".getBytes(UTF_8)), is(0xfbcea83c8a378bf1L));
+  }
+
+  @Test
+  public void testStreamingMatchesOneShot() {
+    byte[] data = randomBytes(1000);
+    for (int chunk : new int[] { 1, 7, 31, 32, 33, 500 }) {
+      XxHash64 h = new XxHash64();
+      for (int i = 0; i < data.length; i += chunk) {
+        h.update(data, i, Math.min(chunk, data.length - i));
+      }
+      assertThat(h.digest(), is(XxHash64.hash(data)));
+    }
+  }
+
+  @Test
+  public void testHashDoesNotConsumeBuffer() {
+    ByteBuffer b = ByteBuffer.wrap(randomBytes(100));
+    XxHash64.hash(b);
+    assertThat(b.remaining(), is(100));
+  }
+
+  @Test
+  public void testHashFile() throws Exception {
+    assertThat(ContentHasher.shared.hash(Paths.get("./src/test/resources/bar.txt")), is("xxh64:7f3aaa4c3842a787"));
+  }
+
+  @Test
+  public void testHashLargeFileMatchesHashOfBytes() throws Exception {
+    // big enough to be memory-mapped
+    byte[] data = randomBytes(3 * 1024 * 1024 + 5);
+    Path file = Files.createTempFile("mirror", ".data");
+    try {
+      Files.write(file, data);
+      assertThat(ContentHasher.shared.hashAsync(file).get(), is(ContentHasher.hash(data)));
+      assertThat(ContentHasher.hash(ByteString.copyFrom(data)), is(ContentHasher.hash(data)));
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  private static byte[] randomBytes(int size) {
+    byte[] data = new byte[size];
+    new Random(1).nextBytes(data);
+    return data;
+  }
+
+}
@@ -0,0 +1,177 @@
+package mirror.inotify;
+
+import static mirror.TestUtils.move;
+import static mirror.TestUtils.writeFile;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.commons.io.FileUtils;
+import org.jooq.lambda.Seq;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import mirror.LoggingConfig;
+import mirror.MirrorPaths;
+import mirror.Update;
+import mirror.tasks.TaskFactory;
+import mirror.tasks.ThreadBasedTaskFactory;
+
+public class InotifyFileWatcherTest {
+
+  static {
+    LoggingConfig.init();
+  }
+  private static final File dir = new File("./build/InotifyFileWatcherTest");
+  private final TaskFactory taskFactory = new ThreadBasedTaskFactory();
+  private final BlockingQueue<Update> queue = new ArrayBlockingQueue<>(100);
+  private InotifyFileWatcher watcher;
+
+  @Before
+  public void clearFiles() throws Exception {
+    Assume.assumeTrue(Inotify.isAvailable());
+    if (dir.exists()) {
+      FileUtils.forceDelete(dir);
+    }
+    dir.mkdirs();
+    watcher = new InotifyFileWatcher(MirrorPaths.forTesting(dir.toPath()), queue);
+    watcher.performInitialScan();
+    taskFactory.runTask(watcher);
+  }
+
+  @After
+  public void stopWatcher() throws Exception {
+    if (watcher != null) {
+      taskFactory.stopTask(watcher);
+    }
+  }
+
+  @Test
+  public void testFileWrittenIsOnlySentOnceItIsClosed() throws Exception {
+    writeFile(new File(dir, "foo.txt"), "abc");
+    Thread.sleep(InotifyFileWatcher.unclosedWindow.toMillis() + 500);
+    List<Update> updates = drainUpdates();
+    // we ignore the IN_CREATE and IN_MODIFY, and only see the IN_CLOSE_WRITE
+    assertThat(paths(updates), is("foo.txt"));
+    assertThat(updates.get(0).getSettled(), is(true));
+  }
+
+  @Test
+  public void testHardLinkIsSentUnsettled() throws Exception {
+    writeFile(new File(dir, "foo.txt"), "abc");
+    sleep();
+    drainUpdates();
+    // a hard link is only an IN_CREATE, without an IN_CLOSE_WRITE
+    Files.createLink(new File(dir, "bar.txt").toPath(), new File(dir, "foo.txt").toPath());
+    sleep();
+    assertThat(drainUpdates().size(), is(0));
+    // so we send it once we've waited long enough for one
+    Thread.sleep(InotifyFileWatcher.unclosedWindow.toMillis());
+    // (foo.txt also gets an IN_ATTRIB for its link count)
+    List<Update> updates = Seq.seq(drainUpdates()).filter(u -> u.getPath().equals("bar.txt")).toList();
+    assertThat(updates.size(), is(1));
+    assertThat(updates.get(0).getSettled(), is(false));
+  }
+
+  @Test
+  public void testAttributeChangeIsSentUnsettled() throws Exception {
+    writeFile(new File(dir, "foo.txt"), "abc");
+    sleep();
+    drainUpdates();
+    new File(dir, "foo.txt").setExecutable(true);
+    Thread.sleep(InotifyFileWatcher.unclosedWindow.toMillis() + 500);
+    List<Update> updates = drainUpdates();
+    assertThat(paths(updates), is("foo.txt"));
+    assertThat(updates.get(0).getSettled(), is(false));
+  }
+
+  @Test
+  public void testFileRename() throws Exception {
+    writeFile(new File(dir, "foo.txt"), "abc");
+    sleep();
+    move(new File(dir, "foo.txt").toString(), new File(dir, "bar.txt").toString());
+    sleep();
+    List<Update> updates = drainUpdates();
+    assertThat(paths(updates), is("foo.txt,foo.txt,bar.txt"));
+    assertThat(updates.get(1).getDelete(), is(true));
+    assertThat(updates.get(2).getDelete(), is(false));
+    assertThat(updates.get(2).getSettled(), is(true));
+  }
+
+  @Test
+  public void testDirectoryRenamedWithNestedContents() throws Exception {
+    // given a structure like:
+    // dir1
+    //   dir12
+    //     foo.txt
+    File dir1 = new File(dir, "dir1");
+    dir1.mkdir();
+    sleep();
+    File dir12 = new File(dir1, "dir12");
+    dir12.mkdir();
+    sleep();
+    writeFile(new File(dir12, "foo.txt"), "abc");
+    sleep();
+    // when dir1 is renamed
+    File dir2 = new File(dir, "dir2");
+    move(dir1.toString(), dir2.toString());
+    sleep();
+    // and foo.txt is written to
+    writeFile(new File(dir2, "dir12/foo.txt"), "abcd");
+    sleep();
+    // then we see:
+    assertThat(
+      paths(drainUpdates()),
+      is(String.join( //
+        ",",
+        "dir1", // create
+        "dir1/dir12", // create
+        "dir1/dir12/foo.txt", // write
+        "dir1", // delete
+        "dir2", // rename
+        "dir2/dir12", // rename
+        "dir2/dir12/foo.txt", // rename
+        "dir2/dir12/foo.txt"))); // write, which is reported against the new path
+  }
+
+  @Test
+  public void testDirectoryMovedOut() throws Exception {
+    File dir1 = new File(dir, "dir1");
+    dir1.mkdir();
+    sleep();
+    File outside = new File(dir.getParentFile(), "InotifyFileWatcherTest-outside");
+    FileUtils.deleteQuietly(outside);
+    move(dir1.toString(), outside.toString());
+    sleep();
+    // writes to the moved directory are no longer seen
+    writeFile(new File(outside, "foo.txt"), "abc");
+    sleep();
+    List<Update> updates = drainUpdates();
+    assertThat(paths(updates), is("dir1,dir1"));
+    assertThat(updates.get(1).getDelete(), is(true));
+    FileUtils.deleteQuietly(outside);
+  }
+
+  private List<Update> drainUpdates() {
+    List<Update> updates = new ArrayList<>();
+    queue.drainTo(updates);
+    return updates;
+  }
+
+  private static String paths(List<Update> updates) {
+    return Seq.seq(updates).map(u -> u.getPath()).toString(",");
+  }
+
+  private static void sleep() throws InterruptedException {
+    Thread.sleep(500);
+  }
+
+}
@@ -0,0 +1,124 @@
+package mirror.watchman;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class BserDecoderTest {
+
+  private final List<WatchmanFile> files = new ArrayList<>();
+
+  @Test
+  public void shouldStreamFilesEncodedAsObjects() throws Exception {
+    Map<String, Object> response = new LinkedHashMap<>();
+    response.put("clock", "c:1:2");
+    List<Object> encodedFiles = new ArrayList<>();
+    for (int i = 0; i < 3000; i++) {
+      Map<String, Object> f = new LinkedHashMap<>();
+      f.put("name", "dir/file" + i + ".txt");
+      f.put("exists", i % 2 == 0);
+      f.put("mode", 0100644);
+      f.put("mtime_ms", 1600000000000L + i);
+      // fields we don't know about are skipped
+      f.put("other", Arrays.asList(1, "x"));
+      encodedFiles.add(f);
+    }
+    response.put("files", encodedFiles);
+    response.put("is_fresh_instance", true);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BserEncoder.encode(response, out);
+
+    Map<String, Object> rest = new BserDecoder(new ByteArrayInputStream(out.toByteArray())).readResponse(files::add);
+    assertThat(rest.get("clock"), is("c:1:2"));
+    assertThat(rest.get("is_fresh_instance"), is(true));
+    assertThat(rest.containsKey("files"), is(false));
+    assertThat(files.size(), is(3000));
+    WatchmanFile last = files.get(2999);
+    assertThat(last.name, is("dir/file2999.txt"));
+    assertThat(last.exists, is(false));
+    assertThat(last.mode, is(0100644));
+    assertThat(last.mtimeMs, is(1600000002999L));
+  }
+
+  @Test
+  public void shouldStreamFilesEncodedAsATemplate() throws Exception {
+    // watchman sends files as a template, which we hand-encode here as our encoder doesn't create them
+    ByteBuffer b = ByteBuffer.allocate(1000).order(ByteOrder.nativeOrder());
+    b.put(BserEncoder.OBJECT).put(BserEncoder.INT8).put((byte) 2);
+    putString(b, "clock");
+    putString(b, "x");
+    putString(b, "files");
+    b.put(BserEncoder.TEMPLATE);
+    b.put(BserEncoder.ARRAY).put(BserEncoder.INT8).put((byte) 2);
+    putString(b, "name");
+    putString(b, "mtime_ms");
+    b.put(BserEncoder.INT8).put((byte) 2);
+    // the first file
+    putString(b, "a");
+    b.put(BserEncoder.INT64).putLong(123456789012L);
+    // the second file has a non-utf8 name and no mtime
+    b.put(BserEncoder.STRING).put(BserEncoder.INT8).put((byte) 2).put((byte) 0xff).put((byte) 0xfe);
+    b.put(BserEncoder.SKIP);
+
+    Map<String, Object> rest = new BserDecoder(new ByteArrayInputStream(toPdu(b))).readResponse(files::add);
+    assertThat(rest.get("clock"), is("x"));
+    assertThat(files.size(), is(2));
+    assertThat(files.get(0).name, is("a"));
+    assertThat(files.get(0).mtimeMs, is(123456789012L));
+    assertThat(files.get(1).name, is(nullValue()));
+    assertThat(files.get(1).mtimeMs, is(0L));
+  }
+
+  @Test
+  public void shouldDecodeContentHashes() throws Exception {
+    Map<String, Object> response = new LinkedHashMap<>();
+    List<Object> encodedFiles = new ArrayList<>();
+    Map<String, Object> file = new LinkedHashMap<>();
+    file.put("name", "foo.txt");
+    // fields we don't use are skipped
+    file.put("size", 3);
+    file.put("content.sha1hex", "a9993e364706816aba3e25717850c26c9cd0d89d");
+    encodedFiles.add(file);
+    Map<String, Object> dir = new LinkedHashMap<>();
+    dir.put("name", "dir");
+    // watchman sends an error object for things it can't hash
+    dir.put("content.sha1hex", Collections.singletonMap("error", "Is a directory"));
+    encodedFiles.add(dir);
+    response.put("files", encodedFiles);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BserEncoder.encode(response, out);
+
+    new BserDecoder(new ByteArrayInputStream(out.toByteArray())).readResponse(files::add);
+    assertThat(files.get(0).name, is("foo.txt"));
+    assertThat(files.get(0).sha1, is("a9993e364706816aba3e25717850c26c9cd0d89d"));
+    assertThat(files.get(1).name, is("dir"));
+    assertThat(files.get(1).sha1, is(nullValue()));
+  }
+
+  private static void putString(ByteBuffer b, String s) {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    b.put(BserEncoder.STRING).put(BserEncoder.INT8).put((byte) bytes.length).put(bytes);
+  }
+
+  private static byte[] toPdu(ByteBuffer body) {
+    ByteBuffer pdu = ByteBuffer.allocate(body.position() + 7).order(ByteOrder.nativeOrder());
+    pdu.put((byte) 0).put((byte) 1).put(BserEncoder.INT32).putInt(body.position());
+    pdu.put(body.array(), 0, body.position());
+    return pdu.array();
+  }
+
+}
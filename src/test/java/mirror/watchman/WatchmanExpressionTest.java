@@ -0,0 +1,73 @@
+package mirror.watchman;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.Test;
+
+public class WatchmanExpressionTest {
+
+  private static final List<String> none = Collections.emptyList();
+
+  @Test
+  public void shouldSendNoExpressionWithoutRules() {
+    assertThat(WatchmanExpression.forRules(none, none, Arrays.asList("")), is(Optional.empty()));
+  }
+
+  @Test
+  public void shouldTranslateUnanchoredPatterns() {
+    assertThat(
+      WatchmanExpression.translate("*.log").toString(),
+      is("[anyof, [match, **/*.log, wholename, {includedotfiles=true}], [match, **/*.log/**, wholename, {includedotfiles=true}]]"));
+  }
+
+  @Test
+  public void shouldTranslateAnchoredPatterns() {
+    assertThat(
+      WatchmanExpression.translate("/build").toString(),
+      is("[anyof, [match, build, wholename, {includedotfiles=true}], [match, build/**, wholename, {includedotfiles=true}]]"));
+    assertThat(
+      WatchmanExpression.translate("*/config").toString(),
+      is("[anyof, [match, */config, wholename, {includedotfiles=true}], [match, */config/**, wholename, {includedotfiles=true}]]"));
+  }
+
+  @Test
+  public void shouldTranslateDirectoryOnlyPatterns() {
+    assertThat(
+      WatchmanExpression.translate("target/").toString(),
+      is("[anyof, [allof, [type, d], [match, **/target, wholename, {includedotfiles=true}]], [match, **/target/**, wholename, {includedotfiles=true}]]"));
+  }
+
+  @Test
+  public void shouldNotTranslateEscapes() {
+    assertThat(WatchmanExpression.translate("\\#foo"), is(nullValue()));
+  }
+
+  @Test
+  public void shouldCombineExcludesAndIncludes() {
+    Optional<List<Object>> e = WatchmanExpression.forRules(Arrays.asList("src_managed"), Arrays.asList("build"), Arrays.asList("*.log", "!keep.log"));
+    // included, or not excluded
+    assertThat(e.get().get(0), is("anyof"));
+    assertThat(e.get().get(1).toString(), is("[anyof, " + WatchmanExpression.translate("src_managed") + ", " + WatchmanExpression.translate("keep.log") + "]"));
+    assertThat(e.get().get(2).toString(), is("[not, [anyof, " + WatchmanExpression.translate("build") + ", " + WatchmanExpression.translate("*.log") + "]]"));
+  }
+
+  @Test
+  public void shouldLeaveUntranslatableExcludesToTheClient() {
+    Optional<List<Object>> e = WatchmanExpression.forRules(none, Arrays.asList("build", "foo\\ "), none);
+    assertThat(e.get().toString(), is("[not, " + WatchmanExpression.translate("build") + "]"));
+  }
+
+  @Test
+  public void shouldSendNoExpressionIfAnIncludeIsUntranslatable() {
+    assertThat(WatchmanExpression.forRules(Arrays.asList("foo\\ "), Arrays.asList("build"), none), is(Optional.empty()));
+    assertThat(WatchmanExpression.forRules(none, Arrays.asList("build", "!foo\\ "), none), is(Optional.empty()));
+  }
+
+}
@@ -1,7 +1,8 @@
 package mirror.watchman;
 
 import static com.google.common.collect.Lists.newArrayList;
-import static org.mockito.ArgumentMatchers.anyMap;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
@@ -13,10 +14,12 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
 
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
@@ -27,7 +30,10 @@ import com.facebook.watchman.WatchmanClient.SubscriptionDescriptor;
 import com.google.common.collect.ImmutableMap;
 
 import mirror.MirrorPaths;
+import mirror.PathRules;
+import mirror.TreeSnapshot;
 import mirror.Update;
+import mirror.UpdateTree;
 
 /**
  * Tests {@link WatchmanFileWatcher}.
@@ -51,49 +57,192 @@ public class WatchmanFileWatcherTest {
   private Watchman wm = null;
   private BlockingQueue<Update> queue = new ArrayBlockingQueue<Update>(100);
   private Map<String, Object> queryParams = new HashMap<>();
+  private final Path snapshots = Paths.get("./build/WatchmanFileWatcherTest/snapshots");
 
   @Test
   public void shouldHandleWatchProjectReturningAPrefix() throws Exception {
     // given we watch /foo/bar/zaz and /foo is already the watch root
     setupWatchman("/foo", Optional.of("bar/zaz"));
-    WatchmanFileWatcher fw = new WatchmanFileWatcher(wm, MirrorPaths.forTesting(root), queue);
+    WatchmanFileWatcher fw = newWatcher(MirrorPaths.forTesting(root), false);
     fw.performInitialScan();
     fw.onStart();
     verify(wm).run("watch-project", absRoot);
-    verify(wm).run("query", "/foo", queryParams);
+    verify(wm).query(eq("/foo"), eq(queryParams), Mockito.any());
     verify(wm)
       .subscribe(
         eq(Paths.get("/foo")),
-        eq(ImmutableMap.of("relative_root", "bar/zaz", "fields", newArrayList("name", "exists", "mode", "mtime_ms"), "since", "foo")),
+        eq(
+          ImmutableMap.of(
+            "relative_root",
+            "bar/zaz",
+            "fields",
+            newArrayList("name", "exists", "mode", "mtime_ms"),
+            "since",
+            "foo",
+            "defer",
+            WatchmanStates.deferred)),
         Mockito.any());
     verifyNoMoreInteractions(wm);
   }
 
   @Test
-  public void shouldRestartWatchmanWhenOverflowHappens() throws Exception {
+  public void shouldCatchUpSinceTheLastClockWhenOverflowHappens() throws Exception {
     // given we watch /foo/bar/zaz and that is our watch root
     setupWatchman("/foo/bar/zaz", Optional.empty());
-    WatchmanFileWatcher fw = new WatchmanFileWatcher(wm, MirrorPaths.forTesting(root), queue);
+    WatchmanFileWatcher fw = newWatcher(MirrorPaths.forTesting(root), false);
     fw.performInitialScan();
     // we'll start the first description
     ArgumentCaptor<Callback> callback = ArgumentCaptor.forClass(Callback.class);
     SubscriptionDescriptor sub = new StubDescriptor();
     when(wm.subscribe(Mockito.any(), Mockito.any(), callback.capture())).thenReturn(sub);
     fw.onStart();
+    // and we've seen a subscription message
+    callback.getValue().call(ImmutableMap.of("clock", "bar", "files", new ArrayList<>()));
     // when a read gets an overflow
+    Map<String, Object> sinceParams = new HashMap<>(queryParams);
+    sinceParams.put("since", "bar");
+    when(wm.query(eq(absRoot), eq(sinceParams), Mockito.any())).thenReturn(ImmutableMap.of("clock", "zaz"));
     callback.getValue().call(ImmutableMap.of("error", "IN_Q_OVERFLOW"));
     fw.runOneLoop();
     // then we've un-subscribed
     verify(wm).unsubscribe(sub);
-    // and deleted the old watch
-    verify(wm).run("watch-del", absRoot);
-    // and re-scanned the new wm connection
-    verify(wm, times(2)).run("watch-project", absRoot);
-    verify(wm, times(2)).run("query", absRoot, queryParams);
-    verify(wm, times(2)).subscribe(eq(Paths.get(absRoot)), anyMap(), Mockito.any(Callback.class));
+    // and only queried for what changed since the last message, instead of deleting the watch
+    verify(wm, times(1)).run("watch-project", absRoot);
+    verify(wm).query(eq(absRoot), eq(queryParams), Mockito.any());
+    verify(wm).query(eq(absRoot), eq(sinceParams), Mockito.any());
+    // and re-subscribed from the new clock
+    verify(wm).subscribe(eq(Paths.get(absRoot)), eq(ImmutableMap.of("fields", queryParams.get("fields"), "since", "foo", "defer", WatchmanStates.deferred)), Mockito.any(Callback.class));
+    verify(wm).subscribe(eq(Paths.get(absRoot)), eq(ImmutableMap.of("fields", queryParams.get("fields"), "since", "zaz", "defer", WatchmanStates.deferred)), Mockito.any(Callback.class));
     verifyNoMoreInteractions(wm);
   }
 
+  @Test
+  public void shouldPauseWhileAStateIsAsserted() throws Exception {
+    setupWatchman("/foo/bar/zaz", Optional.empty());
+    WatchmanFileWatcher fw = newWatcher(MirrorPaths.forTesting(root), false);
+    fw.performInitialScan();
+    ArgumentCaptor<Callback> callback = ArgumentCaptor.forClass(Callback.class);
+    when(wm.subscribe(Mockito.any(), Mockito.any(), callback.capture())).thenReturn(new StubDescriptor());
+    fw.onStart();
+    // when someone runs mirror pause
+    callback.getValue().call(ImmutableMap.of("state-enter", WatchmanStates.pause, "clock", "bar", "unilateral", true));
+    // then we're paused
+    assertThat(fw.isPaused(), is(true));
+    // and didn't take the state's clock as one we've seen changes up to
+    assertThat(fw.getClock(), is("foo"));
+    // and when it's done, we're resumed
+    callback.getValue().call(ImmutableMap.of("state-leave", WatchmanStates.pause, "clock", "zaz", "unilateral", true));
+    assertThat(fw.isPaused(), is(false));
+  }
+
+  @Test
+  public void shouldNotStayPausedAfterResubscribing() throws Exception {
+    setupWatchman("/foo/bar/zaz", Optional.empty());
+    WatchmanFileWatcher fw = newWatcher(MirrorPaths.forTesting(root), false);
+    fw.performInitialScan();
+    ArgumentCaptor<Callback> callback = ArgumentCaptor.forClass(Callback.class);
+    when(wm.subscribe(Mockito.any(), Mockito.any(), callback.capture())).thenReturn(new StubDescriptor());
+    fw.onStart();
+    // given someone runs mirror pause
+    callback.getValue().call(ImmutableMap.of("state-enter", WatchmanStates.pause, "clock", "bar", "unilateral", true));
+    assertThat(fw.isPaused(), is(true));
+    // when the subscription overflows, so we re-subscribe and won't see the old subscription's state-leave
+    Map<String, Object> sinceParams = new HashMap<>(queryParams);
+    sinceParams.put("since", "foo");
+    when(wm.query(eq(absRoot), eq(sinceParams), Mockito.any())).thenReturn(ImmutableMap.of("clock", "zaz"));
+    callback.getValue().call(ImmutableMap.of("error", "IN_Q_OVERFLOW"));
+    fw.runOneLoop();
+    // then we're not paused forever
+    assertThat(fw.isPaused(), is(false));
+  }
+
+  @Test
+  public void shouldSendExcludesAsAnExpression() throws Exception {
+    // given we have an exclude rule
+    setupWatchman("/foo/bar/zaz", Optional.empty());
+    MirrorPaths config = new MirrorPaths(root, null, new PathRules(), new PathRules("build"), false, new ArrayList<>());
+    @SuppressWarnings("unchecked")
+    ArgumentCaptor<Map<String, Object>> params = ArgumentCaptor.forClass(Map.class);
+    when(wm.query(eq(absRoot), params.capture(), Mockito.any())).thenReturn(ImmutableMap.of("clock", "foo"));
+    // when we do the initial scan
+    newWatcher(config, false).performInitialScan();
+    // then watchman filters out the excluded paths for us
+    assertThat(params.getValue().get("expression"), is(newArrayList("not", WatchmanExpression.translate("build"))));
+  }
+
+  @Test
+  public void shouldUseContentHashesFromWatchman() throws Exception {
+    // given we ask watchman for content hashes
+    setupWatchman("/foo/bar/zaz", Optional.empty());
+    Map<String, Object> hashParams = new HashMap<>(queryParams);
+    hashParams.put("fields", newArrayList("name", "exists", "mode", "mtime_ms", "content.sha1hex"));
+    when(wm.query(eq(absRoot), eq(hashParams), Mockito.any())).thenAnswer(i -> {
+      Consumer<WatchmanFile> files = i.getArgument(2);
+      files.accept(new WatchmanFile("foo.txt", true, 0100644, 1L, "a9993e364706816aba3e25717850c26c9cd0d89d"));
+      files.accept(new WatchmanFile("dir", true, 0040755, 1L));
+      return ImmutableMap.of("clock", "foo");
+    });
+    WatchmanFileWatcher fw = newWatcher(MirrorPaths.forTesting(root), true);
+    // when we do the initial scan
+    List<Update> updates = fw.performInitialScan();
+    // then files are already hashed and settled
+    assertThat(updates.get(0).getContentHash(), is("sha1:a9993e364706816aba3e25717850c26c9cd0d89d"));
+    assertThat(updates.get(0).getSettled(), is(true));
+    // and directories are not
+    assertThat(updates.get(1).getContentHash(), is(""));
+    assertThat(updates.get(1).getSettled(), is(false));
+    // and we subscribe with the same fields, deferring vcs operations
+    fw.onStart();
+    Map<String, Object> subscribeParams = new HashMap<>();
+    subscribeParams.put("fields", hashParams.get("fields"));
+    subscribeParams.put("since", "foo");
+    subscribeParams.put("defer_vcs", true);
+    subscribeParams.put("defer", WatchmanStates.deferred);
+    verify(wm).subscribe(eq(Paths.get(absRoot)), eq(subscribeParams), Mockito.any());
+  }
+
+  @Test
+  public void shouldOnlyQueryChangesSinceASavedSnapshot() throws Exception {
+    // given we saved a snapshot of foo.txt and bar.txt as of clock foo
+    setupWatchman("/foo/bar/zaz", Optional.empty());
+    MirrorPaths config = MirrorPaths.forTesting(root);
+    UpdateTree tree = UpdateTree.newRoot(config);
+    tree.addLocal(Update.newBuilder().setPath("foo.txt").setModTime(1L).setLocal(true).build());
+    tree.addLocal(Update.newBuilder().setPath("bar.txt").setModTime(1L).setLocal(true).build());
+    TreeSnapshot snapshot = TreeSnapshot.forPaths(config, snapshots);
+    snapshot.save("foo", tree);
+    try {
+      // and since then foo.txt changed and bar.txt was deleted
+      Map<String, Object> sinceParams = new HashMap<>(queryParams);
+      sinceParams.put("since", "foo");
+      when(wm.query(eq(absRoot), eq(sinceParams), Mockito.any())).thenAnswer(i -> {
+        Consumer<WatchmanFile> files = i.getArgument(2);
+        files.accept(new WatchmanFile("foo.txt", true, 0100644, 2L));
+        files.accept(new WatchmanFile("bar.txt", false, 0100644, 1L));
+        return ImmutableMap.of("clock", "bar");
+      });
+      // when we do the initial scan
+      WatchmanFileWatcher fw = newWatcher(config, false);
+      List<Update> updates = fw.performInitialScan();
+      // then we only asked watchman for what changed
+      verify(wm).run("watch-project", absRoot);
+      verify(wm).query(eq(absRoot), eq(sinceParams), Mockito.any());
+      verifyNoMoreInteractions(wm);
+      // and applied it on top of the snapshot
+      assertThat(updates.size(), is(1));
+      assertThat(updates.get(0).getPath(), is("foo.txt"));
+      assertThat(updates.get(0).getModTime(), is(2L));
+      assertThat(fw.getClock(), is("bar"));
+    } finally {
+      snapshot.delete();
+    }
+  }
+
+  private WatchmanFileWatcher newWatcher(MirrorPaths config, boolean contentHashes) {
+    // don't read (or write) the real ~/.mirror/snapshots
+    return new WatchmanFileWatcher(wm, config, queue, contentHashes, TreeSnapshot.forPaths(config, snapshots));
+  }
+
   private void setupWatchman(String watchRoot, Optional<String> relativePath) {
     // I hate mocks
     wm = mock(Watchman.class);
@@ -107,7 +256,7 @@ public class WatchmanFileWatcherTest {
     if (relativePath.isPresent()) {
       queryParams.put("relative_root", relativePath.get());
     }
-    when(wm.run("query", watchRoot, queryParams)).thenReturn(ImmutableMap.of("clock", "foo", "files", new ArrayList<>()));
+    when(wm.query(eq(watchRoot), eq(queryParams), Mockito.any())).thenReturn(ImmutableMap.of("clock", "foo"));
   }
 
 }
@@ -0,0 +1,93 @@
+package mirror.watchman;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.Test;
+
+import com.facebook.watchman.WatchmanClient.SubscriptionDescriptor;
+
+/**
+ * Tests {@link WatchmanPool}.
+ */
+public class WatchmanPoolTest {
+
+  private final List<Watchman> clients = new ArrayList<>();
+  private final WatchmanPool pool = new WatchmanPool(() -> {
+    Watchman wm = mock(Watchman.class);
+    clients.add(wm);
+    return Optional.of(wm);
+  });
+
+  @Test
+  public void shouldShareOneClient() throws Exception {
+    Watchman a = pool.acquire().get();
+    Watchman b = pool.acquire().get();
+    a.run("watch-list");
+    b.run("watch-list");
+    assertThat(clients.size(), is(1));
+    verify(clients.get(0), times(2)).run("watch-list");
+  }
+
+  @Test
+  public void shouldCloseTheClientAfterTheLastLease() throws Exception {
+    Watchman a = pool.acquire().get();
+    Watchman b = pool.acquire().get();
+    a.close();
+    verify(clients.get(0), never()).close();
+    b.close();
+    verify(clients.get(0)).close();
+    // and the next lease gets a new client
+    pool.acquire().get();
+    assertThat(clients.size(), is(2));
+  }
+
+  @Test
+  public void shouldUnsubscribeWhenALeaseIsClosed() throws Exception {
+    Watchman a = pool.acquire().get();
+    Watchman b = pool.acquire().get();
+    SubscriptionDescriptor s = mock(SubscriptionDescriptor.class);
+    when(clients.get(0).subscribe(any(), any(), any())).thenReturn(s);
+    a.subscribe(Paths.get("/foo"), new HashMap<>(), m -> {
+    });
+    a.close();
+    verify(clients.get(0)).unsubscribe(s);
+    b.close();
+  }
+
+  @Test
+  public void shouldReplaceAFailedClient() throws Exception {
+    Watchman a = pool.acquire().get();
+    when(clients.get(0).run("watch-list")).thenThrow(new RuntimeException(new IOException("broken pipe")));
+    try {
+      a.run("watch-list");
+    } catch (RuntimeException e) {
+      // expected
+    }
+    // new leases get a new client
+    pool.acquire().get();
+    assertThat(clients.size(), is(2));
+    // and the old one is closed once its lease is
+    a.close();
+    verify(clients.get(0)).close();
+  }
+
+  @Test
+  public void shouldBeEmptyIfWatchmanIsNotAvailable() {
+    assertThat(new WatchmanPool(() -> Optional.empty()).acquire().isPresent(), is(false));
+  }
+
+}